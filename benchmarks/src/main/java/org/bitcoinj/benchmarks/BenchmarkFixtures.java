@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletTransaction;
+
+import com.google.common.primitives.Ints;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds the synthetic chain data that the benchmarks run against. Everything is derived from {@link UnitTestParams}
+ * so that blocks can be solved instantly, and all transactions are properly signed so that script and signature
+ * verification exercise the same code as they would against real network data.
+ */
+final class BenchmarkFixtures {
+    static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private BenchmarkFixtures() {}
+
+    /** Makes sure a {@link Context} exists for the calling thread, as required by wallets and block chains. */
+    static Context propagateContext() {
+        Context context = new Context(PARAMS);
+        Context.propagate(context);
+        return context;
+    }
+
+    /**
+     * Returns a transaction with {@code outputs} outputs paying to the given key. The transaction spends a made up
+     * outpoint derived from {@code nonce}, so callers must pass distinct nonces to get distinct transactions.
+     */
+    static Transaction fundingTransaction(ECKey key, int outputs, int nonce) {
+        Transaction tx = new Transaction(PARAMS);
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[] { 0x01 }, fakeOutPoint(nonce)));
+        Address address = key.toAddress(PARAMS);
+        for (int i = 0; i < outputs; i++)
+            tx.addOutput(Coin.CENT, address);
+        return tx;
+    }
+
+    /**
+     * Returns a transaction that spends every output of {@code funding}, with one signed input per output. Note that
+     * with {@link Transaction.SigHash#ALL} only the last input carries a signature valid over the final transaction.
+     */
+    static Transaction spendingTransaction(Transaction funding, ECKey key) {
+        Transaction tx = new Transaction(PARAMS);
+        tx.addOutput(Coin.CENT.multiply(funding.getOutputs().size()), new ECKey().toAddress(PARAMS));
+        for (TransactionOutput output : funding.getOutputs())
+            tx.addSignedInput(output, key);
+        return tx;
+    }
+
+    /** Returns a solved block on top of the genesis block containing {@code txCount} signed transactions. */
+    static Block blockWithTransactions(int txCount) {
+        ECKey key = new ECKey();
+        Block block = PARAMS.getGenesisBlock().createNextBlock(key.toAddress(PARAMS));
+        for (int i = 1; i < txCount; i++)
+            block.addTransaction(spendingTransaction(fundingTransaction(key, 1, i), key));
+        block.solve();
+        return block;
+    }
+
+    /** Returns a wallet holding {@code txCount} confirmed, unspent transactions paying to its own keys. */
+    static Wallet walletWithTransactions(int txCount) {
+        Wallet wallet = new Wallet(PARAMS);
+        Address address = wallet.currentReceiveAddress();
+        for (int i = 0; i < txCount; i++) {
+            Transaction tx = new Transaction(PARAMS);
+            tx.addInput(new TransactionInput(PARAMS, tx, new byte[] { 0x01 }, fakeOutPoint(i)));
+            tx.addOutput(Coin.CENT, address);
+            tx.getConfidence().setAppearedAtChainHeight(i + 1);
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+        }
+        wallet.setLastBlockSeenHeight(txCount);
+        return wallet;
+    }
+
+    /**
+     * Returns {@code count} confirmed outputs spread over {@code addresses} addresses, with values between one satoshi
+     * and one coin and depths between 1 and 1000, as candidates for coin selection. The same seed gives the same
+     * outputs.
+     */
+    static List<TransactionOutput> spendCandidates(int count, int addresses, long seed) {
+        Random random = new Random(seed);
+        Address[] to = new Address[addresses];
+        for (int i = 0; i < addresses; i++)
+            to[i] = new ECKey().toAddress(PARAMS);
+        List<TransactionOutput> outputs = new ArrayList<TransactionOutput>(count);
+        for (int i = 0; i < count; i++) {
+            Transaction tx = new Transaction(PARAMS);
+            tx.addInput(new TransactionInput(PARAMS, tx, new byte[] { 0x01 }, fakeOutPoint(i)));
+            tx.addOutput(Coin.valueOf(1 + (long) (random.nextDouble() * Coin.COIN.value)), to[random.nextInt(addresses)]);
+            tx.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+            tx.getConfidence().setDepthInBlocks(1 + random.nextInt(1000));
+            outputs.add(tx.getOutput(0));
+        }
+        return outputs;
+    }
+
+    private static TransactionOutPoint fakeOutPoint(int nonce) {
+        return new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(Ints.toByteArray(nonce)));
+    }
+
+    /** Returns the hashes of all transactions in the given block. */
+    static List<Sha256Hash> transactionHashes(Block block) {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (Transaction tx : block.getTransactions())
+            hashes.add(tx.getHash());
+        return hashes;
+    }
+}
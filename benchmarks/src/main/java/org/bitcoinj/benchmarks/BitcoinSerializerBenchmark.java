@@ -0,0 +1,60 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures framing and deserialization of complete wire messages, including the payload checksum, as done by
+ * {@link org.bitcoinj.core.PeerSocketHandler} for every message received from a peer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BitcoinSerializerBenchmark {
+    @Param({ "tx", "block" })
+    public String message;
+
+    @Param({ "false", "true" })
+    public boolean parseRetain;
+
+    private MessageSerializer serializer;
+    private byte[] bytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkFixtures.propagateContext();
+        Block block = BenchmarkFixtures.blockWithTransactions(500);
+        Message m = "block".equals(message) ? block : block.getTransactions().get(1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BenchmarkFixtures.PARAMS.getDefaultSerializer().serialize(m, out);
+        bytes = out.toByteArray();
+        serializer = BenchmarkFixtures.PARAMS.getSerializer(parseRetain);
+    }
+
+    @Benchmark
+    public Message deserialize() throws IOException {
+        return serializer.deserialize(ByteBuffer.wrap(bytes));
+    }
+}
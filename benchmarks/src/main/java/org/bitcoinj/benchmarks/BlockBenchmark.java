@@ -0,0 +1,60 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing of a serialized block and calculation of its hash. A freshly parsed block has no cached hash, so
+ * {@link #parseAndGetHash()} includes the double SHA-256 of the header.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BlockBenchmark {
+    @Param({ "1", "500", "2000" })
+    public int txCount;
+
+    private MessageSerializer serializer;
+    private byte[] bytes;
+
+    @Setup
+    public void setUp() {
+        BenchmarkFixtures.propagateContext();
+        bytes = BenchmarkFixtures.blockWithTransactions(txCount).bitcoinSerialize();
+        serializer = BenchmarkFixtures.PARAMS.getDefaultSerializer();
+    }
+
+    @Benchmark
+    public Block parse() {
+        return serializer.makeBlock(bytes);
+    }
+
+    @Benchmark
+    public Sha256Hash parseAndGetHash() {
+        return serializer.makeBlock(bytes).getHash();
+    }
+
+    @Benchmark
+    public Sha256Hash parseAndGetMerkleRoot() {
+        return serializer.makeBlock(bytes).getMerkleRoot();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Bloom filter lookups and the matching of whole transactions and blocks against a filter, as done by
+ * peers serving filtered blocks and by {@link org.bitcoinj.core.Peer} when checking received transactions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BloomFilterBenchmark {
+    @Param({ "1000", "50000" })
+    public int elements;
+
+    private BloomFilter filter;
+    private byte[] present;
+    private byte[] absent;
+    private Transaction tx;
+    private Block block;
+
+    @Setup
+    public void setUp() {
+        BenchmarkFixtures.propagateContext();
+        filter = new BloomFilter(elements, 0.0001, 0, BloomFilter.BloomUpdate.UPDATE_NONE);
+        ECKey key = null;
+        for (int i = 0; i < elements; i++) {
+            key = new ECKey();
+            filter.insert(key);
+        }
+        present = key.getPubKeyHash();
+        absent = new ECKey().getPubKeyHash();
+        tx = BenchmarkFixtures.spendingTransaction(BenchmarkFixtures.fundingTransaction(key, 1, 0), key);
+        block = BenchmarkFixtures.blockWithTransactions(500);
+    }
+
+    @Benchmark
+    public boolean containsPresent() {
+        return filter.contains(present);
+    }
+
+    @Benchmark
+    public boolean containsAbsent() {
+        return filter.contains(absent);
+    }
+
+    @Benchmark
+    public boolean applyAndUpdateTransaction() {
+        return filter.applyAndUpdate(tx);
+    }
+
+    @Benchmark
+    public FilteredBlock applyAndUpdateBlock() {
+        return filter.applyAndUpdate(block);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.wallet.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the coin selection strategies on the same candidates, paying a small amount out of a large wallet as most
+ * payments do. Each invocation gets a fresh copy of the candidate list, as selectors are allowed to modify it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class CoinSelectorBenchmark {
+    @Param({ "1000", "100000" })
+    public int candidateCount;
+
+    @Param({ "default", "largestFirst", "branchAndBound", "addressGrouping" })
+    public String strategy;
+
+    private List<TransactionOutput> candidates;
+    private CoinSelector selector;
+    private final Coin target = Coin.COIN.multiply(3);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkFixtures.propagateContext();
+        candidates = BenchmarkFixtures.spendCandidates(candidateCount, Math.max(1, candidateCount / 10), 42);
+        if (strategy.equals("default"))
+            selector = new DefaultCoinSelector();
+        else if (strategy.equals("largestFirst"))
+            selector = new LargestFirstCoinSelector();
+        else if (strategy.equals("branchAndBound"))
+            selector = new BranchAndBoundCoinSelector(Transaction.MIN_NONDUST_OUTPUT);
+        else if (strategy.equals("addressGrouping"))
+            selector = new AddressGroupingCoinSelector();
+        else
+            throw new IllegalArgumentException(strategy);
+    }
+
+    @Benchmark
+    public CoinSelection select() {
+        return selector.select(target, new ArrayList<TransactionOutput>(candidates));
+    }
+}
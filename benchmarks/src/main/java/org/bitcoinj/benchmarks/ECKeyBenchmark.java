@@ -0,0 +1,74 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoin.NativeSecp256k1;
+import org.bitcoin.NativeSecp256k1Util;
+import org.bitcoin.Secp256k1Context;
+import org.bitcoinj.core.*;
+import org.openjdk.jmh.annotations.*;
+import org.spongycastle.crypto.params.ECPublicKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures ECDSA signature verification. {@link #verify()} goes through {@link ECKey#verify(byte[], byte[], byte[])}
+ * and so uses libsecp256k1 if it could be loaded, whereas the other two benchmarks pin the implementation. The
+ * {@link #verifyNative()} benchmark fails its setup if libsecp256k1 is not on the {@code java.library.path}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ECKeyBenchmark {
+    private byte[] hash;
+    private byte[] pubKey;
+    private byte[] signature;
+    private ECKey.ECDSASignature decodedSignature;
+    private ECDSASigner signer;
+
+    @Setup
+    public void setUp() {
+        ECKey key = new ECKey();
+        hash = Sha256Hash.of(new byte[] { 0x01, 0x02, 0x03 }).getBytes();
+        pubKey = key.getPubKey();
+        decodedSignature = key.sign(Sha256Hash.wrap(hash));
+        signature = decodedSignature.encodeToDER();
+        signer = new ECDSASigner();
+        signer.init(false, new ECPublicKeyParameters(ECKey.CURVE.getCurve().decodePoint(pubKey), ECKey.CURVE));
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return ECKey.verify(hash, signature, pubKey);
+    }
+
+    @Benchmark
+    public boolean verifyBouncyCastle() {
+        // Mirrors the pure Java path of ECKey.verify, including the DER decoding of the signature.
+        ECKey.ECDSASignature sig = ECKey.ECDSASignature.decodeFromDER(signature);
+        return signer.verifySignature(hash, sig.r, sig.s);
+    }
+
+    @Benchmark
+    public boolean verifyNative() throws NativeSecp256k1Util.AssertFailException {
+        if (!Secp256k1Context.isEnabled())
+            throw new IllegalStateException("libsecp256k1 is not loaded");
+        return NativeSecp256k1.verify(hash, signature, pubKey);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures extraction of the matched transaction hashes and merkle root from a partial merkle tree, which is done
+ * for every filtered block received during SPV sync.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class PartialMerkleTreeBenchmark {
+    @Param({ "100", "2000" })
+    public int txCount;
+
+    /** Every n-th transaction of the block is marked as matched. */
+    @Param({ "1", "10", "1000" })
+    public int matchEvery;
+
+    private PartialMerkleTree tree;
+
+    @Setup
+    public void setUp() {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(txCount);
+        byte[] includeBits = new byte[(txCount + 7) / 8];
+        for (int i = 0; i < txCount; i++) {
+            hashes.add(Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) }));
+            if (i % matchEvery == 0)
+                Utils.setBitLE(includeBits, i);
+        }
+        PartialMerkleTree built = PartialMerkleTree.buildFromLeaves(BenchmarkFixtures.PARAMS, includeBits, hashes);
+        // Round trip through the wire format so that the benchmark works on a tree as received from a peer.
+        tree = new PartialMerkleTree(BenchmarkFixtures.PARAMS, built.bitcoinSerialize(), 0);
+    }
+
+    @Benchmark
+    public Sha256Hash getTxnHashAndMerkleRoot() {
+        return tree.getTxnHashAndMerkleRoot(new ArrayList<Sha256Hash>());
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.script.Script;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures full verification of a pay-to-address input, which is dominated by the signature hash and the ECDSA
+ * verification of {@code OP_CHECKSIG}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ScriptBenchmark {
+    private Transaction tx;
+    private Script scriptSig;
+    private Script scriptPubKey;
+
+    @Setup
+    public void setUp() {
+        BenchmarkFixtures.propagateContext();
+        ECKey key = new ECKey();
+        Transaction funding = BenchmarkFixtures.fundingTransaction(key, 1, 0);
+        tx = BenchmarkFixtures.spendingTransaction(funding, key);
+        scriptSig = tx.getInput(0).getScriptSig();
+        scriptPubKey = funding.getOutput(0).getScriptPubKey();
+    }
+
+    @Benchmark
+    public void correctlySpends() {
+        scriptSig.correctlySpends(tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+    }
+}
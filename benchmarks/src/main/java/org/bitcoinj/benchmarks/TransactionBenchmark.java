@@ -0,0 +1,67 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures signature hash calculation. {@link #hashForSignatureAllInputs(Blackhole)} is what signing or verifying a
+ * whole transaction costs, as every input needs its own signature hash, and {@link #sigHashContextAllInputs(Blackhole)}
+ * the same using a {@link SigHashContext}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class TransactionBenchmark {
+    @Param({ "1", "10", "100" })
+    public int inputs;
+
+    private Transaction tx;
+    private byte[] connectedScript;
+
+    @Setup
+    public void setUp() {
+        BenchmarkFixtures.propagateContext();
+        ECKey key = new ECKey();
+        Transaction funding = BenchmarkFixtures.fundingTransaction(key, inputs, 0);
+        tx = BenchmarkFixtures.spendingTransaction(funding, key);
+        connectedScript = funding.getOutput(0).getScriptBytes();
+    }
+
+    @Benchmark
+    public Sha256Hash hashForSignature() {
+        return tx.hashForSignature(0, connectedScript, (byte) Transaction.SigHash.ALL.value);
+    }
+
+    @Benchmark
+    public void hashForSignatureAllInputs(Blackhole bh) {
+        for (int i = 0; i < inputs; i++)
+            bh.consume(tx.hashForSignature(i, connectedScript, (byte) Transaction.SigHash.ALL.value));
+    }
+
+    @Benchmark
+    public void sigHashContextAllInputs(Blackhole bh) {
+        SigHashContext context = new SigHashContext(tx);
+        for (int i = 0; i < inputs; i++)
+            bh.consume(context.hashForSignature(i, connectedScript, (byte) Transaction.SigHash.ALL.value));
+    }
+}
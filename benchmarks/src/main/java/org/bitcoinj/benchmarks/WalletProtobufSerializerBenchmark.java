@@ -0,0 +1,66 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.wallet.UnreadableWalletException;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletProtobufSerializer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures saving and loading of synthetic wallets. Building the large wallet takes a while, so it is done once per
+ * trial rather than per iteration.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class WalletProtobufSerializerBenchmark {
+    @Param({ "1000", "100000" })
+    public int txCount;
+
+    private Wallet wallet;
+    private byte[] bytes;
+    private WalletProtobufSerializer serializer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchmarkFixtures.propagateContext();
+        wallet = BenchmarkFixtures.walletWithTransactions(txCount);
+        serializer = new WalletProtobufSerializer();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.writeWallet(wallet, out);
+        bytes = out.toByteArray();
+    }
+
+    @Benchmark
+    public Wallet readWallet() throws UnreadableWalletException {
+        return serializer.readWallet(new ByteArrayInputStream(bytes));
+    }
+
+    @Benchmark
+    public int writeWallet() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length);
+        serializer.writeWallet(wallet, out);
+        return out.size();
+    }
+}
@@ -74,6 +74,44 @@ public class NativeSecp256k1 {
         }
     }
 
+    /**
+     * Verifies many secp256k1 signatures in native code, returning one result per signature. This is equivalent to
+     * calling {@link #verify(byte[], byte[], byte[])} for each of them, but the context lock is taken and the buffer
+     * prepared only once for the whole batch. Calling when enabled == false is undefined (probably library not loaded)
+     *
+     * @param data The data which was signed, each must be exactly 32 bytes
+     * @param signatures The signatures
+     * @param pubs The public keys which did the signing
+     */
+    public static boolean[] verifyBatch(byte[][] data, byte[][] signatures, byte[][] pubs) throws AssertFailException {
+        Preconditions.checkArgument(data.length == signatures.length && data.length == pubs.length);
+        for (int i = 0; i < data.length; i++)
+            Preconditions.checkArgument(data[i].length == 32 && signatures[i].length <= 520 && pubs[i].length <= 520);
+
+        ByteBuffer byteBuff = nativeECDSABuffer.get();
+        if (byteBuff == null || byteBuff.capacity() < 520) {
+            byteBuff = ByteBuffer.allocateDirect(520);
+            byteBuff.order(ByteOrder.nativeOrder());
+            nativeECDSABuffer.set(byteBuff);
+        }
+
+        boolean[] results = new boolean[data.length];
+        r.lock();
+        try {
+            long context = Secp256k1Context.getContext();
+            for (int i = 0; i < data.length; i++) {
+                byteBuff.rewind();
+                byteBuff.put(data[i]);
+                byteBuff.put(signatures[i]);
+                byteBuff.put(pubs[i]);
+                results[i] = secp256k1_ecdsa_verify(byteBuff, context, signatures[i].length, pubs[i].length) == 1;
+            }
+        } finally {
+            r.unlock();
+        }
+        return results;
+    }
+
     /**
      * libsecp256k1 Create an ECDSA signature.
      *
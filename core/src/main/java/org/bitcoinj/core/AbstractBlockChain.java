@@ -873,6 +873,22 @@ public abstract class AbstractBlockChain {
                                                    List<Transaction> transactions,
                                                    boolean clone,
                                                    Set<Sha256Hash> falsePositives) throws VerificationException {
+        if (listener instanceof Wallet && transactions.size() > 1) {
+            // Let the wallet take the whole block in one go, so it locks once and coalesces its events. It skips
+            // transactions with scripts it can't parse itself.
+            List<Transaction> txns = new ArrayList<Transaction>(transactions.size());
+            for (Transaction tx : transactions) {
+                falsePositives.remove(tx.getHash());
+                try {
+                    txns.add(clone ? tx.params.getDefaultSerializer().makeTransaction(tx.bitcoinSerialize()) : tx);
+                } catch (ProtocolException e) {
+                    // Failed to duplicate tx, should never happen.
+                    throw new RuntimeException(e);
+                }
+            }
+            ((Wallet) listener).receiveFromBlock(txns, block, blockType, relativityOffset);
+            return;
+        }
         for (Transaction tx : transactions) {
             try {
                 falsePositives.remove(tx.getHash());
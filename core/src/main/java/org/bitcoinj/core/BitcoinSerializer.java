@@ -17,6 +17,7 @@
 
 package org.bitcoinj.core;
 
+import com.google.common.base.Charsets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -65,6 +66,7 @@ public class BitcoinSerializer extends MessageSerializer {
         names.put(GetAddrMessage.class, "getaddr");
         names.put(HeadersMessage.class, "headers");
         names.put(BloomFilter.class, "filterload");
+        names.put(FilterAddMessage.class, "filteradd");
         names.put(FilteredBlock.class, "merkleblock");
         names.put(NotFoundMessage.class, "notfound");
         names.put(MemoryPoolMessage.class, "mempool");
@@ -158,11 +160,22 @@ public class BitcoinSerializer extends MessageSerializer {
     /**
      * Deserialize payload only.  You must provide a header, typically obtained by calling
      * {@link BitcoinSerializer#deserializeHeader}.
+     *
+     * <p>If the buffer is backed by an array that holds exactly the payload, as is the case for large messages
+     * assembled by {@link PeerSocketHandler}, the message is parsed from that array without copying it first. In
+     * parseRetain mode the message then keeps a reference to the array, so the caller must not reuse it.</p>
      */
     @Override
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
-        byte[] payloadBytes = new byte[header.size];
-        in.get(payloadBytes, 0, header.size);
+        byte[] payloadBytes;
+        if (in.hasArray() && in.arrayOffset() + in.position() == 0 && in.array().length == header.size
+                && in.remaining() == header.size) {
+            payloadBytes = in.array();
+            in.position(in.limit());
+        } else {
+            payloadBytes = new byte[header.size];
+            in.get(payloadBytes, 0, header.size);
+        }
 
         // Verify the checksum.
         byte[] hash;
@@ -219,6 +232,8 @@ public class BitcoinSerializer extends MessageSerializer {
             return makeAlertMessage(payloadBytes);
         } else if (command.equals("filterload")) {
             return makeBloomFilter(payloadBytes);
+        } else if (command.equals("filteradd")) {
+            return new FilterAddMessage(params, payloadBytes);
         } else if (command.equals("notfound")) {
             return new NotFoundMessage(params, payloadBytes);
         } else if (command.equals("mempool")) {
@@ -359,9 +374,7 @@ public class BitcoinSerializer extends MessageSerializer {
             // The command is a NULL terminated string, unless the command fills all twelve bytes
             // in which case the termination is implicit.
             for (; header[cursor] != 0 && cursor < COMMAND_LEN; cursor++) ;
-            byte[] commandBytes = new byte[cursor];
-            System.arraycopy(header, 0, commandBytes, 0, cursor);
-            command = Utils.toString(commandBytes, "US-ASCII");
+            command = new String(header, 0, cursor, Charsets.US_ASCII);
             cursor = COMMAND_LEN;
 
             size = (int) readUint32(header, cursor);
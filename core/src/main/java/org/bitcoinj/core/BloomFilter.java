@@ -149,7 +149,7 @@ public class BloomFilter extends Message {
      * Serializes this message to the provided stream. If you just want the raw bytes use bitcoinSerialize().
      */
     @Override
-    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+    protected synchronized void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         stream.write(new VarInt(data.length).encode());
         stream.write(data);
         Utils.uint32ToByteStreamLE(hashFuncs, stream);
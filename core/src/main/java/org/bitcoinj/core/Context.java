@@ -42,6 +42,7 @@ public class Context {
     private static final Logger log = LoggerFactory.getLogger(Context.class);
 
     private TxConfidenceTable confidenceTable;
+    private final SignatureCache signatureCache = new SignatureCache();
     private NetworkParameters params;
     private int eventHorizon = 100;
     private boolean ensureMinRequiredFee = true;
@@ -157,6 +158,15 @@ public class Context {
         return confidenceTable;
     }
 
+    /**
+     * Returns the {@link SignatureCache} created by this context. It remembers signatures that were already verified
+     * as valid, so that they are cheaper to verify again. bitcoinj itself only verifies signatures when connecting
+     * blocks, see {@link SignatureCache} for when that helps.
+     */
+    public SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
     /**
      * Returns the {@link org.bitcoinj.core.NetworkParameters} specified when this context was (auto) created. The
      * network parameters defines various hard coded constants for a specific instance of a Bitcoin network, such as
@@ -472,7 +472,7 @@ public class ECKey implements EncryptableItem {
     /** Gets the hash160 form of the public key (as seen in addresses). */
     public byte[] getPubKeyHash() {
         if (pubKeyHash == null)
-            pubKeyHash = Utils.sha256hash160(this.pub.getEncoded());
+            pubKeyHash = PubKeyCache.get().getPubKeyHash(this.pub.getEncoded());
         return pubKeyHash;
     }
 
@@ -725,6 +725,47 @@ public class ECKey implements EncryptableItem {
         }
     }
 
+    /**
+     * <p>Verifies many ECDSA signatures at once, returning one result per signature in the order given. The result
+     * is the same as calling {@link #verify(byte[], ECDSASignature, byte[])} for each of them, but when native
+     * verification is enabled the whole batch is handed to secp256k1 in one go.</p>
+     *
+     * @param data       Hashes of the data to verify.
+     * @param signatures The signatures, one per hash.
+     * @param pubs       The public key bytes to use, one per hash.
+     */
+    public static boolean[] verifyBatch(byte[][] data, ECDSASignature[] signatures, byte[][] pubs) {
+        checkArgument(data.length == signatures.length && data.length == pubs.length, "Arrays differ in length");
+        boolean[] results = new boolean[data.length];
+        if (FAKE_SIGNATURES) {
+            Arrays.fill(results, true);
+            return results;
+        }
+
+        if (Secp256k1Context.isEnabled()) {
+            byte[][] derSignatures = new byte[signatures.length][];
+            for (int i = 0; i < signatures.length; i++)
+                derSignatures[i] = signatures[i].encodeToDER();
+            try {
+                return NativeSecp256k1.verifyBatch(data, derSignatures, pubs);
+            } catch (NativeSecp256k1Util.AssertFailException e) {
+                log.error("Caught AssertFailException inside secp256k1", e);
+                return results;
+            }
+        }
+
+        for (int i = 0; i < data.length; i++) {
+            // A pubkey that doesn't decode makes verify throw. As with OP_CHECKSIG, it just means the signature is
+            // invalid, and it mustn't take the rest of the batch down with it.
+            try {
+                results[i] = verify(data[i], signatures[i], pubs[i]);
+            } catch (RuntimeException e) {
+                results[i] = false;
+            }
+        }
+        return results;
+    }
+
     /**
      * Verifies the given ASN.1 encoded ECDSA signature against a hash using the public key.
      *
@@ -0,0 +1,68 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.Script;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>The "filteradd" message inserts a single piece of data into the {@link BloomFilter} previously loaded on the
+ * connection, so the filter can grow without the whole of it being sent again. Note that the data goes over the wire
+ * as it is, so unlike a filter it tells the remote peer exactly what we are interested in.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class FilterAddMessage extends Message {
+    private byte[] data;
+
+    public FilterAddMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    /** Creates a message that inserts the given data, which may be no longer than a script push. */
+    public FilterAddMessage(byte[] data) {
+        checkArgument(data.length <= Script.MAX_SCRIPT_ELEMENT_SIZE, "Data too long for filteradd: %s bytes", data.length);
+        this.data = data;
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        data = readByteArray();
+        if (data.length > Script.MAX_SCRIPT_ELEMENT_SIZE)
+            throw new ProtocolException("filteradd data out of size range.");
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(new VarInt(data.length).encode());
+        stream.write(data);
+    }
+
+    /** Returns the data to be inserted into the filter. */
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return "filteradd of " + Utils.HEX.encode(data);
+    }
+}
@@ -1723,6 +1723,27 @@ public class Peer extends PeerSocketHandler {
         maybeRestartChainDownload();
     }
 
+    /**
+     * <p>Sends the given elements to the remote peer in filteradd messages, to be inserted into the filter set by
+     * {@link #setBloomFilter(BloomFilter, boolean)}. The caller is expected to have inserted them into that
+     * {@link BloomFilter} object as well, so that it stays what the remote peer has. If requested, a
+     * {@link MemoryPoolMessage} is sent afterwards, as for a new filter.</p>
+     *
+     * <p>Every element is revealed to the remote peer as it is, which makes this a lot worse for privacy than sending a
+     * new filter. If the remote peer doesn't support Bloom filtering or no filter was set yet, this call is ignored.</p>
+     */
+    public void addToBloomFilter(List<byte[]> elements, boolean andQueryMemPool) {
+        final VersionMessage ver = vPeerVersionMessage;
+        if (ver == null || !ver.isBloomFilteringSupported() || vBloomFilter == null)
+            return;
+        log.debug("{}: Adding {} elements to Bloom filter{}", this, elements.size(), andQueryMemPool ? " and querying mempool" : "");
+        for (byte[] element : elements)
+            sendMessage(new FilterAddMessage(element));
+        if (andQueryMemPool)
+            sendMessage(new MemoryPoolMessage());
+        maybeRestartChainDownload();
+    }
+
     private void maybeRestartChainDownload() {
         lock.lock();
         try {
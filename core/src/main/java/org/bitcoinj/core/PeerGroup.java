@@ -169,13 +169,35 @@ public class PeerGroup implements TransactionBroadcaster {
     private int minBroadcastConnections = 0;
     private final ScriptsChangeEventListener walletScriptEventListener = new ScriptsChangeEventListener() {
         @Override public void onScriptsChanged(Wallet wallet, List<Script> scripts, boolean isAddingScripts) {
-            recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+            if (vIncrementalBloomFilterUpdatesEnabled && isAddingScripts) {
+                long earliestTimeSecs = Long.MAX_VALUE;
+                for (Script script : scripts)
+                    earliestTimeSecs = Math.min(earliestTimeSecs, script.getCreationTimeSeconds());
+                // Watched scripts need the filter to be updated on all matches, see Wallet.isRequiringUpdateAllBloomFilter
+                extendFilterOrRecalculate(wallet.getBloomFilterScriptElements(scripts), earliestTimeSecs, true, false);
+            } else {
+                recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+            }
         }
     };
 
     private final KeyChainEventListener walletKeyEventListener = new KeyChainEventListener() {
         @Override public void onKeysAdded(List<ECKey> keys) {
-            recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+            // This runs on the thread adding the keys, which holds that wallet's key chain locks, so it mustn't touch
+            // any wallet here: taking another wallet's locks would invert the lock order between wallets.
+            if (vIncrementalBloomFilterUpdatesEnabled) {
+                long earliestTimeSecs = Long.MAX_VALUE;
+                List<byte[]> elements = new ArrayList<byte[]>(keys.size() * 2);
+                for (ECKey key : keys) {
+                    earliestTimeSecs = Math.min(earliestTimeSecs, key.getCreationTimeSeconds());
+                    // The same data as KeyChainGroup.getBloomFilter inserts for each key.
+                    elements.add(key.getPubKey());
+                    elements.add(key.getPubKeyHash());
+                }
+                extendFilterOrRecalculate(elements, earliestTimeSecs, false, true);
+            } else {
+                recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+            }
         }
     };
 
@@ -286,6 +308,7 @@ public class PeerGroup implements TransactionBroadcaster {
     
     /** Whether bloom filter support is enabled when using a non FullPrunedBlockchain*/
     private volatile boolean vBloomFilteringEnabled = true;
+    private volatile boolean vIncrementalBloomFilterUpdatesEnabled = false;
 
     /** See {@link #PeerGroup(Context)} */
     public PeerGroup(NetworkParameters params) {
@@ -1404,6 +1427,68 @@ public class PeerGroup implements TransactionBroadcaster {
         return future;
     }
     
+    /**
+     * Inserts the given elements into the last calculated filter and sends them on to the peers that have it in
+     * filteradd messages, instead of working out the whole filter again. Falls back to
+     * {@link #recalculateFastCatchupAndFilter(FilterRecalculateMode)} if there's no filter or it would go over its
+     * false positive rate, if the elements are older than the fast catchup time allows for, if they need a filter with
+     * different update flags, or if they are keys and a wallet has married key chains.
+     */
+    private void extendFilterOrRecalculate(final List<byte[]> elements, final long earliestTimeSecs,
+                                           final boolean requiresUpdateAll, final boolean areKeys) {
+        Runnable command = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    go();
+                } catch (Throwable e) {
+                    log.error("Exception when trying to extend Bloom filter", e);  // The executor swallows exceptions :(
+                }
+            }
+
+            public void go() {
+                checkState(!lock.isHeldByCurrentThread());
+                if ((chain != null && chain.shouldVerifyTransactions()) || !vBloomFilteringEnabled)
+                    return;
+                // We aren't told which wallet the keys belong to, so if any wallet is married, only a full calculation
+                // adds the right scripts. Asked here on the job queue, where no wallet's key chain locks are held.
+                if (areKeys) {
+                    for (Wallet wallet : wallets) {
+                        if (wallet.hasMarriedKeyChains()) {
+                            recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+                            return;
+                        }
+                    }
+                }
+                // Like calculate, bloomFilterMerger is only ever touched from jobQueue.
+                BloomFilter filter = bloomFilterMerger.getLastFilter();
+                List<byte[]> added = null;
+                // The fast catchup time is the earliest creation time less a week, see FilterMerger.calculate
+                if (filter != null && earliestTimeSecs - 86400 * 7 >= getFastCatchupTimeSecs() &&
+                        (!requiresUpdateAll || filter.getUpdateFlag() == BloomFilter.BloomUpdate.UPDATE_ALL))
+                    added = bloomFilterMerger.insertIntoLastFilter(elements);
+                if (added == null) {
+                    recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+                    return;
+                }
+                if (added.isEmpty())
+                    return;
+                log.info("Extending Bloom filter with {} elements", added.size());
+                for (Peer peer : peers /* COW */) {
+                    if (peer.getBloomFilter() == filter)
+                        peer.addToBloomFilter(added, true);
+                    else
+                        peer.setBloomFilter(filter, true);  // Has an older filter, so extending it isn't enough.
+                }
+            }
+        };
+        try {
+            executor.execute(command);
+        } catch (RejectedExecutionException e) {
+            // Can happen during shutdown.
+        }
+    }
+
     /**
      * <p>Sets the false positive rate of bloom filters given to peers. The default is {@link #DEFAULT_BLOOM_FILTER_FP_RATE}.</p>
      *
@@ -2394,4 +2479,22 @@ public class PeerGroup implements TransactionBroadcaster {
     public boolean isBloomFilteringEnabled() {
         return vBloomFilteringEnabled;
     }
+
+    /**
+     * <p>If enabled, keys and watched scripts added to wallets are inserted into the current Bloom filter and sent to
+     * peers in filteradd messages, rather than the filter being worked out again from every key and script and
+     * reloaded on every peer. For wallets with very many keys this saves a lot of work for each key added by lookahead.
+     * The whole filter is still recalculated when the additions would take it over its false positive rate.</p>
+     *
+     * <p>Be aware that filteradd messages reveal exactly which keys and scripts are yours to the connected peers, where
+     * a filter only narrows it down. For this reason it's disabled by default.</p>
+     */
+    public void setIncrementalBloomFilterUpdatesEnabled(boolean incrementalBloomFilterUpdatesEnabled) {
+        this.vIncrementalBloomFilterUpdatesEnabled = incrementalBloomFilterUpdatesEnabled;
+    }
+
+    /** Returns whether new keys and scripts are sent to peers in filteradd messages: defaults to false. */
+    public boolean isIncrementalBloomFilterUpdatesEnabled() {
+        return vIncrementalBloomFilterUpdatesEnabled;
+    }
 }
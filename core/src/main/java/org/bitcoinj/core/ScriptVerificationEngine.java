@@ -0,0 +1,384 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Runs the scripts of transactions in parallel, as done by {@link FullPrunedBlockChain} when connecting blocks.
+ * The engine is long lived and can be shared between chains: it wraps an {@link ExecutorService} that it never shuts
+ * down by itself, so any executor can be injected, for example a {@link java.util.concurrent.ForkJoinPool} or an
+ * executor creating a virtual thread per task. If none is given, a fixed pool with one daemon thread per core is
+ * created. Chains that aren't given an engine all share the one returned by {@link #getDefault()}.</p>
+ *
+ * <p>Work is split by input rather than by transaction, so that a block with a few huge transactions keeps all
+ * threads busy. Inputs are packed into chunks of {@code inputsPerChunk} (which may span transactions) and every chunk
+ * is one task, which verifies the OP_CHECKSIG signatures of all its inputs with one call to
+ * {@link ECKey#verifyBatch}. To verify a block, create a {@link Batch}, {@link Batch#add add} its transactions and
+ * then call {@link Batch#verify()}. The first failing input cancels the rest of its batch, other batches are not affected.</p>
+ */
+public class ScriptVerificationEngine {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerificationEngine.class);
+
+    /** The number of inputs verified per task by an engine created without specifying it. */
+    public static final int DEFAULT_INPUTS_PER_CHUNK = 16;
+
+    private final ExecutorService executor;
+    private final int inputsPerChunk;
+
+    private final AtomicLong inputsVerified = new AtomicLong();
+    private final AtomicLong batchesVerified = new AtomicLong();
+    private final AtomicLong batchesFailed = new AtomicLong();
+    private final AtomicLong verificationNanos = new AtomicLong();
+
+    private static ScriptVerificationEngine defaultEngine;
+
+    /**
+     * Returns the engine used by chains that weren't given one, creating it on first use. Its pool threads are daemon
+     * threads that stay around for the lifetime of the process, so it never needs to be shut down.
+     */
+    public static synchronized ScriptVerificationEngine getDefault() {
+        if (defaultEngine == null)
+            defaultEngine = new ScriptVerificationEngine();
+        return defaultEngine;
+    }
+
+    /** Creates an engine with a fixed thread pool of one thread per available processor. */
+    public ScriptVerificationEngine() {
+        this(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new ContextPropagatingThreadFactory("Script verification")), DEFAULT_INPUTS_PER_CHUNK);
+    }
+
+    /**
+     * Creates an engine running on the given executor. The executor is not shut down by the engine.
+     *
+     * @param inputsPerChunk number of inputs verified by each task submitted to the executor
+     */
+    public ScriptVerificationEngine(ExecutorService executor, int inputsPerChunk) {
+        checkArgument(inputsPerChunk > 0, "inputsPerChunk must be positive");
+        this.executor = checkNotNull(executor);
+        this.inputsPerChunk = inputsPerChunk;
+    }
+
+    /** Returns the executor that tasks are submitted to. */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Starts a new batch of inputs to verify.
+     *
+     * @param signatureCache Signatures already known to be valid, valid signatures are added to it. May be null.
+     */
+    public Batch newBatch(@Nullable SignatureCache signatureCache) {
+        return new Batch(signatureCache);
+    }
+
+    /** Returns the total number of inputs that were verified successfully. */
+    public long getInputsVerified() {
+        return inputsVerified.get();
+    }
+
+    /** Returns the number of batches that passed verification. */
+    public long getBatchesVerified() {
+        return batchesVerified.get();
+    }
+
+    /** Returns the number of batches that failed verification or were cancelled. */
+    public long getBatchesFailed() {
+        return batchesFailed.get();
+    }
+
+    /**
+     * Returns the average number of inputs verified per second, measured from the creation of each batch until its
+     * verification completed. Returns zero if nothing has been verified yet.
+     */
+    public double getInputsPerSecond() {
+        long nanos = verificationNanos.get();
+        return nanos == 0 ? 0 : inputsVerified.get() * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ScriptVerificationEngine{inputs=%d, batches=%d, failed=%d, %.0f inputs/sec}",
+                getInputsVerified(), getBatchesVerified(), getBatchesFailed(), getInputsPerSecond());
+    }
+
+    /** A transaction of a batch, serialized once so that each chunk can parse its own copy to run scripts on. */
+    private static class TransactionWork {
+        final NetworkParameters params;
+        final byte[] bytes;
+        final Set<VerifyFlag> verifyFlags;
+
+        TransactionWork(Transaction tx, Set<VerifyFlag> verifyFlags) {
+            this.params = tx.getParams();
+            this.bytes = tx.bitcoinSerialize();
+            this.verifyFlags = verifyFlags;
+        }
+    }
+
+    private static class InputWork {
+        final TransactionWork tx;
+        final int index;
+        final Script scriptPubKey;
+
+        InputWork(TransactionWork tx, int index, Script scriptPubKey) {
+            this.tx = tx;
+            this.index = index;
+            this.scriptPubKey = scriptPubKey;
+        }
+    }
+
+    /**
+     * The inputs of a set of transactions that are verified together, typically those of one block. Chunks are
+     * submitted to the executor as they fill up, so verification overlaps with adding more transactions. A batch is
+     * used by a single thread and can only be verified once.
+     */
+    public class Batch {
+        @Nullable private final SignatureCache signatureCache;
+        private final Context context;
+        private final long startNanos;
+        private final List<ChunkTask> tasks = new ArrayList<ChunkTask>();
+        private final AtomicReference<VerificationException> failure = new AtomicReference<VerificationException>();
+        private List<InputWork> chunk;
+        private int inputs;
+        private boolean done;
+
+        private Batch(@Nullable SignatureCache signatureCache) {
+            this.signatureCache = signatureCache;
+            this.context = Context.get();
+            this.startNanos = System.nanoTime();
+            this.chunk = new ArrayList<InputWork>(inputsPerChunk);
+        }
+
+        /**
+         * Adds all inputs of the given transaction. The transaction must not be modified until the batch has been
+         * verified or cancelled, as the scripts are run on copies of it made later on other threads.
+         *
+         * @param prevOutScripts the scriptPubKeys of the connected outputs, in input order
+         */
+        public void add(Transaction tx, List<Script> prevOutScripts, Set<VerifyFlag> verifyFlags) {
+            checkState(!done, "Batch already verified or cancelled");
+            int numInputs = tx.getInputs().size();
+            checkArgument(prevOutScripts.size() == numInputs, "Need one connected script per input");
+            if (failure.get() != null)
+                return;  // No point in doing more work, verify() is going to throw anyway.
+            TransactionWork work = new TransactionWork(tx, verifyFlags);
+            Iterator<Script> prevOutIt = prevOutScripts.iterator();
+            for (int i = 0; i < numInputs; i++) {
+                chunk.add(new InputWork(work, i, prevOutIt.next()));
+                if (chunk.size() == inputsPerChunk)
+                    submitChunk();
+            }
+        }
+
+        private void submitChunk() {
+            ChunkTask task = new ChunkTask(chunk);
+            inputs += chunk.size();
+            chunk = new ArrayList<InputWork>(inputsPerChunk);
+            task.future = executor.submit(task);
+            synchronized (tasks) {
+                tasks.add(task);
+            }
+        }
+
+        /**
+         * One chunk submitted to the executor. Whoever claims it first decides its fate: the executor thread runs it,
+         * a cancellation makes sure it never starts. That way a cancelled batch knows exactly which chunks are still
+         * running and can wait for them, something {@link Future#cancel(boolean)} can't tell.
+         */
+        private class ChunkTask implements Runnable {
+            final List<InputWork> work;
+            final AtomicBoolean claimed = new AtomicBoolean();
+            final CountDownLatch finished = new CountDownLatch(1);
+            volatile Future<?> future;
+
+            ChunkTask(List<InputWork> work) {
+                this.work = work;
+            }
+
+            @Override
+            public void run() {
+                if (!claimed.compareAndSet(false, true))
+                    return;  // Cancelled before it started.
+                try {
+                    Context.propagate(context);
+                    verifyChunk(work);
+                } finally {
+                    finished.countDown();
+                }
+            }
+
+            /** Stops the chunk from starting. Returns true if it had started already, it may still be running. */
+            boolean cancel() {
+                Future<?> future = this.future;
+                if (future != null)
+                    future.cancel(false);  // Only to get it out of the way, claiming is what keeps it from running.
+                return !claimed.compareAndSet(false, true);
+            }
+        }
+
+        private void verifyChunk(List<InputWork> work) {
+            // Inputs of one transaction may be spread over several chunks, so each chunk parses its own copy of it
+            // rather than sharing the caller's instance between threads. Its signature hashes are calculated with a
+            // context shared by all its inputs in the chunk.
+            Map<TransactionWork, SigHashContext> copies = new IdentityHashMap<TransactionWork, SigHashContext>();
+            // The signatures of OP_CHECKSIG are verified together once all scripts of the chunk have run. Inputs
+            // that failed with signatures assumed valid, or that turn out to have an invalid one, are run again
+            // verifying each signature as it comes, which gives the definitive answer.
+            SignatureBatch deferredSignatures = new SignatureBatch(signatureCache);
+            int[] batchEnds = new int[work.size()];
+            boolean[] recheck = new boolean[work.size()];
+            try {
+                for (int i = 0; i < work.size(); i++) {
+                    if (failure.get() != null)
+                        return;
+                    try {
+                        runScripts(work.get(i), copies, deferredSignatures);
+                    } catch (VerificationException e) {
+                        recheck[i] = true;
+                    }
+                    batchEnds[i] = deferredSignatures.size();
+                }
+                if (failure.get() != null)
+                    return;
+                boolean[] valid = deferredSignatures.verify();
+                int pos = 0;
+                for (int i = 0; i < work.size(); i++) {
+                    for (; pos < batchEnds[i]; pos++)
+                        recheck[i] |= !valid[pos];
+                }
+                for (int i = 0; i < work.size(); i++) {
+                    if (failure.get() != null)
+                        return;
+                    if (recheck[i])
+                        runScripts(work.get(i), copies, null);
+                }
+            } catch (VerificationException e) {
+                fail(e);
+            } catch (RuntimeException e) {
+                log.error("Script.correctlySpends threw a non-normal exception: " + e);
+                fail(new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", e));
+            }
+        }
+
+        private void runScripts(InputWork input, Map<TransactionWork, SigHashContext> copies,
+                                @Nullable SignatureBatch deferredSignatures) throws VerificationException {
+            SigHashContext context = copies.get(input.tx);
+            if (context == null) {
+                context = new SigHashContext(input.tx.params.getDefaultSerializer().makeTransaction(input.tx.bytes));
+                copies.put(input.tx, context);
+            }
+            Script scriptSig = context.getTransaction().getInput(input.index).getScriptSig();
+            scriptSig.correctlySpends(context, input.index, input.scriptPubKey, input.tx.verifyFlags, signatureCache,
+                    deferredSignatures);
+        }
+
+        private void fail(VerificationException e) {
+            if (failure.compareAndSet(null, e))
+                cancelTasks();
+        }
+
+        /** Cancels all chunks and returns the ones that had started already. */
+        private List<ChunkTask> cancelTasks() {
+            // Don't interrupt running tasks, they notice the failure between inputs. This leaves the pool intact.
+            List<ChunkTask> started = new ArrayList<ChunkTask>();
+            synchronized (tasks) {
+                for (ChunkTask task : tasks)
+                    if (task.cancel())
+                        started.add(task);
+            }
+            return started;
+        }
+
+        /**
+         * Waits for all inputs added to this batch to be verified.
+         *
+         * @throws VerificationException the first failure that was found. The remaining work is cancelled, and chunks
+         * that were already running have finished by the time this is thrown.
+         */
+        public void verify() throws VerificationException {
+            checkState(!done, "Batch already verified or cancelled");
+            if (!chunk.isEmpty() && failure.get() == null)
+                submitChunk();
+            done = true;
+            try {
+                List<ChunkTask> toWaitFor;
+                synchronized (tasks) {
+                    toWaitFor = new ArrayList<ChunkTask>(tasks);
+                }
+                for (ChunkTask task : toWaitFor) {
+                    if (failure.get() != null)
+                        break;
+                    try {
+                        task.future.get();
+                    } catch (CancellationException e) {
+                        // Only happens after a failure was recorded.
+                    } catch (ExecutionException e) {
+                        fail(new VerificationException("Script verification failed unexpectedly.", e.getCause()));
+                    }
+                }
+                if (failure.get() != null) {
+                    // Chunks that were running when the failure was found stop at their next input, wait for them so
+                    // that nothing of this batch is still using the executor or the signature cache once we return.
+                    for (ChunkTask task : cancelTasks())
+                        task.finished.await();
+                }
+            } catch (InterruptedException e) {
+                cancelTasks();
+                throw new RuntimeException(e); // Shouldn't happen
+            } finally {
+                verificationNanos.addAndGet(System.nanoTime() - startNanos);
+            }
+            VerificationException e = failure.get();
+            if (e != null) {
+                batchesFailed.incrementAndGet();
+                throw e;
+            }
+            inputsVerified.addAndGet(inputs);
+            batchesVerified.incrementAndGet();
+        }
+
+        /** Abandons this batch, for example because the block failed other checks. Running tasks finish early. */
+        public void cancel() {
+            if (done)
+                return;
+            done = true;
+            failure.compareAndSet(null, new VerificationException("Script verification cancelled"));
+            cancelTasks();
+            batchesFailed.incrementAndGet();
+        }
+    }
+}
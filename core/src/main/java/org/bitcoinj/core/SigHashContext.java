@@ -0,0 +1,183 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.Transaction.SigHash;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptOpCodes;
+
+import java.util.List;
+
+/**
+ * <p>Calculates the signature hashes of all inputs of a transaction without copying it for every input, as
+ * {@link Transaction#hashForSignature(int, byte[], byte)} does. The parts of the transaction that signatures cover
+ * are serialized once, when the context is created: the outpoints and sequence numbers of the inputs, the outputs,
+ * and the version and lock time. The simplified transaction of each input is then assembled from these pieces in
+ * a buffer that is reused between calls, so signing or verifying all inputs of a transaction with hundreds of
+ * inputs no longer parses and re-serializes the whole transaction each time.</p>
+ *
+ * <p>The scripts of inputs are not covered by signatures, so a context stays valid while the inputs are being
+ * signed. Any other change to the transaction requires a new context. A context is not thread safe.</p>
+ */
+public class SigHashContext {
+    // What SignatureHash in Bitcoin Core returns for SIGHASH_SINGLE without a matching output, see Transaction.
+    private static final Sha256Hash SIGHASH_SINGLE_BUG =
+            Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+    // Outpoint, empty script and sequence number.
+    private static final int BLANK_INPUT_LENGTH = 36 + 1 + 4;
+    // Value of -1 and an empty script, as written by SIGHASH_SINGLE for the outputs before the signed one.
+    private static final int NULL_OUTPUT_LENGTH = 8 + 1;
+
+    private final Transaction tx;
+    private final long version;
+    private final long lockTime;
+    private final int numInputs;
+    private final long[] sequenceNumbers;
+    // All inputs with empty scripts, as signed by SIGHASH_ALL.
+    private final byte[] blankInputs;
+    // The same but with zero sequence numbers, as signed by SIGHASH_NONE and SIGHASH_SINGLE. Created when needed.
+    private byte[] blankInputsZeroSequence;
+    private final byte[][] outputs;
+    // All outputs including their count, as signed by SIGHASH_ALL.
+    private final byte[] allOutputs;
+
+    private byte[] buffer = new byte[0];
+    private int position;
+
+    public SigHashContext(Transaction tx) {
+        this.tx = tx;
+        this.version = tx.getVersion();
+        this.lockTime = tx.getLockTime();
+        List<TransactionInput> inputs = tx.getInputs();
+        this.numInputs = inputs.size();
+        this.sequenceNumbers = new long[numInputs];
+        this.blankInputs = new byte[numInputs * BLANK_INPUT_LENGTH];
+        for (int i = 0; i < numInputs; i++) {
+            TransactionInput input = inputs.get(i);
+            sequenceNumbers[i] = input.getSequenceNumber();
+            int offset = i * BLANK_INPUT_LENGTH;
+            System.arraycopy(input.getOutpoint().bitcoinSerialize(), 0, blankInputs, offset, 36);
+            blankInputs[offset + 36] = 0;
+            Utils.uint32ToByteArrayLE(sequenceNumbers[i], blankInputs, offset + 37);
+        }
+        List<TransactionOutput> txOutputs = tx.getOutputs();
+        this.outputs = new byte[txOutputs.size()][];
+        int outputsLength = VarInt.sizeOf(outputs.length);
+        for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = txOutputs.get(i).bitcoinSerialize();
+            outputsLength += outputs[i].length;
+        }
+        this.allOutputs = new byte[outputsLength];
+        byte[] count = new VarInt(outputs.length).encode();
+        System.arraycopy(count, 0, allOutputs, 0, count.length);
+        int offset = count.length;
+        for (byte[] output : outputs) {
+            System.arraycopy(output, 0, allOutputs, offset, output.length);
+            offset += output.length;
+        }
+    }
+
+    /** Returns the transaction this context was created for. */
+    public Transaction getTransaction() {
+        return tx;
+    }
+
+    /** Same as {@link Transaction#hashForSignature(int, byte[], SigHash, boolean)}. */
+    public Sha256Hash hashForSignature(int inputIndex, byte[] redeemScript, SigHash type, boolean anyoneCanPay) {
+        return hashForSignature(inputIndex, redeemScript, (byte) TransactionSignature.calcSigHashValue(type, anyoneCanPay));
+    }
+
+    /** Same as {@link Transaction#hashForSignature(int, byte[], byte)}. */
+    public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        // See Transaction.hashForSignature() for the meaning of each step.
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+        int mode = sigHashType & 0x1f;
+        boolean none = mode == SigHash.NONE.value;
+        boolean single = mode == SigHash.SINGLE.value;
+        boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
+        if (single && inputIndex >= outputs.length)
+            return SIGHASH_SINGLE_BUG;
+        // Sequence numbers of the other inputs are zeroed for SIGHASH_NONE and SIGHASH_SINGLE, but not our own.
+        byte[] otherInputs = none || single ? getBlankInputsZeroSequence() : blankInputs;
+
+        position = 0;
+        ensureCapacity(4 + 9 + blankInputs.length + VarInt.sizeOf(connectedScript.length) + connectedScript.length
+                + allOutputs.length + 4 + 4);
+        writeUint32(version);
+        if (anyoneCanPay) {
+            writeVarInt(1);
+            writeInput(inputIndex, connectedScript);
+        } else {
+            writeVarInt(numInputs);
+            write(otherInputs, 0, inputIndex * BLANK_INPUT_LENGTH);
+            writeInput(inputIndex, connectedScript);
+            int next = (inputIndex + 1) * BLANK_INPUT_LENGTH;
+            write(otherInputs, next, otherInputs.length - next);
+        }
+        if (none) {
+            writeVarInt(0);
+        } else if (single) {
+            writeVarInt(inputIndex + 1);
+            for (int i = 0; i < inputIndex; i++) {
+                Utils.uint64ToByteArrayLE(-1, buffer, position);
+                buffer[position + 8] = 0;
+                position += NULL_OUTPUT_LENGTH;
+            }
+            write(outputs[inputIndex], 0, outputs[inputIndex].length);
+        } else {
+            write(allOutputs, 0, allOutputs.length);
+        }
+        writeUint32(lockTime);
+        writeUint32(0x000000ff & sigHashType);
+        return Sha256Hash.wrap(Sha256Hash.hashTwice(buffer, 0, position));
+    }
+
+    private byte[] getBlankInputsZeroSequence() {
+        if (blankInputsZeroSequence == null) {
+            blankInputsZeroSequence = blankInputs.clone();
+            for (int i = 0; i < numInputs; i++)
+                Utils.uint32ToByteArrayLE(0, blankInputsZeroSequence, i * BLANK_INPUT_LENGTH + 37);
+        }
+        return blankInputsZeroSequence;
+    }
+
+    private void writeInput(int inputIndex, byte[] script) {
+        write(blankInputs, inputIndex * BLANK_INPUT_LENGTH, 36);
+        writeVarInt(script.length);
+        write(script, 0, script.length);
+        writeUint32(sequenceNumbers[inputIndex]);
+    }
+
+    private void ensureCapacity(int length) {
+        if (buffer.length < length)
+            buffer = new byte[length];
+    }
+
+    private void write(byte[] bytes, int offset, int length) {
+        System.arraycopy(bytes, offset, buffer, position, length);
+        position += length;
+    }
+
+    private void writeVarInt(long value) {
+        byte[] encoded = new VarInt(value).encode();
+        write(encoded, 0, encoded.length);
+    }
+
+    private void writeUint32(long value) {
+        Utils.uint32ToByteArrayLE(value, buffer, position);
+        position += 4;
+    }
+}
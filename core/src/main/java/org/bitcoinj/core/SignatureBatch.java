@@ -0,0 +1,81 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Collects signatures so that they can be verified together with {@link ECKey#verifyBatch}, which is cheaper than
+ * verifying them one at a time when native verification is enabled. Signatures already present in the optional
+ * {@link SignatureCache} are not collected, and valid ones are added to it once the batch has been verified.</p>
+ *
+ * <p>Script execution can defer signature checks into a batch, see
+ * {@link org.bitcoinj.script.Script#correctlySpends(Transaction, long, org.bitcoinj.script.Script, java.util.Set, SignatureCache, SignatureBatch)}.
+ * A batch is not thread safe.</p>
+ */
+public class SignatureBatch {
+    @Nullable private final SignatureCache signatureCache;
+    private final List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+    private final List<ECKey.ECDSASignature> signatures = new ArrayList<ECKey.ECDSASignature>();
+    private final List<byte[]> pubKeys = new ArrayList<byte[]>();
+
+    public SignatureBatch(@Nullable SignatureCache signatureCache) {
+        this.signatureCache = signatureCache;
+    }
+
+    /** Adds a signature to verify later, unless the signature cache already knows it is valid. */
+    public void add(Sha256Hash sigHash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        if (signatureCache != null && signatureCache.lookup(sigHash, signature, pubKey))
+            return;
+        hashes.add(sigHash);
+        signatures.add(signature);
+        pubKeys.add(pubKey);
+    }
+
+    /** Returns the number of signatures waiting to be verified. */
+    public int size() {
+        return hashes.size();
+    }
+
+    /**
+     * Verifies all signatures added since the batch was created or last cleared, and then clears it.
+     *
+     * @return one result per signature, in the order they were added
+     */
+    public boolean[] verify() {
+        int size = size();
+        byte[][] data = new byte[size][];
+        for (int i = 0; i < size; i++)
+            data[i] = hashes.get(i).getBytes();
+        boolean[] results = ECKey.verifyBatch(data, signatures.toArray(new ECKey.ECDSASignature[size]),
+                pubKeys.toArray(new byte[size][]));
+        if (signatureCache != null) {
+            for (int i = 0; i < size; i++)
+                if (results[i])
+                    signatureCache.putValid(hashes.get(i), signatures.get(i), pubKeys.get(i));
+        }
+        clear();
+        return results;
+    }
+
+    /** Forgets all signatures waiting to be verified. */
+    public void clear() {
+        hashes.clear();
+        signatures.clear();
+        pubKeys.clear();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Remembers which (signature hash, public key, signature) triples have already been found to be valid, so that
+ * verifying them again does not require another ECDSA verification. This is modelled on the signature cache of
+ * Bitcoin Core, where transactions are verified once when they enter the memory pool and then again when they are
+ * connected as part of a block, or re-connected during a re-org.</p>
+ *
+ * <p>Only valid signatures are remembered, so the cache cannot be used to make an invalid signature pass. Entries
+ * are identified by a SHA-256 digest of the triple, and the least recently used entries are evicted once
+ * {@code maxEntries} is reached. The cache is safe to use from many threads at once.</p>
+ *
+ * <p>One instance is owned by every {@link Context}, see {@link Context#getSignatureCache()}. It is consulted by
+ * {@link org.bitcoinj.script.Script#correctlySpends(Transaction, long, org.bitcoinj.script.Script, java.util.Set, SignatureCache)}
+ * and thus by {@link FullPrunedBlockChain} when it verifies scripts.</p>
+ *
+ * <p>Note that bitcoinj has no memory pool and doesn't run the scripts of loose transactions, so nothing fills the
+ * cache before a block is connected. Out of the box it only saves work when the same signatures are verified again,
+ * for example when a re-org re-connects blocks, or when a block is retried after it failed other checks. An
+ * application that verifies pending transactions itself can get Bitcoin Core's benefit by passing this cache to
+ * {@link org.bitcoinj.script.Script#correctlySpends(Transaction, long, org.bitcoinj.script.Script, java.util.Set, SignatureCache)}
+ * when it does.</p>
+ */
+public class SignatureCache {
+    /** The maximum number of entries held by a cache created with the no-args constructor, roughly 15MB of heap. */
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    private final Cache<Sha256Hash, Boolean> validSignatures;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public SignatureCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public SignatureCache(int maxEntries) {
+        validSignatures = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .build();
+    }
+
+    /**
+     * Verifies the given signature like {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])}, but returns
+     * immediately if the same signature was already found to be valid for the same hash and public key.
+     */
+    public boolean verify(Sha256Hash sigHash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        Sha256Hash entry = entryFor(sigHash, signature, pubKey);
+        if (validSignatures.getIfPresent(entry) != null) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        boolean valid = ECKey.verify(sigHash.getBytes(), signature, pubKey);
+        if (valid)
+            validSignatures.put(entry, Boolean.TRUE);
+        return valid;
+    }
+
+    /** Like {@link #contains} but counts a hit if the signature is cached, for callers that verify it elsewhere. */
+    boolean lookup(Sha256Hash sigHash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        if (!contains(sigHash, signature, pubKey))
+            return false;
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /** Remembers a signature that was verified elsewhere, counting the verification as a miss. */
+    void putValid(Sha256Hash sigHash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        misses.incrementAndGet();
+        validSignatures.put(entryFor(sigHash, signature, pubKey), Boolean.TRUE);
+    }
+
+    /** Returns whether the given signature has been verified as valid before and is still cached. */
+    public boolean contains(Sha256Hash sigHash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        return validSignatures.getIfPresent(entryFor(sigHash, signature, pubKey)) != null;
+    }
+
+    private static Sha256Hash entryFor(Sha256Hash sigHash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        // The public key is the only variable length part, so concatenating is unambiguous.
+        byte[] bytes = new byte[32 + pubKey.length + 64];
+        System.arraycopy(sigHash.getBytes(), 0, bytes, 0, 32);
+        System.arraycopy(pubKey, 0, bytes, 32, pubKey.length);
+        System.arraycopy(Utils.bigIntegerToBytes(signature.r, 32), 0, bytes, 32 + pubKey.length, 32);
+        System.arraycopy(Utils.bigIntegerToBytes(signature.s, 32), 0, bytes, 64 + pubKey.length, 32);
+        return Sha256Hash.of(bytes);
+    }
+
+    /** Returns the number of verifications that were answered from the cache. */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** Returns the number of verifications that had to do the full ECDSA verification. */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /** Returns the approximate number of valid signatures currently remembered. */
+    public long size() {
+        return validSignatures.size();
+    }
+
+    /** Forgets all signatures. The hit and miss counters are not reset. */
+    public void clear() {
+        validSignatures.invalidateAll();
+    }
+
+    @Override
+    public String toString() {
+        return "SignatureCache{size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + "}";
+    }
+}
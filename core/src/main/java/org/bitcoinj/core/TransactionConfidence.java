@@ -72,6 +72,8 @@ public class TransactionConfidence {
     private final Sha256Hash hash;
     // Lazily created listeners array.
     private CopyOnWriteArrayList<ListenerRegistration<Listener>> listeners;
+    // Shared by every confidence object, as each registration belongs to exactly one of them.
+    private static final EventCoalescer seenPeersEvents = new EventCoalescer();
 
     // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0.
     private int depth;
@@ -442,15 +444,22 @@ public class TransactionConfidence {
      * explicitly rather than being done automatically because sometimes complex changes to transaction states can
      * result in a series of confidence changes that are not really useful to see separately. By invoking listeners
      * explicitly, more precise control is available. Note that this will run the listeners on the user code thread.
+     *
+     * <p>A flood of announcements can queue far more {@link Listener.ChangeReason#SEEN_PEERS} events than a listener
+     * keeps up with, so one of those is dropped if the same listener still has one waiting.</p>
      */
     public void queueListeners(final Listener.ChangeReason reason) {
         for (final ListenerRegistration<Listener> registration : listeners) {
-            registration.executor.execute(new Runnable() {
+            Runnable event = new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onConfidenceChanged(TransactionConfidence.this, reason);
                 }
-            });
+            };
+            if (reason == Listener.ChangeReason.SEEN_PEERS)
+                seenPeersEvents.execute(registration.executor, registration, event);
+            else
+                registration.executor.execute(event);
         }
     }
 
@@ -218,7 +218,7 @@ public class DeterministicKey extends ECKey {
      * Returns RIPE-MD160(SHA256(pub key bytes)).
      */
     public byte[] getIdentifier() {
-        return Utils.sha256hash160(getPubKey());
+        return getPubKeyHash().clone();   // The same hash, but worked out only once.
     }
 
     /** Returns the first 32 bits of the result of {@link #getIdentifier()}. */
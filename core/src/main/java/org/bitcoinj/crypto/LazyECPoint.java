@@ -53,7 +53,7 @@ public class LazyECPoint {
 
     public ECPoint get() {
         if (point == null)
-            point = curve.decodePoint(bits);
+            point = PubKeyCache.get().decodePoint(curve, bits);
         return point;
     }
 
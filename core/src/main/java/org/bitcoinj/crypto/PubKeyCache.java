@@ -0,0 +1,168 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Utils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.spongycastle.math.ec.ECCurve;
+import org.spongycastle.math.ec.ECPoint;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Remembers decoded points and hash160s of the public keys held by key chains, so that they are worked out once
+ * rather than once per object holding the key. Keys are copied a lot, for example when a {@link DeterministicKey}
+ * drops its private bytes or parent, or a key chain is encrypted or decrypted, and each copy used to decode its point
+ * and hash its public key afresh. Both are used when building Bloom filters, scripts and extended public keys.</p>
+ *
+ * <p>Only keys passed to {@link #add(ECKey)} get an entry, which {@link org.bitcoinj.wallet.BasicKeyChain} does for
+ * every key it imports or deserializes. {@link LazyECPoint#get()} and {@link ECKey#getPubKeyHash()} consult the cache
+ * and fill in entries that already exist, but the many short lived keys made for signing, lookups or script parsing
+ * are worked out without being remembered, so they can't push out the keys of a wallet.</p>
+ *
+ * <p>The least recently used entries are evicted once {@code maxEntries} is reached. One instance is shared by
+ * everything, see {@link #get()}. The cache is safe to use from many threads at once.</p>
+ */
+public class PubKeyCache {
+    /**
+     * The maximum number of entries held by a cache created with the no-args constructor, the same as
+     * {@link org.bitcoinj.core.SignatureCache}. Wallets with more keys than this should {@link #set(PubKeyCache)}
+     * a bigger cache before loading.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    private static volatile PubKeyCache instance = new PubKeyCache();
+
+    /** Returns the cache in use. */
+    public static PubKeyCache get() {
+        return instance;
+    }
+
+    /** Replaces the cache in use, e.g. with a bigger one for a wallet with a great many keys. */
+    public static void set(PubKeyCache cache) {
+        instance = checkNotNull(cache);
+    }
+
+    // What is known about one encoded public key. Either field may be filled in by any thread at any time, and as
+    // they are always worked out from the same bytes it doesn't matter who wins.
+    private static class Entry {
+        volatile ECPoint point;
+        volatile byte[] hash160;
+    }
+
+    private final Cache<ByteBuffer, Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public PubKeyCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public PubKeyCache(int maxEntries) {
+        entries = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .build();
+    }
+
+    /**
+     * Remembers the public key of the given key, along with its hash160, so that copies of it don't have to work them
+     * out again. Meant for keys that live as long as the key chain holding them.
+     */
+    public void add(ECKey key) {
+        byte[] encoded = key.getPubKey();
+        Entry entry = entries.getIfPresent(ByteBuffer.wrap(encoded));
+        if (entry == null) {
+            // Copy what we keep, in case the caller reuses their array.
+            Entry fresh = new Entry();
+            entry = entries.asMap().putIfAbsent(ByteBuffer.wrap(encoded.clone()), fresh);
+            if (entry == null)
+                entry = fresh;
+        }
+        if (entry.hash160 == null)
+            entry.hash160 = key.getPubKeyHash().clone();
+    }
+
+    /**
+     * Decodes the given public key like {@link ECCurve#decodePoint(byte[])}, unless it has been decoded before. The
+     * point is only remembered if the key was {@link #add(ECKey)}ed.
+     */
+    public ECPoint decodePoint(ECCurve curve, byte[] encoded) {
+        if (curve != ECKey.CURVE.getCurve())
+            return curve.decodePoint(encoded);   // Entries are only for the curve we use.
+        Entry entry = entries.getIfPresent(ByteBuffer.wrap(encoded));
+        ECPoint point = entry != null ? entry.point : null;
+        if (point != null) {
+            hits.incrementAndGet();
+            return point;
+        }
+        misses.incrementAndGet();
+        point = curve.decodePoint(encoded);
+        if (entry != null)
+            entry.point = point;
+        return point;
+    }
+
+    /**
+     * Returns RIPEMD160(SHA256(encoded)) like {@link Utils#sha256hash160(byte[])}, unless it was worked out before. The
+     * hash is only remembered if the key was {@link #add(ECKey)}ed.
+     */
+    public byte[] getPubKeyHash(byte[] encoded) {
+        Entry entry = entries.getIfPresent(ByteBuffer.wrap(encoded));
+        byte[] hash160 = entry != null ? entry.hash160 : null;
+        if (hash160 != null) {
+            hits.incrementAndGet();
+            // The caller owns what we return, so they mustn't be able to change what the next caller gets.
+            return hash160.clone();
+        }
+        misses.incrementAndGet();
+        hash160 = Utils.sha256hash160(encoded);
+        if (entry != null)
+            entry.hash160 = hash160.clone();
+        return hash160;
+    }
+
+    /** Returns the number of lookups that were answered from the cache. */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** Returns the number of lookups that had to decode a point or hash a public key. */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /** Returns the approximate number of public keys currently remembered. */
+    public long size() {
+        return entries.size();
+    }
+
+    /** Forgets all public keys. The hit and miss counters are not reset. */
+    public void clear() {
+        entries.invalidateAll();
+    }
+
+    @Override
+    public String toString() {
+        return "PubKeyCache{size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + "}";
+    }
+}
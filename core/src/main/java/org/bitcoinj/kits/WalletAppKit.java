@@ -389,22 +389,18 @@ public class WalletAppKit extends AbstractIdleService {
 
     private Wallet loadWallet(boolean shouldReplayWallet) throws Exception {
         Wallet wallet;
-        FileInputStream walletStream = new FileInputStream(vWalletFile);
-        try {
-            List<WalletExtension> extensions = provideWalletExtensions();
-            WalletExtension[] extArray = extensions.toArray(new WalletExtension[extensions.size()]);
-            Protos.Wallet proto = WalletProtobufSerializer.parseToProto(walletStream);
-            final WalletProtobufSerializer serializer;
-            if (walletFactory != null)
-                serializer = new WalletProtobufSerializer(walletFactory);
-            else
-                serializer = new WalletProtobufSerializer();
-            wallet = serializer.readWallet(params, extArray, proto);
-            if (shouldReplayWallet)
-                wallet.reset();
-        } finally {
-            walletStream.close();
-        }
+        List<WalletExtension> extensions = provideWalletExtensions();
+        WalletExtension[] extArray = extensions.toArray(new WalletExtension[extensions.size()]);
+        // Also picks up the journal if setupAutoSave was overridden to use journal mode.
+        Protos.Wallet proto = WalletProtobufSerializer.parseToProto(vWalletFile);
+        final WalletProtobufSerializer serializer;
+        if (walletFactory != null)
+            serializer = new WalletProtobufSerializer(walletFactory);
+        else
+            serializer = new WalletProtobufSerializer();
+        wallet = serializer.readWallet(params, extArray, proto);
+        if (shouldReplayWallet)
+            wallet.reset();
         return wallet;
     }
 
@@ -0,0 +1,161 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A pool of {@link ByteBuffer}s shared by the connections of this package, so that opening and closing connections
+ * and queueing messages for writing doesn't keep allocating buffers. Direct buffers are particularly expensive to
+ * allocate and are only reclaimed by the garbage collector indirectly.</p>
+ *
+ * <p>Buffers are handed out in size classes, powers of two from {@link #MIN_POOLED_SIZE} to {@link #MAX_POOLED_SIZE},
+ * so a buffer may have a larger capacity than was asked for. Larger requests are served by a new buffer that isn't
+ * pooled. Every size class keeps at most {@code maxRetainedBytesPerClass} bytes worth of free buffers, surplus buffers
+ * are left to the garbage collector.</p>
+ *
+ * <p>A buffer must be {@link #release released} at most once and not be used afterwards, as it may already have been
+ * handed out again. The pool is safe to use from many threads at once.</p>
+ */
+public class BufferPool {
+    /** The smallest size class. */
+    public static final int MIN_POOLED_SIZE = 4096;
+    /** The largest size class, larger buffers are allocated on each request. */
+    public static final int MAX_POOLED_SIZE = 1024 * 1024;
+    /** The bytes of free buffers kept per size class by the {@link #getDefault() default} pool. */
+    public static final int DEFAULT_MAX_RETAINED_BYTES_PER_CLASS = 8 * 1024 * 1024;
+
+    private static final int NUM_CLASSES = Integer.numberOfTrailingZeros(MAX_POOLED_SIZE)
+            - Integer.numberOfTrailingZeros(MIN_POOLED_SIZE) + 1;
+
+    private static final BufferPool DEFAULT = new BufferPool(DEFAULT_MAX_RETAINED_BYTES_PER_CLASS);
+
+    private final SizeClass[] direct = new SizeClass[NUM_CLASSES];
+    private final SizeClass[] heap = new SizeClass[NUM_CLASSES];
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong outstanding = new AtomicLong();
+
+    private static class SizeClass {
+        final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+        // Approximate, only used to bound the number of free buffers.
+        final AtomicInteger numFree = new AtomicInteger();
+        final int maxFree;
+
+        SizeClass(int maxFree) {
+            this.maxFree = maxFree;
+        }
+    }
+
+    public BufferPool(int maxRetainedBytesPerClass) {
+        checkArgument(maxRetainedBytesPerClass >= 0);
+        for (int i = 0; i < NUM_CLASSES; i++) {
+            int maxFree = maxRetainedBytesPerClass / (MIN_POOLED_SIZE << i);
+            direct[i] = new SizeClass(maxFree);
+            heap[i] = new SizeClass(maxFree);
+        }
+    }
+
+    /** Returns the pool used by the connections of this package. */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /** Returns a cleared direct buffer with a capacity of at least the given number of bytes. */
+    public ByteBuffer acquireDirect(int minCapacity) {
+        return acquire(direct, minCapacity, true);
+    }
+
+    /** Returns a cleared heap buffer with a capacity of at least the given number of bytes. */
+    public ByteBuffer acquireHeap(int minCapacity) {
+        return acquire(heap, minCapacity, false);
+    }
+
+    private ByteBuffer acquire(SizeClass[] classes, int minCapacity, boolean isDirect) {
+        checkArgument(minCapacity >= 0);
+        outstanding.incrementAndGet();
+        int index = classIndex(minCapacity);
+        if (index < 0) {
+            misses.incrementAndGet();
+            return allocate(minCapacity, isDirect);
+        }
+        SizeClass sizeClass = classes[index];
+        ByteBuffer buffer = sizeClass.free.poll();
+        if (buffer == null) {
+            misses.incrementAndGet();
+            return allocate(MIN_POOLED_SIZE << index, isDirect);
+        }
+        sizeClass.numFree.decrementAndGet();
+        hits.incrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    private static ByteBuffer allocate(int capacity, boolean isDirect) {
+        return isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /** Returns a buffer obtained from this pool, so that it can be handed out again. */
+    public void release(ByteBuffer buffer) {
+        outstanding.decrementAndGet();
+        int capacity = buffer.capacity();
+        int index = classIndex(capacity);
+        if (index < 0 || capacity != MIN_POOLED_SIZE << index)
+            return; // Not one of ours.
+        SizeClass sizeClass = (buffer.isDirect() ? direct : heap)[index];
+        if (sizeClass.numFree.incrementAndGet() > sizeClass.maxFree) {
+            sizeClass.numFree.decrementAndGet();
+            return;
+        }
+        sizeClass.free.offer(buffer);
+    }
+
+    // Returns the index of the smallest size class holding the given capacity, or -1 if it's too large to be pooled.
+    private static int classIndex(int capacity) {
+        if (capacity > MAX_POOLED_SIZE)
+            return -1;
+        if (capacity <= MIN_POOLED_SIZE)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - Integer.numberOfTrailingZeros(MIN_POOLED_SIZE);
+    }
+
+    /** Returns the number of requests that were served by a pooled buffer. */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** Returns the number of requests that required a new buffer to be allocated. */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /** Returns the number of buffers that were handed out and not released yet. */
+    public long getOutstandingCount() {
+        return outstanding.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{hits=" + getHitCount() + ", misses=" + getMissCount() + ", outstanding="
+                + getOutstandingCount() + "}";
+    }
+}
@@ -26,12 +26,14 @@ import javax.annotation.concurrent.GuardedBy;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -54,38 +56,66 @@ class ConnectionHandler implements MessageWriteTarget {
     // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
     // class into non-Java classes.
     private final ReentrantLock lock = Threading.lock("nioConnectionHandler");
-    @GuardedBy("lock") private final ByteBuffer readBuff;
+    private final BufferPool bufferPool;
+    // Only used by the thread handling our key. Returned to the pool once closed and no read is in progress, which
+    // readBuffReleased makes sure happens only once however closes and reads interleave.
+    private final ByteBuffer readBuff;
+    @GuardedBy("lock") private boolean reading = false;
+    @GuardedBy("lock") private boolean readBuffReleased = false;
     @GuardedBy("lock") private final SocketChannel channel;
     @GuardedBy("lock") private final SelectionKey key;
     @GuardedBy("lock") StreamConnection connection;
     @GuardedBy("lock") private boolean closeCalled = false;
 
-    @GuardedBy("lock") private long bytesToWriteRemaining = 0;
-    @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<ByteBuffer>();
+    // Appended to by any thread without locking, drained by tryWriteBytes() (with the lock held) on the selector thread.
+    private final AtomicLong bytesToWriteRemaining = new AtomicLong();
+    private final Queue<ByteBuffer> bytesToWrite = new ConcurrentLinkedQueue<ByteBuffer>();
+    // If set, the selector thread that owns our key drains this queue and does all writing and interestOps changes,
+    // so writers only ever enqueue. Otherwise writers flag OP_WRITE on the key themselves, under the lock.
+    @Nullable private final Queue<ConnectionHandler> writeQueue;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
 
     private Set<ConnectionHandler> connectedHandlers;
 
     public ConnectionHandler(StreamConnectionFactory connectionFactory, SelectionKey key) throws IOException {
-        this(connectionFactory.getNewConnection(((SocketChannel) key.channel()).socket().getInetAddress(), ((SocketChannel) key.channel()).socket().getPort()), key);
+        this(connectionFactory.getNewConnection(((SocketChannel) key.channel()).socket().getInetAddress(), ((SocketChannel) key.channel()).socket().getPort()), key, (Queue<ConnectionHandler>) null, BufferPool.getDefault());
         if (connection == null)
             throw new IOException("Parser factory.getNewConnection returned null");
     }
 
-    private ConnectionHandler(@Nullable StreamConnection connection, SelectionKey key) {
+    private ConnectionHandler(@Nullable StreamConnection connection, SelectionKey key,
+                              @Nullable Queue<ConnectionHandler> writeQueue, BufferPool bufferPool) {
         this.key = key;
+        this.bufferPool = bufferPool;
+        this.writeQueue = writeQueue;
         this.channel = checkNotNull(((SocketChannel)key.channel()));
         if (connection == null) {
             readBuff = null;
             return;
         }
         this.connection = connection;
-        readBuff = ByteBuffer.allocateDirect(Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        readBuff = bufferPool.acquireDirect(Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
         connection.setWriteTarget(this); // May callback into us (eg closeConnection() now)
         connectedHandlers = null;
     }
 
     public ConnectionHandler(StreamConnection connection, SelectionKey key, Set<ConnectionHandler> connectedHandlers) {
-        this(checkNotNull(connection), key);
+        this(connection, key, connectedHandlers, null);
+    }
+
+    /**
+     * Creates a handler whose writes are all performed by the selector thread owning the key. Writers add this handler
+     * to the given queue and wake up the selector, which must then pass it to {@link #handleScheduledWrite}.
+     */
+    public ConnectionHandler(StreamConnection connection, SelectionKey key, Set<ConnectionHandler> connectedHandlers,
+                             @Nullable Queue<ConnectionHandler> writeQueue) {
+        this(connection, key, connectedHandlers, writeQueue, BufferPool.getDefault());
+    }
+
+    // Takes its buffers from the given pool, for tests.
+    ConnectionHandler(StreamConnection connection, SelectionKey key, Set<ConnectionHandler> connectedHandlers,
+                      @Nullable Queue<ConnectionHandler> writeQueue, BufferPool bufferPool) {
+        this(checkNotNull(connection), key, writeQueue, bufferPool);
 
         // closeConnection() may have already happened because we invoked the other c'tor above, which called
         // connection.setWriteTarget which might have re-entered already. In this case we shouldn't add ourselves
@@ -108,25 +138,26 @@ class ConnectionHandler implements MessageWriteTarget {
         key.selector().wakeup();
     }
 
-    // Tries to write any outstanding write bytes, runs in any thread (possibly unlocked)
+    // Tries to write any outstanding write bytes, runs only in the selector thread handling our key
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
             // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
+            ByteBuffer buff;
+            while ((buff = bytesToWrite.peek()) != null) {
+                bytesToWriteRemaining.addAndGet(-channel.write(buff));
+                if (buff.hasRemaining()) {
                     setWriteOps();
-                    break;
+                    return;
                 }
+                bytesToWrite.poll();
+                // What's been written was taken off as it went, the rest of the buffer's capacity goes now.
+                bytesToWriteRemaining.addAndGet(-(buff.capacity() - buff.limit()));
+                releaseWriteBuff(buff);
             }
-            // If we are done writing, clear the OP_WRITE interestOps
-            if (bytesToWrite.isEmpty())
-                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            // We are done writing, clear the OP_WRITE interestOps. A writer racing with us either re-flags OP_WRITE
+            // after taking the lock or has scheduled us on the write queue, so its bytes are never left behind.
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
             // Don't bother waking up the selector here, since we're just removing an op, not adding
         } finally {
             lock.unlock();
@@ -135,36 +166,67 @@ class ConnectionHandler implements MessageWriteTarget {
 
     @Override
     public void writeBytes(byte[] message) throws IOException {
-        boolean andUnlock = true;
-        lock.lock();
         try {
             // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
             // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
             // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
             // register our SelectionKey to wakeup when we have free outbound buffer space available.
 
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
-                throw new IOException("Outbound buffer overflowed");
             // Just dump the message onto the write buffer and call tryWriteBytes
             // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
-            setWriteOps();
+            // Direct buffers save the channel from copying into a temporary direct buffer of its own, but aren't
+            // worth it for the occasional huge message that can't be pooled anyway. Nor for small messages like pings
+            // and invs, which would each pin a whole buffer of the smallest size class.
+            ByteBuffer buff;
+            if (message.length < BufferPool.MIN_POOLED_SIZE)
+                buff = ByteBuffer.allocate(message.length);
+            else if (message.length <= BufferPool.MAX_POOLED_SIZE)
+                buff = bufferPool.acquireDirect(message.length);
+            else
+                buff = bufferPool.acquireHeap(message.length);
+            // The limit is on the memory held, so pooled buffers count with their whole capacity.
+            if (bytesToWriteRemaining.addAndGet(buff.capacity()) > OUTBOUND_BUFFER_BYTE_COUNT) {
+                bytesToWriteRemaining.addAndGet(-buff.capacity());
+                releaseWriteBuff(buff);
+                throw new IOException("Outbound buffer overflowed");
+            }
+            buff.put(message);
+            buff.flip();
+            bytesToWrite.offer(buff);
+            // The channel is closed before the queue is emptied, so if it's still open, closing will take our buffer.
+            if (!channel.isOpen()) {
+                lock.lock();
+                try {
+                    releaseBytesToWrite();
+                } finally {
+                    lock.unlock();
+                }
+                throw new ClosedChannelException();
+            }
+            if (writeQueue != null) {
+                if (!key.isValid())
+                    throw new CancelledKeyException();
+                // Only one pending entry is needed however many messages are queued behind it.
+                if (writeScheduled.compareAndSet(false, true)) {
+                    writeQueue.offer(this);
+                    key.selector().wakeup();
+                }
+            } else {
+                lock.lock();
+                try {
+                    setWriteOps();
+                } finally {
+                    lock.unlock();
+                }
+            }
         } catch (IOException e) {
-            lock.unlock();
-            andUnlock = false;
             log.warn("Error writing message to connection, closing connection", e);
             closeConnection();
             throw e;
         } catch (CancelledKeyException e) {
-            lock.unlock();
-            andUnlock = false;
             log.warn("Error writing message to connection, closing connection", e);
             closeConnection();
             throw new IOException(e);
-        } finally {
-            if (andUnlock)
-                lock.unlock();
         }
     }
 
@@ -186,6 +248,10 @@ class ConnectionHandler implements MessageWriteTarget {
         try {
             callClosed = !closeCalled;
             closeCalled = true;
+            releaseBytesToWrite();
+            bytesToWriteRemaining.set(0);
+            if (!reading)
+                releaseReadBuff();
         } finally {
             lock.unlock();
         }
@@ -195,6 +261,69 @@ class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
+    // Writers may still be appending, so buffers are taken off one at a time and each is released by whoever takes it.
+    @GuardedBy("lock")
+    private void releaseBytesToWrite() {
+        ByteBuffer buff;
+        while ((buff = bytesToWrite.poll()) != null)
+            releaseWriteBuff(buff);
+    }
+
+    // Small messages are written from heap buffers of their own, see writeBytes, the rest came from the pool.
+    private void releaseWriteBuff(ByteBuffer buff) {
+        if (buff.capacity() >= BufferPool.MIN_POOLED_SIZE)
+            bufferPool.release(buff);
+    }
+
+    @GuardedBy("lock")
+    private void releaseReadBuff() {
+        if (readBuff != null && !readBuffReleased) {
+            readBuffReleased = true;
+            bufferPool.release(readBuff);
+        }
+    }
+
+    // Marks the read buffer as in use, unless the connection was closed and the buffer may already be reused.
+    private boolean startReading() {
+        lock.lock();
+        try {
+            if (closeCalled)
+                return false;
+            reading = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void finishReading() {
+        lock.lock();
+        try {
+            reading = false;
+            if (closeCalled)
+                releaseReadBuff();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Writes out the bytes queued since the handler was put on its write queue. Must be called by the selector thread
+    // which owns the handler's key, after taking the handler off the queue.
+    static void handleScheduledWrite(ConnectionHandler handler) {
+        handler.writeScheduled.set(false);
+        try {
+            if (!handler.key.isValid()) {
+                handler.closeConnection();
+                return;
+            }
+            handler.tryWriteBytes();
+        } catch (Exception e) {
+            Throwable t = Throwables.getRootCause(e);
+            log.warn("Error writing to connection: {}", t.getMessage() != null ? t.getMessage() : t.getClass().getName());
+            handler.closeConnection();
+        }
+    }
+
     // Handle a SelectionKey which was selected
     // Runs unlocked as the caller is single-threaded (or if not, should enforce that handleKey is only called
     // atomically for a given ConnectionHandler)
@@ -207,9 +336,25 @@ class ConnectionHandler implements MessageWriteTarget {
                 handler.closeConnection(); // Key has been cancelled, make sure the socket gets closed
                 return;
             }
-            if (key.isReadable()) {
-                // Do a socket read and invoke the connection's receiveBytes message
-                int read = handler.channel.read(handler.readBuff);
+            if (key.isReadable() && handler.startReading()) {
+                int read;
+                try {
+                    // Do a socket read and invoke the connection's receiveBytes message
+                    read = handler.channel.read(handler.readBuff);
+                    if (read > 0) {
+                        // "flip" the buffer - setting the limit to the current position and setting position to 0
+                        handler.readBuff.flip();
+                        // Use connection.receiveBytes's return value as a check that it stopped reading at the right
+                        // location
+                        int bytesConsumed = checkNotNull(handler.connection).receiveBytes(handler.readBuff);
+                        checkState(handler.readBuff.position() == bytesConsumed);
+                        // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping
+                        // relative position)
+                        handler.readBuff.compact();
+                    }
+                } finally {
+                    handler.finishReading();
+                }
                 if (read == 0)
                     return; // Was probably waiting on a write
                 else if (read == -1) { // Socket was closed
@@ -217,14 +362,6 @@ class ConnectionHandler implements MessageWriteTarget {
                     handler.closeConnection();
                     return;
                 }
-                // "flip" the buffer - setting the limit to the current position and setting position to 0
-                handler.readBuff.flip();
-                // Use connection.receiveBytes's return value as a check that it stopped reading at the right location
-                int bytesConsumed = checkNotNull(handler.connection).receiveBytes(handler.readBuff);
-                checkState(handler.readBuff.position() == bytesConsumed);
-                // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping relative
-                // position)
-                handler.readBuff.compact();
             }
             if (key.isWritable())
                 handler.tryWriteBytes();
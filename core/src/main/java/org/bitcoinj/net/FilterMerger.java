@@ -18,8 +18,11 @@ import com.google.common.collect.Lists;
 import org.bitcoinj.core.BloomFilter;
 import org.bitcoinj.core.PeerFilterProvider;
 import com.google.common.collect.ImmutableList;
+import org.bitcoinj.script.Script;
 
+import javax.annotation.Nullable;
 import java.util.LinkedList;
+import java.util.List;
 
 // This code is unit tested by the PeerGroup tests.
 
@@ -41,6 +44,9 @@ public class FilterMerger {
 
     private volatile double vBloomFilterFPRate;
     private int lastBloomFilterElementCount;
+    // How many elements have really gone into lastFilter, and the false positive rate it was made for.
+    private int lastFilterElements;
+    private double lastFilterFPRate;
     private BloomFilter lastFilter;
 
     public FilterMerger(double bloomFilterFPRate) {
@@ -89,6 +95,8 @@ public class FilterMerger {
 
                 result.changed = !filter.equals(lastFilter);
                 result.filter = lastFilter = filter;
+                lastFilterElements = elements;
+                lastFilterFPRate = fpRate;
             }
             // Now adjust the earliest key time backwards by a week to handle the case of clock drift. This can occur
             // both in block header timestamps and if the users clock was out of sync when the key was first created
@@ -102,6 +110,37 @@ public class FilterMerger {
         }
     }
 
+    /**
+     * <p>Inserts the given elements into the last calculated filter, which is changed in place, so that peers that were
+     * given that filter can be brought up to date by sending them just the new elements. Returns those of the elements
+     * that the filter didn't already match, in the order given.</p>
+     *
+     * <p>The filter was sized to give the requested false positive rate at the element count it was calculated for,
+     * plus some slack. Returns null, leaving the filter alone, if there is no filter yet, the false positive rate has
+     * been changed since, an element is too long to be sent on its own, or the new elements would take the filter past
+     * the count it was sized for and so above the requested rate. A full {@link #calculate(ImmutableList)} is needed
+     * then.</p>
+     */
+    @Nullable
+    public List<byte[]> insertIntoLastFilter(List<byte[]> elements) {
+        if (lastFilter == null || lastFilterFPRate != vBloomFilterFPRate)
+            return null;
+        if (lastFilterElements + elements.size() > lastBloomFilterElementCount)
+            return null;
+        for (byte[] element : elements)
+            if (element.length > Script.MAX_SCRIPT_ELEMENT_SIZE)
+                return null;
+        List<byte[]> inserted = Lists.newArrayListWithCapacity(elements.size());
+        for (byte[] element : elements) {
+            if (lastFilter.contains(element))
+                continue;
+            lastFilter.insert(element);
+            inserted.add(element);
+        }
+        lastFilterElements += elements.size();
+        return inserted;
+    }
+
     public void setBloomFilterFPRate(double bloomFilterFPRate) {
         this.vBloomFilterFPRate = bloomFilterFPRate;
     }
@@ -28,15 +28,20 @@ import java.nio.channels.*;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
- * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
- * single network processing thread.
+ * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in one
+ * or more network processing threads, each running its own selector. By default a single thread is used; for hundreds
+ * of connections use {@link #NioClientManager(int)} to spread them over several.
  */
 public class NioClientManager extends AbstractExecutionThreadService implements ClientConnectionManager {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
-    private final Selector selector;
+    private final SelectorLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
 
     class PendingConnect {
         SocketChannel sc;
@@ -46,44 +51,113 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
         PendingConnect(SocketChannel sc, StreamConnection connection, SocketAddress address) { this.sc = sc; this.connection = connection; this.address = address; }
     }
-    final Queue<PendingConnect> newConnectionChannels = new LinkedBlockingQueue<PendingConnect>();
 
     // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
     private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
 
-    // Handle a SelectionKey which was selected
-    private void handleKey(SelectionKey key) throws IOException {
-        // We could have a !isValid() key here if the connection is already closed at this point
-        if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished the initial connect process
-            // Create a ConnectionHandler and hook everything together
-            PendingConnect data = (PendingConnect) key.attachment();
-            StreamConnection connection = data.connection;
-            SocketChannel sc = (SocketChannel) key.channel();
-            ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers);
+    // A selector and the loop which services it. A connection stays with the loop it was assigned to for its whole
+    // life, so its key is only ever selected, written to and closed down by that loop's thread.
+    private class SelectorLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<PendingConnect> newConnectionChannels = new LinkedBlockingQueue<PendingConnect>();
+        // Handlers which had bytes queued for writing since we last looked, see ConnectionHandler.writeBytes
+        private final Queue<ConnectionHandler> pendingWrites = new ConcurrentLinkedQueue<ConnectionHandler>();
+
+        SelectorLoop() {
             try {
-                if (sc.finishConnect()) {
-                    log.info("Connected to {}", sc.socket().getRemoteSocketAddress());
-                    key.interestOps((key.interestOps() | SelectionKey.OP_READ) & ~SelectionKey.OP_CONNECT).attach(handler);
-                    connection.connectionOpened();
-                    data.future.set(data.address);
-                } else {
-                    log.warn("Failed to connect to {}", sc.socket().getRemoteSocketAddress());
-                    handler.closeConnection(); // Failed to connect for some reason
-                    data.future.setException(new ConnectException("Unknown reason"));
+                selector = SelectorProvider.provider().openSelector();
+            } catch (IOException e) {
+                throw new RuntimeException(e); // Shouldn't ever happen
+            }
+        }
+
+        // Handle a SelectionKey which was selected
+        private void handleKey(SelectionKey key) throws IOException {
+            // We could have a !isValid() key here if the connection is already closed at this point
+            if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished the initial connect process
+                // Create a ConnectionHandler and hook everything together
+                PendingConnect data = (PendingConnect) key.attachment();
+                StreamConnection connection = data.connection;
+                SocketChannel sc = (SocketChannel) key.channel();
+                ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers, pendingWrites);
+                try {
+                    if (sc.finishConnect()) {
+                        log.info("Connected to {}", sc.socket().getRemoteSocketAddress());
+                        key.interestOps((key.interestOps() | SelectionKey.OP_READ) & ~SelectionKey.OP_CONNECT).attach(handler);
+                        connection.connectionOpened();
+                        data.future.set(data.address);
+                    } else {
+                        log.warn("Failed to connect to {}", sc.socket().getRemoteSocketAddress());
+                        handler.closeConnection(); // Failed to connect for some reason
+                        data.future.setException(new ConnectException("Unknown reason"));
+                        data.future = null;
+                    }
+                } catch (Exception e) {
+                    // If e is a CancelledKeyException, there is a race to get to interestOps after finishConnect() which
+                    // may cause this. Otherwise it may be any arbitrary kind of connection failure.
+                    // Calling sc.socket().getRemoteSocketAddress() here throws an exception, so we can only log the error itself
+                    Throwable cause = Throwables.getRootCause(e);
+                    log.warn("Failed to connect with exception: {}: {}", cause.getClass().getName(), cause.getMessage());
+                    handler.closeConnection();
+                    data.future.setException(cause);
                     data.future = null;
                 }
+            } else // Process bytes read
+                ConnectionHandler.handleKey(key);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (isRunning()) {
+                    PendingConnect conn;
+                    while ((conn = newConnectionChannels.poll()) != null) {
+                        try {
+                            SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
+                            key.attach(conn);
+                        } catch (ClosedChannelException e) {
+                            log.warn("SocketChannel was closed before it could be registered");
+                        }
+                    }
+
+                    selector.select();
+
+                    Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                    while (keyIterator.hasNext()) {
+                        SelectionKey key = keyIterator.next();
+                        keyIterator.remove();
+                        handleKey(key);
+                    }
+
+                    // Anything queued while we were busy above (including by the handlers themselves) has woken up the
+                    // selector, so the next select() returns straight away if we miss it here.
+                    ConnectionHandler handler;
+                    while ((handler = pendingWrites.poll()) != null)
+                        ConnectionHandler.handleScheduledWrite(handler);
+                }
             } catch (Exception e) {
-                // If e is a CancelledKeyException, there is a race to get to interestOps after finishConnect() which
-                // may cause this. Otherwise it may be any arbitrary kind of connection failure.
-                // Calling sc.socket().getRemoteSocketAddress() here throws an exception, so we can only log the error itself
-                Throwable cause = Throwables.getRootCause(e);
-                log.warn("Failed to connect with exception: {}: {}", cause.getClass().getName(), cause.getMessage());
-                handler.closeConnection();
-                data.future.setException(cause);
-                data.future = null;
+                log.warn("Error trying to open/read from connection: ", e);
+                // Take the other loops down with us, as the whole manager would with a single selector
+                stopAsync();
+            } finally {
+                // Go through and close everything, without letting IOExceptions get in our way
+                for (SelectionKey key : selector.keys()) {
+                    try {
+                        key.channel().close();
+                    } catch (IOException e) {
+                        log.warn("Error closing channel", e);
+                    }
+                    key.cancel();
+                    if (key.attachment() instanceof ConnectionHandler)
+                        ConnectionHandler.handleKey(key); // Close connection if relevant
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    log.warn("Error closing client manager selector", e);
+                }
             }
-        } else // Process bytes read
-            ConnectionHandler.handleKey(key);
+        }
     }
 
     /**
@@ -91,57 +165,36 @@ public class NioClientManager extends AbstractExecutionThreadService implements
      * calls.
      */
     public NioClientManager() {
-        try {
-            selector = SelectorProvider.provider().openSelector();
-        } catch (IOException e) {
-            throw new RuntimeException(e); // Shouldn't ever happen
-        }
+        this(1);
+    }
+
+    /**
+     * Creates a new client manager which uses Java NIO for socket management, spreading connections round-robin over
+     * the given number of threads which each handle the select calls for their own connections. A handful of threads
+     * is enough to keep several hundred peers from being bottlenecked on a single core.
+     */
+    public NioClientManager(int numSelectors) {
+        checkArgument(numSelectors > 0, "numSelectors must be positive");
+        loops = new SelectorLoop[numSelectors];
+        for (int i = 0; i < numSelectors; i++)
+            loops[i] = new SelectorLoop();
     }
 
     @Override
     public void run() {
-        try {
-            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-            while (isRunning()) {
-                PendingConnect conn;
-                while ((conn = newConnectionChannels.poll()) != null) {
-                    try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn);
-                    } catch (ClosedChannelException e) {
-                        log.warn("SocketChannel was closed before it could be registered");
-                    }
-                }
-
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-                    handleKey(key);
-                }
-            }
-        } catch (Exception e) {
-            log.warn("Error trying to open/read from connection: ", e);
-        } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.warn("Error closing channel", e);
-                }
-                key.cancel();
-                if (key.attachment() instanceof ConnectionHandler)
-                    ConnectionHandler.handleKey(key); // Close connection if relevant
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.warn("Error closing client manager selector", e);
-            }
+        Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+        // We run the first loop ourselves and give every other one a thread of its own.
+        ThreadFactory threadFactory = new ContextPropagatingThreadFactory("NioClientManager", Thread.MIN_PRIORITY);
+        List<Thread> threads = new ArrayList<Thread>(loops.length - 1);
+        for (int i = 1; i < loops.length; i++) {
+            Thread thread = threadFactory.newThread(loops[i]);
+            thread.start();
+            threads.add(thread);
         }
+        loops[0].run();
+        // Don't let the service terminate until every loop has closed its connections.
+        for (Thread thread : threads)
+            Uninterruptibles.joinUninterruptibly(thread);
     }
 
     @Override
@@ -154,8 +207,9 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             sc.configureBlocking(false);
             sc.connect(serverAddress);
             PendingConnect data = new PendingConnect(sc, connection, serverAddress);
-            newConnectionChannels.offer(data);
-            selector.wakeup();
+            SelectorLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+            loop.newConnectionChannels.offer(data);
+            loop.selector.wakeup();
             return data.future;
         } catch (Throwable e) {
             return Futures.immediateFailedFuture(e);
@@ -164,7 +218,8 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     @Override
     public void triggerShutdown() {
-        selector.wakeup();
+        for (SelectorLoop loop : loops)
+            loop.selector.wakeup();
     }
 
     @Override
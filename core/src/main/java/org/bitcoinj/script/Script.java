@@ -861,6 +861,23 @@ public class Script {
      */
     public static void executeScript(@Nullable Transaction txContainingThis, long index,
                                      Script script, LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
+        executeScript(txContainingThis, index, script, stack, verifyFlags, null);
+    }
+
+    /**
+     * Same as {@link #executeScript(Transaction, long, Script, LinkedList, Set)}, but looks up signatures in the given
+     * {@link SignatureCache} before verifying them, and remembers the valid ones there.
+     */
+    public static void executeScript(@Nullable Transaction txContainingThis, long index,
+                                     Script script, LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags,
+                                     @Nullable SignatureCache signatureCache) throws ScriptException {
+        executeScript(txContainingThis, null, index, script, stack, verifyFlags, signatureCache, null);
+    }
+
+    private static void executeScript(@Nullable Transaction txContainingThis, @Nullable SigHashContext sigHashContext,
+                                      long index, Script script, LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags,
+                                      @Nullable SignatureCache signatureCache,
+                                      @Nullable SignatureBatch deferredSignatures) throws ScriptException {
         int opCount = 0;
         int lastCodeSepLocation = 0;
         
@@ -1337,13 +1354,15 @@ public class Script {
                 case OP_CHECKSIGVERIFY:
                     if (txContainingThis == null)
                         throw new IllegalStateException("Script attempted signature check but no tx was provided");
-                    executeCheckSig(txContainingThis, (int) index, script, stack, lastCodeSepLocation, opcode, verifyFlags);
+                    executeCheckSig(txContainingThis, sigHashContext, (int) index, script, stack, lastCodeSepLocation,
+                            opcode, verifyFlags, signatureCache, deferredSignatures);
                     break;
                 case OP_CHECKMULTISIG:
                 case OP_CHECKMULTISIGVERIFY:
                     if (txContainingThis == null)
                         throw new IllegalStateException("Script attempted signature check but no tx was provided");
-                    opCount = executeMultiSig(txContainingThis, (int) index, script, stack, opCount, lastCodeSepLocation, opcode, verifyFlags);
+                    opCount = executeMultiSig(txContainingThis, sigHashContext, (int) index, script, stack, opCount,
+                            lastCodeSepLocation, opcode, verifyFlags, signatureCache);
                     break;
                 case OP_CHECKLOCKTIMEVERIFY:
                     if (!verifyFlags.contains(VerifyFlag.CHECKLOCKTIMEVERIFY)) {
@@ -1422,9 +1441,11 @@ public class Script {
             throw new ScriptException("Transaction contains a final transaction input for a CHECKLOCKTIMEVERIFY script.");
     }
 
-    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
-                                        int lastCodeSepLocation, int opcode, 
-                                        Set<VerifyFlag> verifyFlags) throws ScriptException {
+    private static void executeCheckSig(Transaction txContainingThis, @Nullable SigHashContext sigHashContext, int index,
+                                        Script script, LinkedList<byte[]> stack, int lastCodeSepLocation, int opcode,
+                                        Set<VerifyFlag> verifyFlags,
+                                        @Nullable SignatureCache signatureCache,
+                                        @Nullable SignatureBatch deferredSignatures) throws ScriptException {
         final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
             || verifyFlags.contains(VerifyFlag.DERSIG)
             || verifyFlags.contains(VerifyFlag.LOW_S);
@@ -1451,8 +1472,14 @@ public class Script {
                 verifyFlags.contains(VerifyFlag.LOW_S));
 
             // TODO: Should check hash type is known
-            Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-            sigValid = ECKey.verify(hash.getBytes(), sig, pubKey);
+            Sha256Hash hash = hashForSignature(txContainingThis, sigHashContext, index, connectedScript,
+                    (byte) sig.sighashFlags);
+            if (deferredSignatures != null) {
+                deferredSignatures.add(hash, sig, pubKey);
+                sigValid = true;
+            } else {
+                sigValid = verifySignature(hash, sig, pubKey, signatureCache);
+            }
         } catch (Exception e1) {
             // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
             // Because I can't verify there aren't more, we use a very generic Exception catch
@@ -1470,9 +1497,24 @@ public class Script {
                 throw new ScriptException("Script failed OP_CHECKSIGVERIFY");
     }
 
-    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
-                                       int opCount, int lastCodeSepLocation, int opcode, 
-                                       Set<VerifyFlag> verifyFlags) throws ScriptException {
+    private static Sha256Hash hashForSignature(Transaction txContainingThis, @Nullable SigHashContext sigHashContext,
+                                               int index, byte[] connectedScript, byte sigHashType) {
+        if (sigHashContext != null)
+            return sigHashContext.hashForSignature(index, connectedScript, sigHashType);
+        return txContainingThis.hashForSignature(index, connectedScript, sigHashType);
+    }
+
+    private static boolean verifySignature(Sha256Hash hash, ECKey.ECDSASignature sig, byte[] pubKey,
+                                           @Nullable SignatureCache signatureCache) {
+        if (signatureCache != null)
+            return signatureCache.verify(hash, sig, pubKey);
+        return ECKey.verify(hash.getBytes(), sig, pubKey);
+    }
+
+    private static int executeMultiSig(Transaction txContainingThis, @Nullable SigHashContext sigHashContext, int index,
+                                       Script script, LinkedList<byte[]> stack, int opCount, int lastCodeSepLocation,
+                                       int opcode, Set<VerifyFlag> verifyFlags,
+                                       @Nullable SignatureCache signatureCache) throws ScriptException {
         final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
             || verifyFlags.contains(VerifyFlag.DERSIG)
             || verifyFlags.contains(VerifyFlag.LOW_S);
@@ -1525,8 +1567,9 @@ public class Script {
             // more expensive than hashing, its not a big deal.
             try {
                 TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigs.getFirst(), requireCanonical);
-                Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-                if (ECKey.verify(hash.getBytes(), sig, pubKey))
+                Sha256Hash hash = hashForSignature(txContainingThis, sigHashContext, index, connectedScript,
+                        (byte) sig.sighashFlags);
+                if (verifySignature(hash, sig, pubKey, signatureCache))
                     sigs.pollFirst();
             } catch (Exception e) {
                 // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
@@ -1581,6 +1624,37 @@ public class Script {
      */
     public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
                                 Set<VerifyFlag> verifyFlags) throws ScriptException {
+        correctlySpends(txContainingThis, scriptSigIndex, scriptPubKey, verifyFlags, null);
+    }
+
+    /**
+     * Verifies that this script (interpreted as a scriptSig) correctly spends the given scriptPubKey, skipping the
+     * verification of signatures that are found in the given cache.
+     * @param txContainingThis The transaction in which this input scriptSig resides.
+     *                         Accessing txContainingThis from another thread while this method runs results in undefined behavior.
+     * @param scriptSigIndex The index in txContainingThis of the scriptSig (note: NOT the index of the scriptPubKey).
+     * @param scriptPubKey The connected scriptPubKey containing the conditions needed to claim the value.
+     * @param verifyFlags Each flag enables one validation rule.
+     * @param signatureCache Signatures already known to be valid, valid signatures are added to it. May be null.
+     */
+    public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
+                                Set<VerifyFlag> verifyFlags, @Nullable SignatureCache signatureCache)
+            throws ScriptException {
+        correctlySpends(txContainingThis, scriptSigIndex, scriptPubKey, verifyFlags, signatureCache, null);
+    }
+
+    /**
+     * <p>Like {@link #correctlySpends(Transaction, long, Script, Set, SignatureCache)}, but if a batch is given the
+     * signatures of OP_CHECKSIG(VERIFY) are added to it and assumed to be valid instead of being verified. Signatures
+     * of OP_CHECKMULTISIG(VERIFY) are always verified immediately.</p>
+     *
+     * <p>Returning normally then only means the input is valid if every signature added to the batch turns out to be
+     * valid. Otherwise, or if this method throws, the input must be checked again without a batch: as scripts can
+     * branch on the result of a signature check, assuming a signature is valid can make a script fail as well.</p>
+     */
+    public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
+                                Set<VerifyFlag> verifyFlags, @Nullable SignatureCache signatureCache,
+                                @Nullable SignatureBatch deferredSignatures) throws ScriptException {
         // Clone the transaction because executing the script involves editing it, and if we die, we'll leave
         // the tx half broken (also it's not so thread safe to work on it directly.
         try {
@@ -1588,16 +1662,38 @@ public class Script {
         } catch (ProtocolException e) {
             throw new RuntimeException(e);   // Should not happen unless we were given a totally broken transaction.
         }
+        correctlySpends(txContainingThis, null, scriptSigIndex, scriptPubKey, verifyFlags, signatureCache,
+                deferredSignatures);
+    }
+
+    /**
+     * <p>Like {@link #correctlySpends(Transaction, long, Script, Set, SignatureCache, SignatureBatch)}, but calculates
+     * signature hashes with the given context, which makes verifying all inputs of a large transaction much cheaper.
+     * The transaction of the context is not copied, so it must not be modified while this method runs.</p>
+     */
+    public void correctlySpends(SigHashContext sigHashContext, long scriptSigIndex, Script scriptPubKey,
+                                Set<VerifyFlag> verifyFlags, @Nullable SignatureCache signatureCache,
+                                @Nullable SignatureBatch deferredSignatures) throws ScriptException {
+        correctlySpends(sigHashContext.getTransaction(), sigHashContext, scriptSigIndex, scriptPubKey, verifyFlags,
+                signatureCache, deferredSignatures);
+    }
+
+    private void correctlySpends(Transaction txContainingThis, @Nullable SigHashContext sigHashContext,
+                                 long scriptSigIndex, Script scriptPubKey, Set<VerifyFlag> verifyFlags,
+                                 @Nullable SignatureCache signatureCache,
+                                 @Nullable SignatureBatch deferredSignatures) throws ScriptException {
         if (getProgram().length > 10000 || scriptPubKey.getProgram().length > 10000)
             throw new ScriptException("Script larger than 10,000 bytes");
         
         LinkedList<byte[]> stack = new LinkedList<byte[]>();
         LinkedList<byte[]> p2shStack = null;
         
-        executeScript(txContainingThis, scriptSigIndex, this, stack, verifyFlags);
+        executeScript(txContainingThis, sigHashContext, scriptSigIndex, this, stack, verifyFlags, signatureCache,
+                deferredSignatures);
         if (verifyFlags.contains(VerifyFlag.P2SH))
             p2shStack = new LinkedList<byte[]>(stack);
-        executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack, verifyFlags);
+        executeScript(txContainingThis, sigHashContext, scriptSigIndex, scriptPubKey, stack, verifyFlags,
+                signatureCache, deferredSignatures);
         
         if (stack.size() == 0)
             throw new ScriptException("Stack empty at end of script execution.");
@@ -1626,7 +1722,8 @@ public class Script {
             byte[] scriptPubKeyBytes = p2shStack.pollLast();
             Script scriptPubKeyP2SH = new Script(scriptPubKeyBytes);
             
-            executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack, verifyFlags);
+            executeScript(txContainingThis, sigHashContext, scriptSigIndex, scriptPubKeyP2SH, p2shStack, verifyFlags,
+                    signatureCache, deferredSignatures);
             
             if (p2shStack.size() == 0)
                 throw new ScriptException("P2SH stack empty at end of script execution.");
@@ -50,6 +50,8 @@ public abstract class CustomTransactionSigner extends StatelessTransactionSigner
     public boolean signInputs(ProposedTransaction propTx, KeyBag keyBag) {
         Transaction tx = propTx.partialTx;
         int numInputs = tx.getInputs().size();
+        // Only the input scripts change whilst signing, and those aren't covered by signatures.
+        SigHashContext sigHashContext = new SigHashContext(tx);
         for (int i = 0; i < numInputs; i++) {
             TransactionInput txIn = tx.getInput(i);
             TransactionOutput txOut = txIn.getConnectedOutput();
@@ -68,7 +70,8 @@ public abstract class CustomTransactionSigner extends StatelessTransactionSigner
                 // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
                 // we sign missing pieces (to check this would require either assuming any signatures are signing
                 // standard output types or a way to get processed signatures out of script execution)
-                txIn.getScriptSig().correctlySpends(tx, i, txIn.getConnectedOutput().getScriptPubKey());
+                txIn.getScriptSig().correctlySpends(sigHashContext, i, txIn.getConnectedOutput().getScriptPubKey(),
+                        Script.ALL_VERIFY_FLAGS, null, null);
                 log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
                 continue;
             } catch (ScriptException e) {
@@ -81,7 +84,8 @@ public abstract class CustomTransactionSigner extends StatelessTransactionSigner
                 continue;
             }
 
-            Sha256Hash sighash = tx.hashForSignature(i, redeemData.redeemScript, Transaction.SigHash.ALL, false);
+            Sha256Hash sighash = sigHashContext.hashForSignature(i, redeemData.redeemScript.getProgram(),
+                    Transaction.SigHash.ALL, false);
             SignatureAndKey sigKey = getSignature(sighash, propTx.keyPaths.get(scriptPubKey));
             TransactionSignature txSig = new TransactionSignature(sigKey.sig, Transaction.SigHash.ALL, false);
             int sigIndex = inputScript.getSigInsertionIndex(sighash, sigKey.pubKey);
@@ -19,6 +19,8 @@ package org.bitcoinj.signers;
 import java.util.EnumSet;
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.ScriptException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.SigHashContext;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionInput;
 import org.bitcoinj.crypto.DeterministicKey;
@@ -61,6 +63,8 @@ public class LocalTransactionSigner extends StatelessTransactionSigner {
     public boolean signInputs(ProposedTransaction propTx, KeyBag keyBag) {
         Transaction tx = propTx.partialTx;
         int numInputs = tx.getInputs().size();
+        // Only the input scripts change whilst signing, and those aren't covered by signatures.
+        SigHashContext sigHashContext = new SigHashContext(tx);
         for (int i = 0; i < numInputs; i++) {
             TransactionInput txIn = tx.getInput(i);
             if (txIn.getConnectedOutput() == null) {
@@ -72,7 +76,8 @@ public class LocalTransactionSigner extends StatelessTransactionSigner {
                 // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
                 // we sign missing pieces (to check this would require either assuming any signatures are signing
                 // standard output types or a way to get processed signatures out of script execution)
-                txIn.getScriptSig().correctlySpends(tx, i, txIn.getConnectedOutput().getScriptPubKey(), MINIMUM_VERIFY_FLAGS);
+                txIn.getScriptSig().correctlySpends(sigHashContext, i, txIn.getConnectedOutput().getScriptPubKey(),
+                        MINIMUM_VERIFY_FLAGS, null, null);
                 log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
                 continue;
             } catch (ScriptException e) {
@@ -104,7 +109,8 @@ public class LocalTransactionSigner extends StatelessTransactionSigner {
             // a CHECKMULTISIG program for P2SH inputs
             byte[] script = redeemData.redeemScript.getProgram();
             try {
-                TransactionSignature signature = tx.calculateSignature(i, key, script, Transaction.SigHash.ALL, false);
+                Sha256Hash hash = sigHashContext.hashForSignature(i, script, Transaction.SigHash.ALL, false);
+                TransactionSignature signature = new TransactionSignature(key.sign(hash), Transaction.SigHash.ALL, false);
 
                 // at this point we have incomplete inputScript with OP_0 in place of one or more signatures. We already
                 // have calculated the signature using the local key and now need to insert it in the correct place
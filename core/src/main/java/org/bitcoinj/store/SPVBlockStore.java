@@ -16,6 +16,9 @@
 
 package org.bitcoinj.store;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.primitives.Longs;
 import org.bitcoinj.core.*;
 import org.bitcoinj.utils.*;
 import org.slf4j.*;
@@ -35,6 +38,15 @@ import static com.google.common.base.Preconditions.*;
  * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
  * but as they are virtually unheard of this is not a significant risk.
+ *
+ * <p>Lookups by hash are answered from an in-memory index of the ring that is rebuilt when the store is opened, so
+ * their cost does not depend on the number of headers stored. This makes it reasonable to create stores with a much
+ * larger capacity than {@link #DEFAULT_NUM_HEADERS}, up to the full header history, using
+ * {@link #SPVBlockStore(NetworkParameters, File, int)}.</p>
+ *
+ * <p>The store may be read from many threads at once whilst a single thread appends headers. Cache hits and
+ * {@link #getChainHead()} don't take any lock at all, other lookups share a read lock and only writes are exclusive.
+ * Readers never move the position of the shared buffer, they use absolute reads or a duplicate of it instead.</p>
  */
 public class SPVBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
@@ -47,7 +59,18 @@ public class SPVBlockStore implements BlockStore {
     protected int numHeaders;
     protected NetworkParameters params;
 
-    protected ReentrantLock lock = Threading.lock("SPVBlockStore");
+    // Held for reading by lookups that miss the caches and for writing by anything that modifies the ring or index.
+    private final ReentrantReadWriteLock readWriteLock = Threading.readWriteLock("SPVBlockStore");
+
+    /**
+     * The write side of the store's read-write lock. This used to be a ReentrantLock guarding everything, its type
+     * changed when lookups started to share the read side.
+     *
+     * @deprecated Subclasses that need to exclude the store's readers and writers can still lock this, but the field
+     * will go away.
+     */
+    @Deprecated
+    protected ReentrantReadWriteLock.WriteLock lock = readWriteLock.writeLock();
 
     // The entire ring-buffer is mmapped and accessing it should be as fast as accessing regular memory once it's
     // faulted in. Unfortunately, in theory practice and theory are the same. In practice they aren't.
@@ -56,25 +79,37 @@ public class SPVBlockStore implements BlockStore {
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
     // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
     // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
-    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 2050;  // Slightly more than the difficulty transition period.
-        }
-    };
+    //
+    // The caches are segmented, so concurrent readers don't contend on them. Eviction is LRU within each segment.
+    // Entries are only ever added to them with either side of the lock held: get() fills them under the read side,
+    // so it cannot cache what it read while a put() of the same hash holds the write side.
+    private final Cache<Sha256Hash, StoredBlock> cachedBlocks = CacheBuilder.newBuilder()
+            .maximumSize(2050)  // Slightly more than the difficulty transition period.
+            .build();
     // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
     // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
     // must efficiently respond.
     //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
+    // We don't care about the value in this cache. It is always notFoundMarker.
     protected static final Object notFoundMarker = new Object();
-    protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<Sha256Hash, Object>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Object> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
-        }
-    };
+    private final Cache<Sha256Hash, Object> cachedMisses = CacheBuilder.newBuilder()
+            .maximumSize(100)  // This was chosen arbitrarily.
+            .build();
+
+    /**
+     * @deprecated No longer used, blocks are cached in a private concurrent cache instead. Always empty.
+     */
+    @Deprecated
+    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>();
+
+    /**
+     * @deprecated No longer used, misses are cached in a private concurrent cache instead. Always empty.
+     */
+    @Deprecated
+    protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<Sha256Hash, Object>();
+    // Maps block hashes to the ring slot holding the most recently written record for that hash. Guarded by lock, it
+    // may be read under the read lock.
+    protected RingIndex index;
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
@@ -84,10 +119,22 @@ public class SPVBlockStore implements BlockStore {
      * will block on disk.
      */
     public SPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, DEFAULT_NUM_HEADERS);
+    }
+
+    /**
+     * Creates and initializes an SPV block store that can hold the given number of headers. Will create the given file
+     * if it's missing. An existing file must have been created with the same capacity. This operation will block on
+     * disk.
+     */
+    public SPVBlockStore(NetworkParameters params, File file, int capacity) throws BlockStoreException {
         checkNotNull(file);
         this.params = checkNotNull(params);
+        checkArgument(capacity > 0, "capacity must be positive");
+        checkArgument(capacity <= (Integer.MAX_VALUE - FILE_PROLOGUE_BYTES) / RECORD_SIZE, "capacity too large");
         try {
-            this.numHeaders = DEFAULT_NUM_HEADERS;
+            this.numHeaders = capacity;
+            this.index = new RingIndex(capacity);
             boolean exists = file.exists();
             // Set up the backing file.
             randomAccessFile = new RandomAccessFile(file, "rw");
@@ -97,7 +144,7 @@ public class SPVBlockStore implements BlockStore {
                 randomAccessFile.setLength(fileSize);
             } else if (randomAccessFile.length() != fileSize) {
                 throw new BlockStoreException("File size on disk does not match expected size: " +
-                        randomAccessFile.length() + " vs " + fileSize);
+                        randomAccessFile.length() + " vs " + fileSize + " (capacity " + capacity + " headers)");
             }
 
             FileChannel channel = randomAccessFile.getChannel();
@@ -119,6 +166,7 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                rebuildIndex();
             } else {
                 initNewStore(params);
             }
@@ -137,11 +185,11 @@ public class SPVBlockStore implements BlockStore {
         header = HEADER_MAGIC.getBytes("US-ASCII");
         buffer.put(header);
         // Insert the genesis block.
-        lock.lock();
+        readWriteLock.writeLock().lock();
         try {
             setRingCursor(buffer, FILE_PROLOGUE_BYTES);
         } finally {
-            lock.unlock();
+            readWriteLock.writeLock().unlock();
         }
         Block genesis = params.getGenesisBlock().cloneAsHeader();
         StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
@@ -149,6 +197,30 @@ public class SPVBlockStore implements BlockStore {
         setChainHead(storedGenesis);
     }
 
+    /**
+     * Populates the index from the ring. Records are visited from the oldest to the newest, so that if a header was
+     * stored more than once the index ends up pointing at its latest copy, which is also what a scan backwards from
+     * the cursor would find.
+     */
+    private void rebuildIndex() {
+        readWriteLock.writeLock().lock();
+        try {
+            final int cursorSlot = (getRingCursor(buffer) - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+            byte[] scratch = new byte[32];
+            for (int i = 0; i < numHeaders; i++) {
+                int slot = (cursorSlot + i) % numHeaders;
+                buffer.position(FILE_PROLOGUE_BYTES + slot * RECORD_SIZE);
+                buffer.get(scratch);
+                Sha256Hash hash = Sha256Hash.wrap(scratch);
+                if (hash.equals(Sha256Hash.ZERO_HASH))
+                    continue;  // Never written.
+                index.put(buffer, hash, slot);
+            }
+        } finally {
+            readWriteLock.writeLock().unlock();
+        }
+    }
+
     /** Returns the size in bytes of the file that is used to store the chain with the current parameters. */
     public final int getFileSize() {
         return RECORD_SIZE * numHeaders + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
@@ -159,21 +231,30 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        readWriteLock.writeLock().lock();
         try {
+            if (this.buffer == null)
+                throw new BlockStoreException("Store closed");  // Closed while we waited for the lock.
             int cursor = getRingCursor(buffer);
             if (cursor == getFileSize()) {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
+            final int slot = (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+            // If the ring wrapped around, forget about the record we're about to overwrite.
+            byte[] scratch = new byte[32];
+            buffer.position(cursor);
+            buffer.get(scratch);
+            index.remove(scratch, slot);
             buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
+            cachedMisses.invalidate(hash);
             buffer.put(hash.getBytes());
             block.serializeCompact(buffer);
+            index.put(buffer, hash, slot);
             setRingCursor(buffer, buffer.position());
-            blockCache.put(hash, block);
-        } finally { lock.unlock(); }
+            cachedBlocks.put(hash, block);
+        } finally { readWriteLock.writeLock().unlock(); }
     }
 
     @Override
@@ -182,58 +263,49 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        StoredBlock cacheHit = cachedBlocks.getIfPresent(hash);
+        if (cacheHit != null)
+            return cacheHit;
+        if (cachedMisses.getIfPresent(hash) != null)
+            return null;
+
+        readWriteLock.readLock().lock();
         try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
+            if (this.buffer == null)
+                throw new BlockStoreException("Store closed");  // Closed while we waited for the lock.
+            final int slot = index.get(buffer, hash);
+            if (slot < 0) {
+                cachedMisses.put(hash, notFoundMarker);
                 return null;
-
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize();
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, notFoundMarker);
-            return null;
+            }
+            // Read through a duplicate so that concurrent readers each have their own position. Skip over the hash,
+            // the index only ever points at records written for it.
+            ByteBuffer view = buffer.duplicate();
+            view.position(FILE_PROLOGUE_BYTES + slot * RECORD_SIZE + 32);
+            StoredBlock storedBlock = StoredBlock.deserializeCompact(params, view);
+            cachedBlocks.put(hash, storedBlock);
+            return storedBlock;
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
-        } finally { lock.unlock(); }
+        } finally { readWriteLock.readLock().unlock(); }
     }
 
-    protected StoredBlock lastChainHead = null;
+    protected volatile StoredBlock lastChainHead = null;
 
     @Override
     public StoredBlock getChainHead() throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        StoredBlock head = lastChainHead;
+        if (head != null)
+            return head;
+        readWriteLock.readLock().lock();
         try {
             if (lastChainHead == null) {
                 byte[] headHash = new byte[32];
-                buffer.position(8);
-                buffer.get(headHash);
+                for (int i = 0; i < headHash.length; i++)
+                    headHash[i] = buffer.get(8 + i);
                 Sha256Hash hash = Sha256Hash.wrap(headHash);
                 StoredBlock block = get(hash);
                 if (block == null)
@@ -241,7 +313,7 @@ public class SPVBlockStore implements BlockStore {
                 lastChainHead = block;
             }
             return lastChainHead;
-        } finally { lock.unlock(); }
+        } finally { readWriteLock.readLock().unlock(); }
     }
 
     @Override
@@ -249,17 +321,19 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        readWriteLock.writeLock().lock();
         try {
             lastChainHead = chainHead;
             byte[] headHash = chainHead.getHeader().getHash().getBytes();
             buffer.position(8);
             buffer.put(headHash);
-        } finally { lock.unlock(); }
+        } finally { readWriteLock.writeLock().unlock(); }
     }
 
     @Override
     public void close() throws BlockStoreException {
+        // Wait for readers to finish, as the mapping may be released below.
+        readWriteLock.writeLock().lock();
         try {
             buffer.force();
             if (System.getProperty("os.name").toLowerCase().contains("win")) {
@@ -270,6 +344,8 @@ public class SPVBlockStore implements BlockStore {
             randomAccessFile.close();
         } catch (IOException e) {
             throw new BlockStoreException(e);
+        } finally {
+            readWriteLock.writeLock().unlock();
         }
     }
 
@@ -303,4 +379,106 @@ public class SPVBlockStore implements BlockStore {
         checkArgument(newCursor >= 0);
         buffer.putInt(4, newCursor);
     }
+
+    /**
+     * Returns whether the record in the given ring slot is for the given hash, without moving the buffer position.
+     * Takes the buffer its caller checked, as the field is cleared by close().
+     */
+    private static boolean slotHoldsHash(ByteBuffer buffer, int slot, byte[] hashBytes) {
+        final int offset = FILE_PROLOGUE_BYTES + slot * RECORD_SIZE;
+        for (int i = 0; i < hashBytes.length; i++)
+            if (buffer.get(offset + i) != hashBytes[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * An open addressing hash table from block hash to ring slot, using linear probing. Only 8 bytes of each hash are
+     * kept in memory alongside its slot, 12 bytes per table entry. Candidates are confirmed against the full hash
+     * stored in the ring before being returned.
+     */
+    protected class RingIndex {
+        private static final int EMPTY = -1;
+
+        private final int mask;
+        private final long[] keys;
+        private final int[] slots;  // Ring slot of each entry, or EMPTY.
+
+        RingIndex(int capacity) {
+            // Keep the load factor below 0.5 so that probe sequences stay short.
+            int size = Integer.highestOneBit(Math.max(capacity, 8) - 1) << 2;
+            mask = size - 1;
+            keys = new long[size];
+            slots = new int[size];
+            Arrays.fill(slots, EMPTY);
+        }
+
+        private int find(ByteBuffer buffer, byte[] hashBytes, long key) {
+            int i = (int) (key ^ (key >>> 32)) & mask;
+            while (slots[i] != EMPTY) {
+                if (keys[i] == key && slotHoldsHash(buffer, slots[i], hashBytes))
+                    return i;
+                i = (i + 1) & mask;
+            }
+            return ~i;  // Not found, encode the free position to insert at.
+        }
+
+        /** Returns the ring slot of the given hash in the given ring, or -1 if it is not in the index. */
+        int get(ByteBuffer buffer, Sha256Hash hash) {
+            byte[] hashBytes = hash.getBytes();
+            int i = find(buffer, hashBytes, key(hashBytes));
+            return i >= 0 ? slots[i] : EMPTY;
+        }
+
+        /**
+         * Points the given hash at the given ring slot, replacing any previous mapping of that hash. Must be called
+         * after the record has been written to the slot.
+         */
+        void put(ByteBuffer buffer, Sha256Hash hash, int slot) {
+            byte[] hashBytes = hash.getBytes();
+            long key = key(hashBytes);
+            int i = find(buffer, hashBytes, key);
+            if (i < 0) {
+                i = ~i;
+                keys[i] = key;
+            }
+            slots[i] = slot;
+        }
+
+        /**
+         * Removes the entry for the given hash if it points to the given ring slot. Must be called before the record
+         * in the slot is overwritten.
+         */
+        void remove(byte[] hashBytes, int slot) {
+            final long key = key(hashBytes);
+            int i = (int) (key ^ (key >>> 32)) & mask;
+            while (slots[i] != EMPTY && !(keys[i] == key && slots[i] == slot))
+                i = (i + 1) & mask;
+            if (slots[i] == EMPTY)
+                return;
+            // Backward shift deletion: move later entries of the probe sequence into the gap, so no tombstones are
+            // needed and lookups for the remaining entries keep working.
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (slots[j] == EMPTY)
+                    break;
+                int ideal = (int) (keys[j] ^ (keys[j] >>> 32)) & mask;
+                // Entry j must stay put if its ideal position lies cyclically in (i, j].
+                boolean stays = i <= j ? (i < ideal && ideal <= j) : (i < ideal || ideal <= j);
+                if (stays)
+                    continue;
+                keys[i] = keys[j];
+                slots[i] = slots[j];
+                i = j;
+            }
+            slots[i] = EMPTY;
+        }
+
+        private long key(byte[] hashBytes) {
+            // Use the last 8 bytes, not the first which are often zeros in Bitcoin.
+            return Longs.fromBytes(hashBytes[24], hashBytes[25], hashBytes[26], hashBytes[27],
+                    hashBytes[28], hashBytes[29], hashBytes[30], hashBytes[31]);
+        }
+    }
 }
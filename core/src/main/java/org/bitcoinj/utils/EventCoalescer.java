@@ -0,0 +1,69 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.utils;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Collapses repeated events that are queued for a listener before it gets round to running the first one. Each
+ * event is identified by a key, which should pick out the listener registration and whatever the event is about,
+ * e.g. a transaction. An event is dropped if one with an equal key is still waiting on its executor.</p>
+ *
+ * <p>This is only correct for events whose listeners look at the current state of the object rather than at what
+ * was passed in, as two queued events with the same key would have seen the same state by the time they ran. A key
+ * is released just before its event runs, so a change that happens while a listener is running is never lost.</p>
+ */
+public class EventCoalescer {
+    private final Set<Object> queued = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Runs the given event on the executor, unless an event with an equal key was queued and hasn't started yet.
+     */
+    public void execute(Executor executor, final Object key, final Runnable event) {
+        if (!queued.add(key)) {
+            coalesced.incrementAndGet();
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    queued.remove(key);
+                    event.run();
+                }
+            });
+        } catch (RuntimeException e) {
+            // Rejected, so it will never run and release the key itself.
+            queued.remove(key);
+            throw e;
+        }
+    }
+
+    /** Returns how many events are queued and haven't started yet. */
+    public int getQueuedCount() {
+        return queued.size();
+    }
+
+    /** Returns how many events have been dropped because an equal one was already queued. */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+}
@@ -27,7 +27,9 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Various threading related utilities. Provides a wrapper around explicit lock creation that lets you control whether
@@ -85,17 +87,38 @@ public class Threading {
     @Nullable
     public static volatile Thread.UncaughtExceptionHandler uncaughtExceptionHandler;
 
+    /**
+     * <p>A thread that runs the tasks given to it one at a time, in order. {@link #USER_THREAD} is one of these, and
+     * you can create more so a slow listener can be registered with an executor of its own rather than holding up
+     * every other one.</p>
+     *
+     * <p>The queue of waiting tasks can be bounded. When it is full, {@link #execute(Runnable)} blocks until there is
+     * room, which pushes back on whatever is generating the events. The exception is a task queued from the thread
+     * itself, which is run immediately as waiting for room would never finish. Note that queueing from a thread
+     * which holds a lock that a listener needs can then deadlock, so only bound the queue of an executor whose
+     * listeners don't take bitcoinj locks (e.g. ones that hand the event on to native code).</p>
+     */
     public static class UserThread extends Thread implements Executor {
         private static final Logger log = LoggerFactory.getLogger(UserThread.class);
         // 10,000 pending tasks is entirely arbitrary and may or may not be appropriate for the device we're
         // running on.
         public static int WARNING_THRESHOLD = 10000;
         private LinkedBlockingQueue<Runnable> tasks;
+        private volatile int peakQueueDepth;
+        private final AtomicLong tasksRun = new AtomicLong();
 
         public UserThread() {
-            super("bitcoinj user thread");
+            this("bitcoinj user thread", Integer.MAX_VALUE);
+        }
+
+        /**
+         * Creates and starts a thread with the given name which will queue up to the given number of tasks, see the
+         * class documentation for what happens beyond that.
+         */
+        public UserThread(String name, int capacity) {
+            super(name);
             setDaemon(true);
-            tasks = new LinkedBlockingQueue<Runnable>();
+            tasks = new LinkedBlockingQueue<Runnable>(capacity);
             start();
         }
 
@@ -103,17 +126,22 @@ public class Threading {
         public void run() {
             while (true) {
                 Runnable task = Uninterruptibles.takeUninterruptibly(tasks);
-                try {
-                    task.run();
-                } catch (Throwable throwable) {
-                    log.warn("Exception in user thread", throwable);
-                    Thread.UncaughtExceptionHandler handler = uncaughtExceptionHandler;
-                    if (handler != null)
-                        handler.uncaughtException(this, throwable);
-                }
+                runTask(task);
             }
         }
 
+        private void runTask(Runnable task) {
+            try {
+                task.run();
+            } catch (Throwable throwable) {
+                log.warn("Exception in user thread", throwable);
+                Thread.UncaughtExceptionHandler handler = uncaughtExceptionHandler;
+                if (handler != null)
+                    handler.uncaughtException(this, throwable);
+            }
+            tasksRun.incrementAndGet();
+        }
+
         @Override
         public void execute(Runnable command) {
             final int size = tasks.size();
@@ -124,7 +152,31 @@ public class Threading {
                     "If it is, check for deadlocked or slow event handlers. If it isn't, try adjusting the constant \n" +
                     "Threading.UserThread.WARNING_THRESHOLD upwards until it's a suitable level for your app, or Integer.MAX_VALUE to disable." , size);
             }
-            Uninterruptibles.putUninterruptibly(tasks, command);
+            if (!tasks.offer(command)) {
+                if (Thread.currentThread() == this) {
+                    runTask(command);
+                    return;
+                }
+                Uninterruptibles.putUninterruptibly(tasks, command);
+            }
+            final int depth = tasks.size();
+            if (depth > peakQueueDepth)
+                peakQueueDepth = depth;   // Racy, but it's only a statistic.
+        }
+
+        /** Returns the number of tasks waiting to be run. */
+        public int getQueueDepth() {
+            return tasks.size();
+        }
+
+        /** Returns the most tasks that have been waiting at once, give or take a few under heavy contention. */
+        public int getPeakQueueDepth() {
+            return peakQueueDepth;
+        }
+
+        /** Returns the number of tasks that have been run so far, including ones that threw. */
+        public long getTasksRun() {
+            return tasksRun.get();
         }
     }
 
@@ -159,6 +211,13 @@ public class Threading {
             return factory.newReentrantLock(name);
     }
 
+    public static ReentrantReadWriteLock readWriteLock(String name) {
+        if (Utils.isAndroidRuntime())
+            return new ReentrantReadWriteLock(true);
+        else
+            return factory.newReentrantReadWriteLock(name);
+    }
+
     public static void warnOnLockCycles() {
         setPolicy(CycleDetectingLockFactory.Policies.WARN);
     }
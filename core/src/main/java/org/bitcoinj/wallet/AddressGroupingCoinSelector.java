@@ -0,0 +1,81 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.TransactionOutput;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * <p>A {@link CoinSelector} that tries not to link addresses together. Spending outputs of several addresses in one
+ * transaction tells observers they belong to the same wallet, and leaving some outputs of an address behind links it
+ * to whatever spends them later. So this selector always spends all the eligible outputs of an address together, and
+ * uses as few addresses as it can: the single address with the smallest sufficient balance if there is one, otherwise
+ * the addresses with the largest balances until the target is met.</p>
+ *
+ * <p>The same outputs as {@link DefaultCoinSelector} are eligible. Note that selecting whole addresses means the
+ * selection may be larger than with other selectors.</p>
+ */
+public class AddressGroupingCoinSelector extends DefaultCoinSelector {
+    private static class Group implements Comparable<Group> {
+        final List<TransactionOutput> outputs = new ArrayList<TransactionOutput>(1);
+        long value;
+
+        // Largest balance first.
+        @Override
+        public int compareTo(Group other) {
+            return value > other.value ? -1 : (value == other.value ? 0 : 1);
+        }
+    }
+
+    @Override
+    public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+        Map<ByteBuffer, Group> groups = new HashMap<ByteBuffer, Group>();
+        for (TransactionOutput output : candidates) {
+            if (!shouldSelect(output.getParentTransaction())) continue;
+            ByteBuffer script = ByteBuffer.wrap(output.getScriptBytes());
+            Group group = groups.get(script);
+            if (group == null) {
+                group = new Group();
+                groups.put(script, group);
+            }
+            group.outputs.add(output);
+            group.value += output.getValue().value;
+        }
+
+        Group smallestSufficient = null;
+        for (Group group : groups.values())
+            if (group.value >= target.value && (smallestSufficient == null || group.value < smallestSufficient.value))
+                smallestSufficient = group;
+        if (smallestSufficient != null)
+            return new CoinSelection(Coin.valueOf(smallestSufficient.value), smallestSufficient.outputs);
+
+        ArrayList<TransactionOutput> selected = new ArrayList<TransactionOutput>();
+        long total = 0;
+        PriorityQueue<Group> queue = new PriorityQueue<Group>(groups.values());
+        while (total < target.value && !queue.isEmpty()) {
+            Group group = queue.poll();
+            selected.addAll(group.outputs);
+            total += group.value;
+        }
+        return new CoinSelection(Coin.valueOf(total), selected);
+    }
+}
@@ -44,9 +44,8 @@ import static com.google.common.base.Preconditions.*;
 public class BasicKeyChain implements EncryptableKeyChain {
     private final ReentrantLock lock = Threading.lock("BasicKeyChain");
 
-    // Maps used to let us quickly look up a key given data we find in transcations or the block chain.
-    private final LinkedHashMap<ByteString, ECKey> hashToKeys;
-    private final LinkedHashMap<ByteString, ECKey> pubkeyToKeys;
+    // Index used to let us quickly look up a key given data we find in transactions or the block chain.
+    private final KeyIndex keyIndex;
     @Nullable private final KeyCrypter keyCrypter;
     private boolean isWatching;
 
@@ -58,8 +57,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
 
     public BasicKeyChain(@Nullable KeyCrypter crypter) {
         this.keyCrypter = crypter;
-        hashToKeys = new LinkedHashMap<ByteString, ECKey>();
-        pubkeyToKeys = new LinkedHashMap<ByteString, ECKey>();
+        keyIndex = new KeyIndex();
         listeners = new CopyOnWriteArrayList<ListenerRegistration<KeyChainEventListener>>();
     }
 
@@ -79,13 +77,13 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public ECKey getKey(@Nullable KeyPurpose ignored) {
         lock.lock();
         try {
-            if (hashToKeys.isEmpty()) {
+            if (keyIndex.isEmpty()) {
                 checkState(keyCrypter == null);   // We will refuse to encrypt an empty key chain.
                 final ECKey key = new ECKey();
                 importKeyLocked(key);
                 queueOnKeysAdded(ImmutableList.of(key));
             }
-            return hashToKeys.values().iterator().next();
+            return keyIndex.first();
         } finally {
             lock.unlock();
         }
@@ -96,11 +94,11 @@ public class BasicKeyChain implements EncryptableKeyChain {
         checkArgument(numberOfKeys > 0);
         lock.lock();
         try {
-            if (hashToKeys.size() < numberOfKeys) {
+            if (keyIndex.size() < numberOfKeys) {
                 checkState(keyCrypter == null);
 
                 List<ECKey> keys = new ArrayList<ECKey>();
-                for (int i = 0; i < numberOfKeys - hashToKeys.size(); i++) {
+                for (int i = 0; i < numberOfKeys - keyIndex.size(); i++) {
                     keys.add(new ECKey());
                 }
 
@@ -111,8 +109,8 @@ public class BasicKeyChain implements EncryptableKeyChain {
 
             List<ECKey> keysToReturn = new ArrayList<ECKey>();
             int count = 0;
-            while (hashToKeys.values().iterator().hasNext() && numberOfKeys != count) {
-                keysToReturn.add(hashToKeys.values().iterator().next());
+            while (!keyIndex.isEmpty() && numberOfKeys != count) {
+                keysToReturn.add(keyIndex.first());
                 count++;
             }
             return keysToReturn;
@@ -125,7 +123,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public List<ECKey> getKeys() {
         lock.lock();
         try {
-            return new ArrayList<ECKey>(hashToKeys.values());
+            return Lists.newArrayList(keyIndex);
         } finally {
             lock.unlock();
         }
@@ -169,7 +167,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     }
 
     private void importKeyLocked(ECKey key) {
-        if (hashToKeys.isEmpty()) {
+        if (keyIndex.isEmpty()) {
             isWatching = key.isWatching();
         } else {
             if (key.isWatching() && !isWatching)
@@ -177,9 +175,9 @@ public class BasicKeyChain implements EncryptableKeyChain {
             if (!key.isWatching() && isWatching)
                 throw new IllegalArgumentException("Key is not watching but chain is");
         }
-        ECKey previousKey = pubkeyToKeys.put(ByteString.copyFrom(key.getPubKey()), key);
-        hashToKeys.put(ByteString.copyFrom(key.getPubKeyHash()), key);
-        checkState(previousKey == null);
+        // Copies of the key, e.g. when dropping private bytes or encrypting the chain, then find its point and hash.
+        PubKeyCache.get().add(key);
+        checkState(keyIndex.add(key));
     }
 
     private void importKeysLocked(List<ECKey> keys) {
@@ -206,7 +204,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
         lock.lock();
         try {
-            return hashToKeys.get(ByteString.copyFrom(pubkeyHash));
+            return keyIndex.findByPubKeyHash(pubkeyHash);
         } finally {
             lock.unlock();
         }
@@ -215,7 +213,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public ECKey findKeyFromPubKey(byte[] pubkey) {
         lock.lock();
         try {
-            return pubkeyToKeys.get(ByteString.copyFrom(pubkey));
+            return keyIndex.findByPubKey(pubkey);
         } finally {
             lock.unlock();
         }
@@ -228,7 +226,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
 
     @Override
     public int numKeys() {
-        return pubkeyToKeys.size();
+        return keyIndex.size();
     }
 
     /** Whether this basic key chain is empty, full of regular (usable for signing) keys, or full of watching keys. */
@@ -245,7 +243,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public State isWatching() {
         lock.lock();
         try {
-            if (hashToKeys.isEmpty())
+            if (keyIndex.isEmpty())
                 return State.EMPTY;
             return isWatching ? State.WATCHING : State.REGULAR;
         } finally {
@@ -261,10 +259,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public boolean removeKey(ECKey key) {
         lock.lock();
         try {
-            boolean a = hashToKeys.remove(ByteString.copyFrom(key.getPubKeyHash())) != null;
-            boolean b = pubkeyToKeys.remove(ByteString.copyFrom(key.getPubKey())) != null;
-            checkState(a == b);   // Should be in both maps or neither.
-            return a;
+            return keyIndex.remove(key);
         } finally {
             lock.unlock();
         }
@@ -275,7 +270,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
         lock.lock();
         try {
             long time = Long.MAX_VALUE;
-            for (ECKey key : hashToKeys.values())
+            for (ECKey key : keyIndex)
                 time = Math.min(key.getCreationTimeSeconds(), time);
             return time;
         } finally {
@@ -295,7 +290,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
 
     Map<ECKey, Protos.Key.Builder> serializeToEditableProtobufs() {
         Map<ECKey, Protos.Key.Builder> result = new LinkedHashMap<ECKey, Protos.Key.Builder>();
-        for (ECKey ecKey : hashToKeys.values()) {
+        for (ECKey ecKey : keyIndex) {
             Protos.Key.Builder protoKey = serializeEncryptableItem(ecKey);
             protoKey.setPublicKey(ByteString.copyFrom(ecKey.getPubKey()));
             result.put(ecKey, protoKey);
@@ -361,7 +356,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     private void deserializeFromProtobuf(List<Protos.Key> keys) throws UnreadableWalletException {
         lock.lock();
         try {
-            checkState(hashToKeys.isEmpty(), "Tried to deserialize into a non-empty chain");
+            checkState(keyIndex.isEmpty(), "Tried to deserialize into a non-empty chain");
             for (Protos.Key key : keys) {
                 if (key.getType() != Protos.Key.Type.ORIGINAL && key.getType() != Protos.Key.Type.ENCRYPTED_SCRYPT_AES)
                     continue;
@@ -463,7 +458,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
             checkNotNull(keyCrypter);
             checkState(this.keyCrypter == null, "Key chain is already encrypted");
             BasicKeyChain encrypted = new BasicKeyChain(keyCrypter);
-            for (ECKey key : hashToKeys.values()) {
+            for (ECKey key : keyIndex) {
                 ECKey encryptedKey = key.encrypt(keyCrypter, aesKey);
                 // Check that the encrypted key can be successfully decrypted.
                 // This is done as it is a critical failure if the private key cannot be decrypted successfully
@@ -496,7 +491,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
             if (numKeys() > 0 && !checkAESKey(aesKey))
                 throw new KeyCrypterException("Password/key was incorrect.");
             BasicKeyChain decrypted = new BasicKeyChain();
-            for (ECKey key : hashToKeys.values()) {
+            for (ECKey key : keyIndex) {
                 decrypted.importKeyLocked(key.decrypt(aesKey));
             }
             return decrypted;
@@ -526,12 +521,12 @@ public class BasicKeyChain implements EncryptableKeyChain {
         lock.lock();
         try {
             // If no keys then cannot decrypt.
-            if (hashToKeys.isEmpty()) return false;
+            if (keyIndex.isEmpty()) return false;
             checkState(keyCrypter != null, "Key chain is not encrypted");
 
             // Find the first encrypted key in the wallet.
             ECKey first = null;
-            for (ECKey key : hashToKeys.values()) {
+            for (ECKey key : keyIndex) {
                 if (key.isEncrypted()) {
                     first = key;
                     break;
@@ -563,7 +558,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
         lock.lock();
         try {
             BloomFilter filter = new BloomFilter(size, falsePositiveRate, tweak);
-            for (ECKey key : hashToKeys.values())
+            for (ECKey key : keyIndex)
                 filter.insert(key);
             return filter;
         } finally {
@@ -589,7 +584,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
         lock.lock();
         try {
             ECKey oldest = null;
-            for (ECKey key : hashToKeys.values()) {
+            for (ECKey key : keyIndex) {
                 final long keyTime = key.getCreationTimeSeconds();
                 if (keyTime > timeSecs) {
                     if (oldest == null || oldest.getCreationTimeSeconds() > keyTime)
@@ -607,7 +602,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
         lock.lock();
         try {
             List<ECKey> results = Lists.newLinkedList();
-            for (ECKey key : hashToKeys.values()) {
+            for (ECKey key : keyIndex) {
                 final long keyTime = key.getCreationTimeSeconds();
                 if (keyTime < timeSecs) {
                     results.add(key);
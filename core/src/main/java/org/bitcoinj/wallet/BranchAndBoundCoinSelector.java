@@ -0,0 +1,148 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.TransactionOutput;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A {@link CoinSelector} which looks for a set of outputs adding up to the target plus at most a given cost of change,
+ * so the transaction needs no change output at all. Avoiding change saves the fee for creating and later spending it,
+ * and doesn't tell observers which output goes back to the sender. The same outputs as {@link DefaultCoinSelector}
+ * are eligible.</p>
+ *
+ * <p>The search is a depth first branch and bound over the outputs sorted by value, as done by Bitcoin Core, giving up
+ * after a bounded number of steps. If no such set is found, selection falls back to {@link DefaultCoinSelector}. Note
+ * that any excess over the target is left for the wallet to deal with, which by default only drops change outputs
+ * that would be dust. A cost of change no larger than {@link org.bitcoinj.core.Transaction#MIN_NONDUST_OUTPUT} thus
+ * makes sure the excess goes to fees.</p>
+ */
+public class BranchAndBoundCoinSelector extends DefaultCoinSelector {
+    /** The default number of steps taken before giving up on the search. */
+    public static final int DEFAULT_MAX_TRIES = 100000;
+
+    private static final Comparator<TransactionOutput> LARGEST_FIRST = new Comparator<TransactionOutput>() {
+        @Override
+        public int compare(TransactionOutput a, TransactionOutput b) {
+            return b.getValue().compareTo(a.getValue());
+        }
+    };
+
+    private final Coin costOfChange;
+    private final int maxTries;
+
+    public BranchAndBoundCoinSelector(Coin costOfChange) {
+        this(costOfChange, DEFAULT_MAX_TRIES);
+    }
+
+    public BranchAndBoundCoinSelector(Coin costOfChange, int maxTries) {
+        checkArgument(costOfChange.signum() >= 0, "costOfChange must not be negative");
+        checkArgument(maxTries > 0, "maxTries must be positive");
+        this.costOfChange = costOfChange;
+        this.maxTries = maxTries;
+    }
+
+    @Override
+    public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+        // Asked for everything (e.g. to calculate the balance), there is nothing to search for.
+        if (target.equals(NetworkParameters.MAX_MONEY))
+            return super.select(target, candidates);
+        ArrayList<TransactionOutput> selectable = new ArrayList<TransactionOutput>(candidates.size());
+        for (TransactionOutput output : candidates)
+            if (shouldSelect(output.getParentTransaction()))
+                selectable.add(output);
+        Collections.sort(selectable, LARGEST_FIRST);
+        boolean[] match = search(selectable, target.value, target.value + costOfChange.value);
+        if (match == null)
+            return super.select(target, candidates);
+        ArrayList<TransactionOutput> selected = new ArrayList<TransactionOutput>();
+        long total = 0;
+        for (int i = 0; i < match.length; i++) {
+            if (match[i]) {
+                selected.add(selectable.get(i));
+                total += selectable.get(i).getValue().value;
+            }
+        }
+        return new CoinSelection(Coin.valueOf(total), selected);
+    }
+
+    // Returns which of the outputs (largest first) to take for the smallest total within [target, upperBound], or null.
+    private boolean[] search(List<TransactionOutput> outputs, long target, long upperBound) {
+        int n = outputs.size();
+        long[] values = new long[n];
+        long available = 0;
+        for (int i = 0; i < n; i++) {
+            values[i] = outputs.get(i).getValue().value;
+            available += values[i];
+        }
+        if (target <= 0 || available < target)
+            return null;
+
+        // Outputs before index i have been decided on, available is the sum of those after.
+        boolean[] current = new boolean[n];
+        boolean[] best = null;
+        long bestExcess = Long.MAX_VALUE;
+        long value = 0;
+        int i = 0;
+        for (int tries = 0; tries < maxTries; tries++) {
+            boolean backtrack;
+            if (value + available < target || value > upperBound) {
+                backtrack = true; // Can't reach the target from here, or overshot it.
+            } else if (value >= target) {
+                long excess = value - target;
+                if (excess < bestExcess) {
+                    bestExcess = excess;
+                    best = current.clone();
+                    if (excess == 0)
+                        break; // Can't do better than exact.
+                }
+                backtrack = true; // Adding more only increases the excess.
+            } else {
+                backtrack = false;
+            }
+
+            if (backtrack) {
+                // Undo the trailing exclusions, then turn the last inclusion into an exclusion.
+                i--;
+                while (i >= 0 && !current[i]) {
+                    available += values[i];
+                    i--;
+                }
+                if (i < 0)
+                    break; // Searched everything.
+                current[i] = false;
+                value -= values[i];
+                i++;
+            } else {
+                available -= values[i];
+                // Including this one after excluding an equal one would just repeat the branch we already tried.
+                if (i == 0 || current[i - 1] || values[i] != values[i - 1]) {
+                    current[i] = true;
+                    value += values[i];
+                }
+                i++;
+            }
+        }
+        return best;
+    }
+}
@@ -33,22 +33,30 @@ public class DefaultCoinSelector implements CoinSelector {
     @Override
     public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
         ArrayList<TransactionOutput> selected = new ArrayList<TransactionOutput>();
-        // Sort the inputs by age*value so we get the highest "coindays" spent.
-        // TODO: Consider changing the wallets internal format to track just outputs and keep them ordered.
-        ArrayList<TransactionOutput> sortedOutputs = new ArrayList<TransactionOutput>(candidates);
-        // When calculating the wallet balance, we may be asked to select all possible coins, if so, avoid sorting
+        long total = 0;
+        // When calculating the wallet balance, we may be asked to select all possible coins, if so, avoid ordering
         // them in order to improve performance.
         // TODO: Take in network parameters when instanatiated, and then test against the current network. Or just have a boolean parameter for "give me everything"
-        if (!target.equals(NetworkParameters.MAX_MONEY)) {
-            sortOutputs(sortedOutputs);
+        if (target.equals(NetworkParameters.MAX_MONEY)) {
+            for (TransactionOutput output : candidates) {
+                if (total >= target.value) break;
+                // Only pick chain-included transactions, or transactions that are ours and pending.
+                if (!shouldSelect(output.getParentTransaction())) continue;
+                selected.add(output);
+                total += output.getValue().value;
+            }
+            return new CoinSelection(Coin.valueOf(total), selected);
         }
-        // Now iterate over the sorted outputs until we have got as close to the target as possible or a little
-        // bit over (excessive value will be change).
-        long total = 0;
-        for (TransactionOutput output : sortedOutputs) {
-            if (total >= target.value) break;
-            // Only pick chain-included transactions, or transactions that are ours and pending.
-            if (!shouldSelect(output.getParentTransaction())) continue;
+        // Take the outputs in order of age*value so we get the highest "coindays" spent. Rather than sorting all of
+        // them, heapify (linear time) and pop until we have got as close to the target as possible or a little bit
+        // over (excessive value will be change), so only the outputs we actually spend cost log(n) each.
+        ArrayList<PrioritizedOutput> selectable = new ArrayList<PrioritizedOutput>(candidates.size());
+        for (TransactionOutput output : candidates)
+            if (shouldSelect(output.getParentTransaction()))
+                selectable.add(new PrioritizedOutput(output));
+        PriorityQueue<PrioritizedOutput> queue = new PriorityQueue<PrioritizedOutput>(selectable);
+        while (total < target.value && !queue.isEmpty()) {
+            TransactionOutput output = queue.poll().output;
             selected.add(output);
             total += output.getValue().value;
         }
@@ -58,26 +66,58 @@ public class DefaultCoinSelector implements CoinSelector {
     }
 
     @VisibleForTesting static void sortOutputs(ArrayList<TransactionOutput> outputs) {
-        Collections.sort(outputs, new Comparator<TransactionOutput>() {
-            @Override
-            public int compare(TransactionOutput a, TransactionOutput b) {
-                int depth1 = a.getParentTransactionDepthInBlocks();
-                int depth2 = b.getParentTransactionDepthInBlocks();
-                Coin aValue = a.getValue();
-                Coin bValue = b.getValue();
-                BigInteger aCoinDepth = BigInteger.valueOf(aValue.value).multiply(BigInteger.valueOf(depth1));
-                BigInteger bCoinDepth = BigInteger.valueOf(bValue.value).multiply(BigInteger.valueOf(depth2));
-                int c1 = bCoinDepth.compareTo(aCoinDepth);
-                if (c1 != 0) return c1;
-                // The "coin*days" destroyed are equal, sort by value alone to get the lowest transaction size.
-                int c2 = bValue.compareTo(aValue);
-                if (c2 != 0) return c2;
-                // They are entirely equivalent (possibly pending) so sort by hash to ensure a total ordering.
-                BigInteger aHash = a.getParentTransactionHash().toBigInteger();
-                BigInteger bHash = b.getParentTransactionHash().toBigInteger();
-                return aHash.compareTo(bHash);
+        PrioritizedOutput[] prioritized = new PrioritizedOutput[outputs.size()];
+        for (int i = 0; i < prioritized.length; i++)
+            prioritized[i] = new PrioritizedOutput(outputs.get(i));
+        Arrays.sort(prioritized);
+        for (int i = 0; i < prioritized.length; i++)
+            outputs.set(i, prioritized[i].output);
+    }
+
+    /**
+     * An output along with its value and depth, looked up once rather than on every comparison. Orders by highest
+     * "coin*days" (value times depth) first, then by highest value, then by parent transaction hash.
+     */
+    static class PrioritizedOutput implements Comparable<PrioritizedOutput> {
+        final TransactionOutput output;
+        final long value;
+        final int depth;
+
+        PrioritizedOutput(TransactionOutput output) {
+            this.output = output;
+            this.value = output.getValue().value;
+            this.depth = output.getParentTransactionDepthInBlocks();
+        }
+
+        @Override
+        public int compareTo(PrioritizedOutput other) {
+            int c1 = compareProducts(other.value, other.depth, value, depth);
+            if (c1 != 0) return c1;
+            // The "coin*days" destroyed are equal, sort by value alone to get the lowest transaction size.
+            if (value != other.value) return other.value < value ? -1 : 1;
+            // They are entirely equivalent (possibly pending) so sort by hash to ensure a total ordering.
+            byte[] a = output.getParentTransactionHash().getBytes();
+            byte[] b = other.output.getParentTransactionHash().getBytes();
+            for (int i = 0; i < a.length; i++) {
+                int c3 = (a[i] & 0xff) - (b[i] & 0xff);
+                if (c3 != 0) return c3;
+            }
+            return 0;
+        }
+
+        // Compares a*b with c*d, where the values are non-negative and the depths at least -1 (pending).
+        private static int compareProducts(long aValue, int aDepth, long bValue, int bDepth) {
+            if (fitsInLong(aValue, aDepth) && fitsInLong(bValue, bDepth)) {
+                long a = aValue * aDepth, b = bValue * bDepth;
+                return a < b ? -1 : (a == b ? 0 : 1);
             }
-        });
+            return BigInteger.valueOf(aValue).multiply(BigInteger.valueOf(aDepth))
+                    .compareTo(BigInteger.valueOf(bValue).multiply(BigInteger.valueOf(bDepth)));
+        }
+
+        private static boolean fitsInLong(long value, int depth) {
+            return depth <= 1 || value <= Long.MAX_VALUE / depth;
+        }
     }
 
     /** Sub-classes can override this to just customize whether transactions are usable, but keep age sorting. */
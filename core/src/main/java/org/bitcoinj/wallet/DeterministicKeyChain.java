@@ -27,9 +27,11 @@ import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.listeners.KeyChainEventListener;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.PeekingIterator;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.protobuf.ByteString;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,7 +41,11 @@ import javax.annotation.Nullable;
 import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
@@ -135,6 +141,11 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         return lookaheadSize / 3;
     }
 
+    // Lookahead keys are derived on this in batches when set, see setDerivationExecutor. Smaller lookaheads than one
+    // batch are done on the calling thread as fanning them out wouldn't pay for itself.
+    @Nullable private ExecutorService derivationExecutor;
+    private static final int KEYS_PER_DERIVATION_TASK = 64;
+
     // The parent keys for external keys (handed out to other people) and internal keys (used for change addresses).
     private DeterministicKey externalParentKey, internalParentKey;
     // How many keys on each path have actually been used. This may be fewer than the number that have been deserialized
@@ -390,6 +401,7 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
 
         this.lookaheadSize = chain.lookaheadSize;
         this.lookaheadThreshold = chain.lookaheadThreshold;
+        this.derivationExecutor = chain.derivationExecutor;
 
         this.seed = chain.seed.encrypt(crypter, aesKey);
         basicKeyChain = new BasicKeyChain(crypter);
@@ -975,6 +987,7 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         if (!chain.getWatchingKey().getPubKeyPoint().equals(getWatchingKey().getPubKeyPoint()))
             throw new KeyCrypterException("Provided AES key is wrong");
         chain.lookaheadSize = lookaheadSize;
+        chain.derivationExecutor = derivationExecutor;
         // Now copy the (pubkey only) leaf keys across to avoid rederiving them. The private key bytes are missing
         // anyway so there's nothing to decrypt.
         for (ECKey eckey : basicKeyChain.getKeys()) {
@@ -1118,6 +1131,45 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         }
     }
 
+    /**
+     * Sets an executor that lookahead keys are derived on, in parallel batches, or null to derive them one at a time
+     * on the calling thread (the default). Each key costs an EC point multiplication, so on a multi-core machine this
+     * makes a big difference to restoring a wallet with a large lookahead size. The keys are still only added to the
+     * chain once they have all been derived. The executor isn't shut down by the chain.
+     */
+    public void setDerivationExecutor(@Nullable ExecutorService derivationExecutor) {
+        lock.lock();
+        try {
+            this.derivationExecutor = derivationExecutor;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Derives keys on both the external and internal paths, if necessary, so that at least the given number are
+     * waiting beyond the ones already issued on each. This is like a one off lookahead of that size, and is useful
+     * before replaying the chain for a wallet restored from a seed, which may have used many more keys than the
+     * lookahead size covers. The new keys are added in one go, so listeners hear about them once.
+     *
+     * @return the number of keys that were derived
+     */
+    public int deriveKeysAhead(int numKeys) {
+        checkArgument(numKeys >= 0, "numKeys must not be negative");
+        lock.lock();
+        try {
+            List<DeterministicKey> keys = maybeLookAhead(externalParentKey, issuedExternalKeys, numKeys, 0);
+            keys.addAll(maybeLookAhead(internalParentKey, issuedInternalKeys, numKeys, 0));
+            if (!keys.isEmpty()) {
+                keyLookaheadEpoch++;
+                basicKeyChain.importKeys(keys);
+            }
+            return keys.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Pre-generate enough keys to reach the lookahead size. You can call this if you need to explicitly invoke
      * the lookahead procedure, but it's normally unnecessary as it will be done automatically when needed.
@@ -1164,7 +1216,9 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         List<DeterministicKey> result  = new ArrayList<DeterministicKey>(needed);
         final Stopwatch watch = Stopwatch.createStarted();
         int nextChild = numChildren;
-        for (int i = 0; i < needed; i++) {
+        if (derivationExecutor != null && needed > KEYS_PER_DERIVATION_TASK)
+            nextChild = deriveInParallel(parent, nextChild, needed, result);
+        for (int i = result.size(); i < needed; i++) {
             DeterministicKey key = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild);
             key = key.dropPrivateBytes();
             hierarchy.putKey(key);
@@ -1176,6 +1230,50 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         return result;
     }
 
+    /**
+     * Derives up to the given number of children of the parent starting at firstChild on the derivation executor,
+     * adding them to the hierarchy and the result list in order. Returns the child number to carry on from. This
+     * stops short if a child had to be skipped for being invalid, as every batch after that one assumed it wasn't
+     * and has derived the wrong children, so the caller must derive the rest one by one as usual.
+     */
+    private int deriveInParallel(final DeterministicKey parent, int firstChild, int numKeys,
+                                 List<DeterministicKey> result) {
+        checkState(lock.isHeldByCurrentThread());
+        parent.getPubKeyPoint();   // Decode the lazy point once here rather than racing to do it in every task.
+        List<Future<List<DeterministicKey>>> batches = new ArrayList<Future<List<DeterministicKey>>>();
+        for (int start = 0; start < numKeys; start += KEYS_PER_DERIVATION_TASK) {
+            final int from = firstChild + start;
+            final int to = firstChild + Math.min(start + KEYS_PER_DERIVATION_TASK, numKeys);
+            batches.add(derivationExecutor.submit(new Callable<List<DeterministicKey>>() {
+                @Override
+                public List<DeterministicKey> call() {
+                    List<DeterministicKey> keys = new ArrayList<DeterministicKey>(to - from);
+                    for (int child = from; child < to; child++)
+                        keys.add(HDKeyDerivation.deriveThisOrNextChildKey(parent, child).dropPrivateBytes());
+                    return keys;
+                }
+            }));
+        }
+        int nextChild = firstChild;
+        try {
+            for (Future<List<DeterministicKey>> batch : batches) {
+                for (DeterministicKey key : Uninterruptibles.getUninterruptibly(batch)) {
+                    if (key.getChildNumber().num() != nextChild)
+                        return nextChild;
+                    hierarchy.putKey(key);
+                    result.add(key);
+                    nextChild++;
+                }
+            }
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            for (Future<List<DeterministicKey>> batch : batches)
+                batch.cancel(false);
+        }
+        return nextChild;
+    }
+
     /** Housekeeping call to call when lookahead might be needed.  Normally called automatically by KeychainGroup. */
     public void maybeLookAheadScripts() {
     }
@@ -73,6 +73,7 @@ public class KeyChainGroup implements KeyBag {
     @Nullable private KeyCrypter keyCrypter;
     private int lookaheadSize = -1;
     private int lookaheadThreshold = -1;
+    @Nullable private ExecutorService derivationExecutor;
 
     /** Creates a keychain group with no basic chain, and a single, lazily created HD chain. */
     public KeyChainGroup(NetworkParameters params) {
@@ -139,6 +140,8 @@ public class KeyChainGroup implements KeyBag {
             chain.setLookaheadSize(lookaheadSize);
         if (lookaheadThreshold >= 0)
             chain.setLookaheadThreshold(lookaheadThreshold);
+        if (derivationExecutor != null)
+            chain.setDerivationExecutor(derivationExecutor);
         chains.add(chain);
     }
 
@@ -253,6 +256,16 @@ public class KeyChainGroup implements KeyBag {
         return chains.get(chains.size() - 1);
     }
 
+    /**
+     * Sets the executor that ALL deterministic key chains derive their lookahead keys on, see
+     * {@link DeterministicKeyChain#setDerivationExecutor(ExecutorService)} for more information.
+     */
+    public void setDerivationExecutor(@Nullable ExecutorService derivationExecutor) {
+        this.derivationExecutor = derivationExecutor;
+        for (DeterministicKeyChain chain : chains)
+            chain.setDerivationExecutor(derivationExecutor);
+    }
+
     /**
      * Sets the lookahead buffer size for ALL deterministic key chains as well as for following key chains if any exist,
      * see {@link DeterministicKeyChain#setLookaheadSize(int)}
@@ -499,6 +512,7 @@ public class KeyChainGroup implements KeyBag {
         }
         for (DeterministicKeyChain chain : chains)
             newChains.add(chain.toEncrypted(keyCrypter, aesKey));
+        addListenersTo(newBasic, newChains);
         this.keyCrypter = keyCrypter;
         basic = newBasic;
         chains.clear();
@@ -518,6 +532,7 @@ public class KeyChainGroup implements KeyBag {
         List<DeterministicKeyChain> newChains = new ArrayList<DeterministicKeyChain>(chains.size());
         for (DeterministicKeyChain chain : chains)
             newChains.add(chain.toDecrypted(aesKey));
+        addListenersTo(newBasic, newChains);
 
         this.keyCrypter = null;
         basic = newBasic;
@@ -525,6 +540,17 @@ public class KeyChainGroup implements KeyBag {
         chains.addAll(newChains);
     }
 
+    // Registers our listeners on chains that are about to replace or join the current ones, so that they keep hearing
+    // about new keys.
+    private void addListenersTo(@Nullable BasicKeyChain newBasic, List<DeterministicKeyChain> newChains) {
+        for (ListenerRegistration<KeyChainEventListener> registration : basic.getListeners()) {
+            if (newBasic != null)
+                newBasic.addEventListener(registration.listener, registration.executor);
+            for (DeterministicKeyChain chain : newChains)
+                chain.addEventListener(registration.listener, registration.executor);
+        }
+    }
+
     /** Returns true if the group is encrypted. */
     public boolean isEncrypted() {
         return keyCrypter != null;
@@ -734,6 +760,9 @@ public class KeyChainGroup implements KeyBag {
         if (aesKey != null) {
             chain = chain.toEncrypted(checkNotNull(basic.getKeyCrypter()), aesKey);
         }
+        if (derivationExecutor != null)
+            chain.setDerivationExecutor(derivationExecutor);
+        addListenersTo(null, ImmutableList.of(chain));
         chains.add(chain);
         return chain;
     }
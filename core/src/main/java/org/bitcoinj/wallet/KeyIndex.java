@@ -0,0 +1,224 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.ECKey;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>The keys of a {@link BasicKeyChain}, indexed by both public key hash and public key. It takes a lot less memory
+ * per key than a pair of maps keyed by {@link com.google.protobuf.ByteString}, which matters for watching wallets with
+ * millions of keys, and doesn't allocate anything to look a key up by its hash.</p>
+ *
+ * <p>Keys are held in an array in the order they were added, which is also the order they are iterated in. Each
+ * index is an open addressed table, probed linearly, holding the position of a key in that array along with a tag
+ * made of eight bytes of the hash or public key. A matching tag is confirmed against the key itself, so tags that
+ * collide are harmless. Removing a key leaves a gap in the array until it next needs to grow.</p>
+ *
+ * <p>Not thread safe, the key chain guards it with its own lock.</p>
+ */
+class KeyIndex implements Iterable<ECKey> {
+    private static final int INITIAL_CAPACITY = 8;
+
+    private ECKey[] keys = new ECKey[INITIAL_CAPACITY];
+    // Number of positions in keys that have been used, including gaps, and the number of keys actually present.
+    private int end, size;
+    // The tables. A slot holds the position of its key in keys plus one, so that zero means the slot is free. There
+    // are twice as many slots as positions, so the tables are never more than half full.
+    private int[] hashSlots = new int[INITIAL_CAPACITY * 2], pubKeySlots = new int[INITIAL_CAPACITY * 2];
+    private long[] hashTags = new long[INITIAL_CAPACITY * 2], pubKeyTags = new long[INITIAL_CAPACITY * 2];
+
+    /** Returns the key with the given public key hash, or null if there isn't one. */
+    @Nullable
+    ECKey findByPubKeyHash(byte[] pubKeyHash) {
+        int slot = find(hashSlots, hashTags, hashTag(pubKeyHash), pubKeyHash, true);
+        return slot < 0 ? null : keys[hashSlots[slot] - 1];
+    }
+
+    /** Returns the key with the given public key, or null if there isn't one. */
+    @Nullable
+    ECKey findByPubKey(byte[] pubKey) {
+        int slot = find(pubKeySlots, pubKeyTags, pubKeyTag(pubKey), pubKey, false);
+        return slot < 0 ? null : keys[pubKeySlots[slot] - 1];
+    }
+
+    /** Adds the key and returns true, or returns false without changing anything if its public key is already here. */
+    boolean add(ECKey key) {
+        byte[] pubKey = key.getPubKey();
+        if (find(pubKeySlots, pubKeyTags, pubKeyTag(pubKey), pubKey, false) >= 0)
+            return false;
+        if (end == keys.length)
+            // Grow if it's at least half full of keys, otherwise just close up the gaps.
+            rebuild(size >= keys.length / 2 ? keys.length * 2 : keys.length);
+        keys[end] = key;
+        insert(hashSlots, hashTags, hashTag(key.getPubKeyHash()), end + 1);
+        insert(pubKeySlots, pubKeyTags, pubKeyTag(pubKey), end + 1);
+        end++;
+        size++;
+        return true;
+    }
+
+    /** Removes the key with the same public key as the given one, returning whether there was one. */
+    boolean remove(ECKey key) {
+        byte[] pubKey = key.getPubKey();
+        int pubKeySlot = find(pubKeySlots, pubKeyTags, pubKeyTag(pubKey), pubKey, false);
+        if (pubKeySlot < 0)
+            return false;
+        int entry = pubKeySlots[pubKeySlot];
+        ECKey removed = keys[entry - 1];
+        int mask = hashSlots.length - 1;
+        int hashSlot = slot(hashTag(removed.getPubKeyHash()), mask);
+        while (hashSlots[hashSlot] != entry)
+            hashSlot = (hashSlot + 1) & mask;
+        delete(pubKeySlots, pubKeyTags, pubKeySlot);
+        delete(hashSlots, hashTags, hashSlot);
+        keys[entry - 1] = null;
+        size--;
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Returns the key that was added first of the ones still here. */
+    ECKey first() {
+        for (int i = 0; i < end; i++)
+            if (keys[i] != null)
+                return keys[i];
+        throw new NoSuchElementException();
+    }
+
+    @Override
+    public Iterator<ECKey> iterator() {
+        return new Iterator<ECKey>() {
+            private int next = skipGaps(0);
+
+            private int skipGaps(int i) {
+                while (i < end && keys[i] == null)
+                    i++;
+                return i;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < end;
+            }
+
+            @Override
+            public ECKey next() {
+                if (next >= end)
+                    throw new NoSuchElementException();
+                ECKey key = keys[next];
+                next = skipGaps(next + 1);
+                return key;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private void rebuild(int capacity) {
+        ECKey[] old = keys;
+        int oldEnd = end;
+        keys = new ECKey[capacity];
+        hashSlots = new int[capacity * 2];
+        pubKeySlots = new int[capacity * 2];
+        hashTags = new long[capacity * 2];
+        pubKeyTags = new long[capacity * 2];
+        end = 0;
+        for (int i = 0; i < oldEnd; i++) {
+            ECKey key = old[i];
+            if (key == null)
+                continue;
+            keys[end] = key;
+            insert(hashSlots, hashTags, hashTag(key.getPubKeyHash()), end + 1);
+            insert(pubKeySlots, pubKeyTags, pubKeyTag(key.getPubKey()), end + 1);
+            end++;
+        }
+    }
+
+    // Returns the slot holding the key matching the given bytes, or -1.
+    private int find(int[] slots, long[] tags, long tag, byte[] bytes, boolean byHash) {
+        int mask = slots.length - 1;
+        for (int i = slot(tag, mask); slots[i] != 0; i = (i + 1) & mask) {
+            if (tags[i] != tag)
+                continue;
+            ECKey key = keys[slots[i] - 1];
+            if (Arrays.equals(byHash ? key.getPubKeyHash() : key.getPubKey(), bytes))
+                return i;
+        }
+        return -1;
+    }
+
+    private static void insert(int[] slots, long[] tags, long tag, int entry) {
+        int mask = slots.length - 1;
+        int i = slot(tag, mask);
+        while (slots[i] != 0)
+            i = (i + 1) & mask;
+        slots[i] = entry;
+        tags[i] = tag;
+    }
+
+    // Frees a slot, moving back any later entries in the same run that would otherwise no longer be found.
+    private static void delete(int[] slots, long[] tags, int i) {
+        int mask = slots.length - 1;
+        for (int j = (i + 1) & mask; slots[j] != 0; j = (j + 1) & mask) {
+            int home = slot(tags[j], mask);
+            // The entry at j can fill the hole at i unless its home lies cyclically in (i, j].
+            boolean homeBetween = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!homeBetween) {
+                slots[i] = slots[j];
+                tags[i] = tags[j];
+                i = j;
+            }
+        }
+        slots[i] = 0;
+        tags[i] = 0;
+    }
+
+    private static int slot(long tag, int mask) {
+        int hash = (int) (tag ^ (tag >>> 32));
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private static long hashTag(byte[] pubKeyHash) {
+        return tag(pubKeyHash, 0);
+    }
+
+    // The first byte of a public key only says how it's encoded, so it's skipped.
+    private static long pubKeyTag(byte[] pubKey) {
+        return tag(pubKey, 1);
+    }
+
+    private static long tag(byte[] bytes, int offset) {
+        long tag = 0;
+        for (int i = offset; i < offset + 8 && i < bytes.length; i++)
+            tag = (tag << 8) | (bytes[i] & 0xff);
+        return tag;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.TransactionOutput;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A {@link CoinSelector} which spends the largest outputs first, so transactions use as few inputs as possible. The
+ * same outputs as {@link DefaultCoinSelector} are eligible. Outputs are taken off a heap one at a time, so only the
+ * outputs actually spent are ordered.
+ */
+public class LargestFirstCoinSelector extends DefaultCoinSelector {
+    private static class ValuedOutput implements Comparable<ValuedOutput> {
+        final TransactionOutput output;
+        final long value;
+
+        ValuedOutput(TransactionOutput output) {
+            this.output = output;
+            this.value = output.getValue().value;
+        }
+
+        @Override
+        public int compareTo(ValuedOutput other) {
+            return value > other.value ? -1 : (value == other.value ? 0 : 1);
+        }
+    }
+
+    @Override
+    public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+        // Asked for everything (e.g. to calculate the balance), so order doesn't matter.
+        if (target.equals(NetworkParameters.MAX_MONEY))
+            return super.select(target, candidates);
+        ArrayList<ValuedOutput> selectable = new ArrayList<ValuedOutput>(candidates.size());
+        for (TransactionOutput output : candidates)
+            if (shouldSelect(output.getParentTransaction()))
+                selectable.add(new ValuedOutput(output));
+        PriorityQueue<ValuedOutput> queue = new PriorityQueue<ValuedOutput>(selectable);
+        ArrayList<TransactionOutput> selected = new ArrayList<TransactionOutput>();
+        long total = 0;
+        while (total < target.value && !queue.isEmpty()) {
+            ValuedOutput next = queue.poll();
+            selected.add(next.output);
+            total += next.value;
+        }
+        return new CoinSelection(Coin.valueOf(total), selected);
+    }
+}
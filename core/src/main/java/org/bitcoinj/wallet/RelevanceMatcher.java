@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.script.Script;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>A copy of the public keys, public key hashes and watched scripts a wallet had at some point, used to answer
+ * whether an output is ours without taking any locks or allocating. The {@link Wallet} builds one on demand and keeps
+ * it up to date as keys are added to its key chains, so new keys cost a few inserts rather than a lock acquisition and
+ * a {@link com.google.protobuf.ByteString} per output checked. Anything else that changes the keys or watched scripts
+ * makes the wallet drop it and build a new one.</p>
+ *
+ * <p>Pay to script hash outputs can only be matched by married key chains, which keep their redeem scripts to
+ * themselves, so whether a wallet with one of those owns a script hash is left to the chains.</p>
+ */
+class RelevanceMatcher {
+    /** The version of the wallet's keys this was built from. */
+    final int version;
+    private final ByteArraySet pubKeyHashes, pubKeys;
+    private final ImmutableSet<Script> watchedScripts;
+    private final boolean hasMarriedChains;
+
+    RelevanceMatcher(int version, Collection<ECKey> keys, Collection<Script> watchedScripts, boolean hasMarriedChains) {
+        this.version = version;
+        this.pubKeyHashes = new ByteArraySet(keys.size());
+        this.pubKeys = new ByteArraySet(keys.size());
+        this.watchedScripts = ImmutableSet.copyOf(watchedScripts);
+        this.hasMarriedChains = hasMarriedChains;
+        addKeys(keys);
+    }
+
+    /**
+     * Adds keys that were added to the wallet after this was built. Concurrent lookups may or may not see them until
+     * this returns.
+     */
+    synchronized void addKeys(Collection<? extends ECKey> keys) {
+        for (ECKey key : keys) {
+            pubKeyHashes.add(key.getPubKeyHash());
+            pubKeys.add(key.getPubKey());
+        }
+    }
+
+    boolean isPubKeyHashMine(byte[] pubKeyHash) {
+        return pubKeyHashes.contains(pubKeyHash);
+    }
+
+    boolean isPubKeyMine(byte[] pubKey) {
+        return pubKeys.contains(pubKey);
+    }
+
+    boolean isWatchedScript(Script script) {
+        return watchedScripts.contains(script);
+    }
+
+    /** Whether there are any married chains, in which case script hashes must be looked up in the key chains. */
+    boolean hasMarriedChains() {
+        return hasMarriedChains;
+    }
+
+    // An open addressed, linearly probed set of byte arrays that can be queried without wrapping them. Elements are
+    // only ever added, by one thread at a time, and lookups need no locking: a probe either finds an element that is
+    // being added or stops at the empty slot before it. The table is replaced by one twice the size when half full.
+    private static class ByteArraySet {
+        private volatile AtomicReferenceArray<byte[]> slots;
+        private int size;
+
+        ByteArraySet(int expectedSize) {
+            slots = new AtomicReferenceArray<byte[]>(Integer.highestOneBit(Math.max(expectedSize, 4) * 2 - 1) << 1);
+        }
+
+        boolean contains(byte[] bytes) {
+            AtomicReferenceArray<byte[]> slots = this.slots;
+            int mask = slots.length() - 1;
+            byte[] element;
+            for (int i = slot(bytes, mask); (element = slots.get(i)) != null; i = (i + 1) & mask)
+                if (Arrays.equals(element, bytes))
+                    return true;
+            return false;
+        }
+
+        void add(byte[] element) {
+            AtomicReferenceArray<byte[]> slots = this.slots;
+            if ((size + 1) * 2 > slots.length()) {
+                AtomicReferenceArray<byte[]> bigger = new AtomicReferenceArray<byte[]>(slots.length() * 2);
+                for (int i = 0; i < slots.length(); i++) {
+                    byte[] old = slots.get(i);
+                    if (old != null)
+                        insert(bigger, old);
+                }
+                this.slots = slots = bigger;
+            }
+            if (insert(slots, element))
+                size++;
+        }
+
+        private static boolean insert(AtomicReferenceArray<byte[]> slots, byte[] element) {
+            int mask = slots.length() - 1;
+            int i = slot(element, mask);
+            byte[] existing;
+            while ((existing = slots.get(i)) != null) {
+                if (Arrays.equals(existing, element))
+                    return false;
+                i = (i + 1) & mask;
+            }
+            slots.set(i, element);
+            return true;
+        }
+
+        private static int slot(byte[] bytes, int mask) {
+            int hash = Arrays.hashCode(bytes);
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+    }
+}
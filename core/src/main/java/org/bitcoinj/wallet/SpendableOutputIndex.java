@@ -0,0 +1,140 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.script.Script;
+
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>An index over the outputs a {@link Wallet} could spend, which remembers per output the things that are expensive
+ * to work out again on every send or balance query: its value, whether the wallet can sign for it, and whether it
+ * is a coinbase that has to mature first. Outputs can be listed in the order the wallet learnt about them (oldest
+ * first) or by value.</p>
+ *
+ * <p>Outputs are keyed like {@link Wallet#myUnspents}, so the index always holds exactly the same outputs. Whether the
+ * wallet can sign for an output only changes when keys are added or removed; the wallet then calls
+ * {@link #updateSignability(Wallet)}. Not thread safe, the wallet only touches it with its lock held.</p>
+ */
+class SpendableOutputIndex {
+    static class Entry {
+        final TransactionOutput output;
+        final long value;
+        final boolean coinbase;
+        final long sequence;
+        boolean signable;
+
+        Entry(TransactionOutput output, boolean signable, long sequence) {
+            this.output = output;
+            this.value = output.getValue().value;
+            this.coinbase = checkNotNull(output.getParentTransaction()).isCoinBase();
+            this.signable = signable;
+            this.sequence = sequence;
+        }
+
+        // Only for range queries on byValue.
+        private Entry(long value, long sequence) {
+            this.output = null;
+            this.value = value;
+            this.coinbase = false;
+            this.sequence = sequence;
+        }
+
+        boolean isSpendable(boolean excludeImmatureCoinbases, boolean excludeUnsignable) {
+            if (excludeUnsignable && !signable)
+                return false;
+            // Only coinbases can be immature, and their maturity moves with the chain so isn't cached.
+            return !excludeImmatureCoinbases || !coinbase || checkNotNull(output.getParentTransaction()).isMature();
+        }
+    }
+
+    private static final Comparator<Entry> BY_VALUE = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.value != b.value)
+                return a.value < b.value ? -1 : 1;
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    };
+
+    // Iterates in insertion order, i.e. oldest first.
+    private final LinkedHashMap<TransactionOutput, Entry> entries = new LinkedHashMap<TransactionOutput, Entry>();
+    private final TreeSet<Entry> byValue = new TreeSet<Entry>(BY_VALUE);
+    private long nextSequence;
+
+    /** Adds an output, unless an equal one is already indexed. Returns whether it was added. */
+    boolean add(TransactionOutput output, boolean signable) {
+        if (entries.containsKey(output))
+            return false;
+        Entry entry = new Entry(output, signable, nextSequence++);
+        entries.put(output, entry);
+        byValue.add(entry);
+        return true;
+    }
+
+    /** Removes an output, or an equal one. Returns whether anything was removed. */
+    boolean remove(TransactionOutput output) {
+        Entry entry = entries.remove(output);
+        if (entry == null)
+            return false;
+        byValue.remove(entry);
+        return true;
+    }
+
+    void clear() {
+        entries.clear();
+        byValue.clear();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /** Re-evaluates {@link Wallet#canSignFor(Script)} for every output, after the wallet's keys changed. */
+    void updateSignability(Wallet wallet) {
+        for (Entry entry : entries.values())
+            entry.signable = wallet.canSignFor(entry.output.getScriptPubKey());
+    }
+
+    /** Returns the indexed outputs passing the given filters, oldest first. */
+    List<TransactionOutput> getOutputs(boolean excludeImmatureCoinbases, boolean excludeUnsignable) {
+        List<TransactionOutput> outputs = new ArrayList<TransactionOutput>(entries.size());
+        for (Entry entry : entries.values())
+            if (entry.isSpendable(excludeImmatureCoinbases, excludeUnsignable))
+                outputs.add(entry.output);
+        return outputs;
+    }
+
+    /**
+     * Returns the indexed outputs worth at least minValue and at most maxValue that pass the given filters, smallest
+     * first. Only the outputs within the range are looked at.
+     */
+    List<TransactionOutput> getOutputs(Coin minValue, Coin maxValue, boolean excludeImmatureCoinbases,
+                                       boolean excludeUnsignable) {
+        List<TransactionOutput> outputs = new ArrayList<TransactionOutput>();
+        if (minValue.compareTo(maxValue) > 0)
+            return outputs;
+        Entry from = new Entry(minValue.value, Long.MIN_VALUE), to = new Entry(maxValue.value, Long.MAX_VALUE);
+        for (Entry entry : byValue.subSet(from, true, to, true))
+            if (entry.isSpendable(excludeImmatureCoinbases, excludeUnsignable))
+                outputs.add(entry.output);
+        return outputs;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>The spent and dead transactions of a wallet which were left serialized when it was loaded, see
+ * {@link WalletProtobufSerializer#setLoadHistoryLazily(boolean)}. None of their outputs can be spent any more, so
+ * they don't matter for balances or creating spends, and the wallet gets by without them until something asks for the
+ * full history or a new transaction touches it. Then the wallet reads all of them in at once.</p>
+ *
+ * <p>History transactions which are directly connected to unspent or pending ones are read at load time already, as
+ * those connections must be in place right away, and go into the pools like everything else. Their outputs spent by
+ * unread transactions stay unconnected until the rest follows, so their protos are kept to fill in those spenders
+ * when saving.</p>
+ *
+ * <p>To recognise transactions touching the history without reading it, this keeps the hashes of the history
+ * transactions and compact fingerprints of the outpoints they spend. Fingerprint collisions only cause an unnecessary
+ * read.</p>
+ *
+ * <p>Once {@link #doneAdding()} has been called, nothing changes it any more, so it can be asked from many threads at
+ * once without locking.</p>
+ */
+class UnloadedHistory {
+    // Serialized Protos.Transaction messages of those transactions which have not been read at all.
+    private final Map<Sha256Hash, ByteString> serialized = new LinkedHashMap<Sha256Hash, ByteString>();
+    // Protos of the transactions which have been read ahead.
+    private final Map<Sha256Hash, Protos.Transaction> readAhead = new LinkedHashMap<Sha256Hash, Protos.Transaction>();
+    private long[] spentOutPoints = new long[16];
+    private int numSpentOutPoints;
+    private boolean doneAdding = false;
+
+    /** Adds a transaction to be read later. */
+    void add(Protos.Transaction txProto) {
+        checkState(!doneAdding);
+        Sha256Hash hash = WalletProtobufSerializer.byteStringToHash(txProto.getHash());
+        serialized.put(hash, txProto.toByteString());
+        addSpentOutPoints(txProto);
+    }
+
+    /** Adds a transaction which had to be read ahead. */
+    void addReadAhead(Protos.Transaction txProto) {
+        checkState(!doneAdding);
+        readAhead.put(WalletProtobufSerializer.byteStringToHash(txProto.getHash()), txProto);
+        addSpentOutPoints(txProto);
+    }
+
+    private void addSpentOutPoints(Protos.Transaction txProto) {
+        for (Protos.TransactionInput input : txProto.getTransactionInputList()) {
+            if (numSpentOutPoints == spentOutPoints.length)
+                spentOutPoints = Arrays.copyOf(spentOutPoints, numSpentOutPoints * 2);
+            spentOutPoints[numSpentOutPoints++] = fingerprint(input.getTransactionOutPointHash().toByteArray(),
+                    input.getTransactionOutPointIndex() & 0xFFFFFFFFL);
+        }
+    }
+
+    /** Prepares the outpoint fingerprints for lookups. Must be called once all transactions were added. */
+    void doneAdding() {
+        checkState(!doneAdding);
+        Arrays.sort(spentOutPoints, 0, numSpentOutPoints);
+        doneAdding = true;
+    }
+
+    private static long fingerprint(byte[] hash, long index) {
+        long fingerprint = 0;
+        for (int i = 0; i < 8; i++)
+            fingerprint = (fingerprint << 8) | (hash[i] & 0xFF);
+        return fingerprint ^ (index * 0x9E3779B97F4A7C15L);
+    }
+
+    /** Returns the number of transactions which have not been read. */
+    int size() {
+        return serialized.size();
+    }
+
+    /** Returns true if the transaction with the given hash is part of the history and has not been read. */
+    boolean contains(Sha256Hash hash) {
+        return serialized.containsKey(hash);
+    }
+
+    /** Returns true if the transaction with the given hash was read ahead, so is in the wallet but incomplete. */
+    boolean isReadAhead(Sha256Hash hash) {
+        return readAhead.containsKey(hash);
+    }
+
+    /**
+     * Returns true if the given transaction is part of the history, spends an output of a history transaction,
+     * (possibly) double spends one or has outputs (possibly) spent by one, meaning it cannot be processed correctly
+     * without reading the history in.
+     */
+    boolean touches(Transaction tx) {
+        if (contains(tx.getHash()) || isReadAhead(tx.getHash()))
+            return true;
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutPoint outpoint = input.getOutpoint();
+            if (contains(outpoint.getHash()) || isReadAhead(outpoint.getHash())
+                    || isSpent(outpoint.getHash(), outpoint.getIndex()))
+                return true;
+        }
+        for (int i = 0; i < tx.getOutputs().size(); i++) {
+            if (isSpent(tx.getHash(), i))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean isSpent(Sha256Hash hash, long index) {
+        checkState(doneAdding);
+        return Arrays.binarySearch(spentOutPoints, 0, numSpentOutPoints, fingerprint(hash.getBytes(), index)) >= 0;
+    }
+
+    /**
+     * Returns the proto a transaction read ahead was read from, or null if it wasn't read ahead. Its outputs record
+     * spenders that are still unread, which the live transaction doesn't know about.
+     */
+    Protos.Transaction getReadAhead(Sha256Hash hash) {
+        return readAhead.get(hash);
+    }
+
+    /** Returns the protos of the transactions which have not been read, parsing them. */
+    List<Protos.Transaction> getUnreadProtos() throws InvalidProtocolBufferException {
+        List<Protos.Transaction> protos = new ArrayList<Protos.Transaction>(serialized.size());
+        for (ByteString bytes : serialized.values())
+            protos.add(Protos.Transaction.parseFrom(bytes));
+        return protos;
+    }
+
+    /**
+     * Returns the protos of all transactions in the history, including those read ahead, parsing those which were kept
+     * serialized.
+     */
+    List<Protos.Transaction> getProtos() throws InvalidProtocolBufferException {
+        List<Protos.Transaction> protos = new ArrayList<Protos.Transaction>(readAhead.size() + serialized.size());
+        protos.addAll(readAhead.values());
+        protos.addAll(getUnreadProtos());
+        return protos;
+    }
+}
@@ -129,8 +129,29 @@ public class Wallet extends BaseTaggableObject
 
     // Ordering: lock > keyChainGroupLock. KeyChainGroup is protected separately to allow fast querying of current receive address
     // even if the wallet itself is busy e.g. saving or processing a big reorg. Useful for reducing UI latency.
-    protected final ReentrantLock lock = Threading.lock("wallet");
-    protected final ReentrantLock keyChainGroupLock = Threading.lock("wallet-keychaingroup");
+    //
+    // Both are the write side of a read-write lock. Queries which only look at the wallet take the read side instead,
+    // so they run alongside each other and only wait while something is actually changing. Anything that modifies the
+    // wallet, or updates cached state as it goes, takes the write side. Whoever holds the write side may also take the
+    // read side, but a thread holding just the read side must never go on to take the write side: that deadlocks.
+    private final ReentrantReadWriteLock walletLock = Threading.readWriteLock("wallet");
+    /**
+     * The write side of the wallet lock. This used to be a ReentrantLock, its type changed when readers started to
+     * share the read side.
+     * @deprecated Subclasses may still lock it to exclude everything else, but the field will go away.
+     */
+    @Deprecated
+    protected final ReentrantReadWriteLock.WriteLock lock = walletLock.writeLock();
+    private final ReentrantReadWriteLock.ReadLock readLock = walletLock.readLock();
+    private final ReentrantReadWriteLock keyChainGroupReadWriteLock = Threading.readWriteLock("wallet-keychaingroup");
+    /**
+     * The write side of the key chain group lock. This used to be a ReentrantLock, its type changed when readers
+     * started to share the read side.
+     * @deprecated Subclasses may still lock it to exclude everything else, but the field will go away.
+     */
+    @Deprecated
+    protected final ReentrantReadWriteLock.WriteLock keyChainGroupLock = keyChainGroupReadWriteLock.writeLock();
+    private final ReentrantReadWriteLock.ReadLock keyChainGroupReadLock = keyChainGroupReadWriteLock.readLock();
 
     // The various pools below give quick access to wallet-relevant transactions by the state they're in:
     //
@@ -159,9 +180,34 @@ public class Wallet extends BaseTaggableObject
     // All transactions together.
     protected final Map<Sha256Hash, Transaction> transactions;
 
+    // Spent and dead transactions which were not read when the wallet was loaded, see
+    // WalletProtobufSerializer.setLoadHistoryLazily. Read in by loadHistory() as soon as something needs them.
+    // Volatile so the common case of there being none can be checked without the lock.
+    @GuardedBy("lock") @Nullable private volatile UnloadedHistory unloadedHistory;
+
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
-    // Used to speed up various calculations.
+    // Used to speed up various calculations. Only modify via addUnspent/removeUnspent/clearUnspents, which keep the
+    // balance bookkeeping below in sync.
     protected final HashSet<TransactionOutput> myUnspents = Sets.newHashSet();
+    // The same outputs as myUnspents, along with whether we can sign for them etc. so spend candidates don't have to
+    // be worked out from scratch.
+    private final SpendableOutputIndex spendableOutputs = new SpendableOutputIndex();
+    // Set when keys were added or removed, so signability in spendableOutputs must be re-evaluated before use.
+    private volatile boolean signabilityStale;
+    // Sum of the values in myUnspents, i.e. the ESTIMATED balance. Written under the lock, read without it.
+    private volatile Coin myUnspentsValue = Coin.ZERO;
+    // The other balance types, published for lock-free reads by getBalance(BalanceType). Swapped for a stale snapshot
+    // whenever something happens that could move a balance.
+    private final AtomicReference<BalanceSnapshot> balanceSnapshot = new AtomicReference<BalanceSnapshot>(new BalanceSnapshot());
+    // The snapshot handed out by getSnapshot(). Only valid while its version matches: anything that changes what a
+    // snapshot shows bumps the version via invalidateSnapshot().
+    @Nullable private volatile WalletSnapshot vSnapshot;
+    private final AtomicInteger snapshotVersion = new AtomicInteger();
+    // Answers isPubKeyHashMine and friends without locking. Only valid while its version matches: keys added to the
+    // key chains are added to it, other changes to the keys or watched scripts bump the version via
+    // invalidateRelevanceMatcher().
+    private final AtomicReference<RelevanceMatcher> relevanceMatcher = new AtomicReference<RelevanceMatcher>();
+    private final AtomicInteger relevanceMatcherVersion = new AtomicInteger();
 
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
@@ -201,6 +247,7 @@ public class Wallet extends BaseTaggableObject
         = new CopyOnWriteArrayList<ListenerRegistration<WalletReorganizeEventListener>>();
     private final CopyOnWriteArrayList<ListenerRegistration<ScriptsChangeEventListener>> scriptChangeListeners
         = new CopyOnWriteArrayList<ListenerRegistration<ScriptsChangeEventListener>>();
+    private final EventCoalescer confidenceEvents = new EventCoalescer();
     private final CopyOnWriteArrayList<ListenerRegistration<TransactionConfidenceEventListener>> transactionConfidenceListeners
         = new CopyOnWriteArrayList<ListenerRegistration<TransactionConfidenceEventListener>>();
 
@@ -224,6 +271,10 @@ public class Wallet extends BaseTaggableObject
     private int onWalletChangedSuppressions;
     private boolean insideReorg;
     private Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanged;
+    // Non-zero whilst a batch of transactions is being received, see receivePending(List) and receiveFromBlock(List,
+    // ...). Confidence events and the save that committing a transaction triggers are held back until the batch ends.
+    private int batchDepth;
+    private boolean batchNeedsSave;
     protected volatile WalletFiles vFileManager;
     // Object that is used to send transactions asynchronously when the wallet requires it.
     protected volatile TransactionBroadcaster vTransactionBroadcaster;
@@ -318,6 +369,13 @@ public class Wallet extends BaseTaggableObject
         // we're probably being deserialized so leave things alone: the API user can upgrade later.
         if (this.keyChainGroup.numKeys() == 0)
             this.keyChainGroup.createAndActivateNewHDChain();
+        // Importing a key can make outputs we were only watching spendable.
+        this.keyChainGroup.addEventListener(new KeyChainEventListener() {
+            @Override
+            public void onKeysAdded(List<ECKey> keys) {
+                keysAdded(keys);
+            }
+        }, Threading.SAME_THREAD);
         watchedScripts = Sets.newHashSet();
         unspent = new HashMap<Sha256Hash, Transaction>();
         spent = new HashMap<Sha256Hash, Transaction>();
@@ -337,6 +395,8 @@ public class Wallet extends BaseTaggableObject
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(TransactionConfidence confidence, TransactionConfidence.Listener.ChangeReason reason) {
+                // Whether a coin is selectable depends on the confidence of its transaction.
+                invalidateBalances();
                 // This will run on the user code thread so we shouldn't do anything too complicated here.
                 // We only want to queue a wallet changed event and auto-save if the number of peers announcing
                 // the transaction has changed, as that confidence change is made by the networking code which
@@ -389,11 +449,11 @@ public class Wallet extends BaseTaggableObject
     }
 
     public List<TransactionSigner> getTransactionSigners() {
-        lock.lock();
+        readLock.lock();
         try {
             return ImmutableList.copyOf(signers);
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
@@ -412,7 +472,11 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             maybeUpgradeToHD();
-            return keyChainGroup.currentKey(purpose);
+            int issued = keyChainGroup.getActiveKeyChain().getIssuedExternalKeys();
+            DeterministicKey key = keyChainGroup.currentKey(purpose);
+            if (keyChainGroup.getActiveKeyChain().getIssuedExternalKeys() != issued)
+                invalidateSnapshot(); // The previous one was used, so a new key was issued.
+            return key;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -433,7 +497,11 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             maybeUpgradeToHD();
-            return keyChainGroup.currentAddress(purpose);
+            int issued = keyChainGroup.getActiveKeyChain().getIssuedExternalKeys();
+            Address address = keyChainGroup.currentAddress(purpose);
+            if (keyChainGroup.getActiveKeyChain().getIssuedExternalKeys() != issued)
+                invalidateSnapshot(); // The previous one was used, so a new key was issued.
+            return address;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -473,6 +541,7 @@ public class Wallet extends BaseTaggableObject
         try {
             maybeUpgradeToHD();
             keys = keyChainGroup.freshKeys(purpose, numberOfKeys);
+            invalidateSnapshot();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -498,6 +567,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             key = keyChainGroup.freshAddress(purpose);
+            invalidateSnapshot();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -549,6 +619,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.upgradeToDeterministic(vKeyRotationTimestamp, aesKey);
+            invalidateRelevanceMatcher();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -591,11 +662,11 @@ public class Wallet extends BaseTaggableObject
      * Returns a snapshot of the watched scripts. This view is not live.
      */
     public List<Script> getWatchedScripts() {
-        keyChainGroupLock.lock();
+        keyChainGroupReadLock.lock();
         try {
             return new ArrayList<Script>(watchedScripts);
         } finally {
-            keyChainGroupLock.unlock();
+            keyChainGroupReadLock.unlock();
         }
     }
 
@@ -607,21 +678,24 @@ public class Wallet extends BaseTaggableObject
     public boolean removeKey(ECKey key) {
         keyChainGroupLock.lock();
         try {
-            return keyChainGroup.removeImportedKey(key);
+            if (!keyChainGroup.removeImportedKey(key))
+                return false;
         } finally {
             keyChainGroupLock.unlock();
         }
+        keysChanged();
+        return true;
     }
 
     /**
      * Returns the number of keys in the key chain group, including lookahead keys.
      */
     public int getKeyChainGroupSize() {
-        keyChainGroupLock.lock();
+        keyChainGroupReadLock.lock();
         try {
             return keyChainGroup.numKeys();
         } finally {
-            keyChainGroupLock.unlock();
+            keyChainGroupReadLock.unlock();
         }
     }
 
@@ -639,11 +713,11 @@ public class Wallet extends BaseTaggableObject
      * Returns a list of the non-deterministic keys that have been imported into the wallet, or the empty list if none.
      */
     public List<ECKey> getImportedKeys() {
-        keyChainGroupLock.lock();
+        keyChainGroupReadLock.lock();
         try {
             return keyChainGroup.getImportedKeys();
         } finally {
-            keyChainGroupLock.unlock();
+            keyChainGroupReadLock.unlock();
         }
     }
 
@@ -750,6 +824,20 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.addAndActivateHDChain(chain);
+            invalidateRelevanceMatcher();
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
+    /**
+     * See {@link org.bitcoinj.wallet.DeterministicKeyChain#setDerivationExecutor(ExecutorService)} for more info on
+     * this.
+     */
+    public void setKeyChainGroupDerivationExecutor(@Nullable ExecutorService derivationExecutor) {
+        keyChainGroupLock.lock();
+        try {
+            keyChainGroup.setDerivationExecutor(derivationExecutor);
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -902,6 +990,8 @@ public class Wallet extends BaseTaggableObject
         }
         if (added > 0) {
             queueOnScriptsChanged(scripts, true);
+            invalidateRelevanceMatcher();
+            invalidateSnapshot();
             saveNow();
         }
         return added;
@@ -948,6 +1038,8 @@ public class Wallet extends BaseTaggableObject
             }
 
             queueOnScriptsChanged(scripts, false);
+            invalidateRelevanceMatcher();
+            invalidateSnapshot();
             saveNow();
             return true;
         } finally {
@@ -959,7 +1051,7 @@ public class Wallet extends BaseTaggableObject
      * Returns all addresses watched by this wallet.
      */
     public List<Address> getWatchedAddresses() {
-        keyChainGroupLock.lock();
+        keyChainGroupReadLock.lock();
         try {
             List<Address> addresses = new LinkedList<Address>();
             for (Script script : watchedScripts)
@@ -967,7 +1059,7 @@ public class Wallet extends BaseTaggableObject
                     addresses.add(script.getToAddress(params));
             return addresses;
         } finally {
-            keyChainGroupLock.unlock();
+            keyChainGroupReadLock.unlock();
         }
     }
 
@@ -980,39 +1072,34 @@ public class Wallet extends BaseTaggableObject
     @Override
     @Nullable
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
-        keyChainGroupLock.lock();
+        keyChainGroupReadLock.lock();
         try {
             return keyChainGroup.findKeyFromPubHash(pubkeyHash);
         } finally {
-            keyChainGroupLock.unlock();
+            keyChainGroupReadLock.unlock();
         }
     }
 
     /** Returns true if the given key is in the wallet, false otherwise. Currently an O(N) operation. */
     public boolean hasKey(ECKey key) {
-        keyChainGroupLock.lock();
+        keyChainGroupReadLock.lock();
         try {
             return keyChainGroup.hasKey(key);
         } finally {
-            keyChainGroupLock.unlock();
+            keyChainGroupReadLock.unlock();
         }
     }
 
     /** {@inheritDoc} */
     @Override
     public boolean isPubKeyHashMine(byte[] pubkeyHash) {
-        return findKeyFromPubHash(pubkeyHash) != null;
+        return getRelevanceMatcher().isPubKeyHashMine(pubkeyHash);
     }
 
     /** {@inheritDoc} */
     @Override
     public boolean isWatchedScript(Script script) {
-        keyChainGroupLock.lock();
-        try {
-            return watchedScripts.contains(script);
-        } finally {
-            keyChainGroupLock.unlock();
-        }
+        return getRelevanceMatcher().isWatchedScript(script);
     }
 
     /**
@@ -1022,18 +1109,18 @@ public class Wallet extends BaseTaggableObject
     @Override
     @Nullable
     public ECKey findKeyFromPubKey(byte[] pubkey) {
-        keyChainGroupLock.lock();
+        keyChainGroupReadLock.lock();
         try {
             return keyChainGroup.findKeyFromPubKey(pubkey);
         } finally {
-            keyChainGroupLock.unlock();
+            keyChainGroupReadLock.unlock();
         }
     }
 
     /** {@inheritDoc} */
     @Override
     public boolean isPubKeyMine(byte[] pubkey) {
-        return findKeyFromPubKey(pubkey) != null;
+        return getRelevanceMatcher().isPubKeyMine(pubkey);
     }
 
     /**
@@ -1043,18 +1130,54 @@ public class Wallet extends BaseTaggableObject
     @Nullable
     @Override
     public RedeemData findRedeemDataFromScriptHash(byte[] payToScriptHash) {
-        keyChainGroupLock.lock();
+        keyChainGroupReadLock.lock();
         try {
             return keyChainGroup.findRedeemDataFromScriptHash(payToScriptHash);
         } finally {
-            keyChainGroupLock.unlock();
+            keyChainGroupReadLock.unlock();
         }
     }
 
     /** {@inheritDoc} */
     @Override
     public boolean isPayToScriptHashMine(byte[] payToScriptHash) {
-        return findRedeemDataFromScriptHash(payToScriptHash) != null;
+        // Only married chains have script hashes of their own.
+        return getRelevanceMatcher().hasMarriedChains() && findRedeemDataFromScriptHash(payToScriptHash) != null;
+    }
+
+    // Returns a matcher for the current keys and watched scripts, building one if they have changed since the last.
+    // Once built it needs no locks, which matters as it's asked about every output of every transaction we see.
+    private RelevanceMatcher getRelevanceMatcher() {
+        int version = relevanceMatcherVersion.get();
+        RelevanceMatcher current = relevanceMatcher.get();
+        if (current != null && current.version == version)
+            return current;
+        RelevanceMatcher matcher;
+        keyChainGroupReadLock.lock();
+        try {
+            // If anything changes while we're building, the version moves on and the next caller builds again.
+            List<ECKey> keys = new ArrayList<ECKey>(keyChainGroup.getImportedKeys());
+            boolean hasMarriedChains = false;
+            for (DeterministicKeyChain chain : keyChainGroup.getDeterministicKeyChains()) {
+                keys.addAll(chain.getKeys(true));
+                hasMarriedChains |= chain.isMarried();
+            }
+            matcher = new RelevanceMatcher(version, keys, watchedScripts, hasMarriedChains);
+        } finally {
+            keyChainGroupReadLock.unlock();
+        }
+        // Only publish it if nobody else did meanwhile, as keys may have been added to theirs that ours doesn't have.
+        if (!relevanceMatcher.compareAndSet(current, matcher)) {
+            RelevanceMatcher theirs = relevanceMatcher.get();
+            if (theirs != null && theirs.version == version)
+                return theirs;
+        }
+        return matcher;
+    }
+
+    // May be called with or without the locks held.
+    private void invalidateRelevanceMatcher() {
+        relevanceMatcherVersion.incrementAndGet();
     }
 
     /**
@@ -1219,11 +1342,11 @@ public class Wallet extends BaseTaggableObject
      */
     @Nullable
     public KeyCrypter getKeyCrypter() {
-        keyChainGroupLock.lock();
+        keyChainGroupReadLock.lock();
         try {
             return keyChainGroup.getKeyCrypter();
         } finally {
-            keyChainGroupLock.unlock();
+            keyChainGroupReadLock.unlock();
         }
     }
 
@@ -1302,17 +1425,7 @@ public class Wallet extends BaseTaggableObject
             stream.getFD().sync();
             stream.close();
             stream = null;
-            if (Utils.isWindows()) {
-                // Work around an issue on Windows whereby you can't rename over existing files.
-                File canonical = destFile.getCanonicalFile();
-                if (canonical.exists() && !canonical.delete())
-                    throw new IOException("Failed to delete canonical wallet file for replacement with autosave");
-                if (temp.renameTo(canonical))
-                    return;  // else fall through.
-                throw new IOException("Failed to rename " + temp + " to " + canonical);
-            } else if (!temp.renameTo(destFile)) {
-                throw new IOException("Failed to rename " + temp + " to " + destFile);
-            }
+            replaceFile(temp, destFile);
         } catch (RuntimeException e) {
             log.error("Failed whilst saving wallet", e);
             throw e;
@@ -1327,6 +1440,20 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /** Renames a fully written temp file over the dest file, as atomically as the platform allows. */
+    static void replaceFile(File temp, File destFile) throws IOException {
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            File canonical = destFile.getCanonicalFile();
+            if (canonical.exists() && !canonical.delete())
+                throw new IOException("Failed to delete canonical wallet file for replacement with autosave");
+            if (!temp.renameTo(canonical))
+                throw new IOException("Failed to rename " + temp + " to " + canonical);
+        } else if (!temp.renameTo(destFile)) {
+            throw new IOException("Failed to rename " + temp + " to " + destFile);
+        }
+    }
+
     /**
      * Uses protobuf serialization to save the wallet to the given file. To learn more about this file format, see
      * {@link WalletProtobufSerializer}. Writes out first to a temporary file in the same directory and then renames
@@ -1361,11 +1488,11 @@ public class Wallet extends BaseTaggableObject
      * See {@link Wallet#setAcceptRiskyTransactions(boolean)} for an explanation of this property.
      */
     public boolean isAcceptRiskyTransactions() {
-        lock.lock();
+        readLock.lock();
         try {
             return acceptRiskyTransactions;
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
@@ -1387,11 +1514,11 @@ public class Wallet extends BaseTaggableObject
      * Gets the current {@link RiskAnalysis} implementation. The default is {@link DefaultRiskAnalysis}.
      */
     public RiskAnalysis.Analyzer getRiskAnalyzer() {
-        lock.lock();
+        readLock.lock();
         try {
             return riskAnalyzer;
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
@@ -1506,6 +1633,18 @@ public class Wallet extends BaseTaggableObject
      */
     public static Wallet loadFromFile(File file, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
         try {
+            if (WalletJournal.journalFileFor(file).exists()) {
+                // Changes saved by WalletFiles in journal mode have to be applied on top of the file itself.
+                Protos.Wallet proto = WalletJournal.readWallet(file);
+                NetworkParameters params = NetworkParameters.fromID(proto.getNetworkIdentifier());
+                if (params == null)
+                    throw new UnreadableWalletException("Unknown network parameters ID " + proto.getNetworkIdentifier());
+                Wallet wallet = new WalletProtobufSerializer().readWallet(params, walletExtensions, proto);
+                if (!wallet.isConsistent()) {
+                    log.error("Loaded an inconsistent wallet");
+                }
+                return wallet;
+            }
             FileInputStream stream = null;
             try {
                 stream = new FileInputStream(file);
@@ -1544,6 +1683,7 @@ public class Wallet extends BaseTaggableObject
     public void isConsistentOrThrow() throws IllegalStateException {
         lock.lock();
         try {
+            loadHistory();
             Set<Transaction> transactions = getTransactions(true);
 
             Set<Sha256Hash> hashes = new HashSet<Sha256Hash>();
@@ -1640,6 +1780,8 @@ public class Wallet extends BaseTaggableObject
                                               int relativityOffset) throws VerificationException {
         lock.lock();
         try {
+            if (unloadedHistory != null && unloadedHistory.contains(txHash))
+                loadHistory();
             Transaction tx = transactions.get(txHash);
             if (tx == null) {
                 tx = riskDropped.get(txHash);
@@ -1678,6 +1820,7 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             tx.verify();
+            maybeLoadHistoryFor(tx);
             // Ignore it if we already know about this transaction. Receiving a pending transaction never moves it
             // between pools.
             EnumSet<Pool> containingPools = getContainingPools(tx);
@@ -1755,6 +1898,31 @@ public class Wallet extends BaseTaggableObject
         receivePending(tx, dependencies, false);
     }
 
+    /**
+     * <p>Receives a burst of pending transactions, such as a peer's memory pool, as if each had been passed to
+     * {@link #receivePending(Transaction, java.util.List)} in order without any dependencies. Irrelevant, risky and
+     * already known transactions are dropped the same way.</p>
+     *
+     * <p>The whole batch is applied under a single acquisition of the wallet lock. onWalletChanged runs at most
+     * once, each transaction's confidence listeners run at most once, and the wallet is saved at most once, after
+     * the last transaction is in. onCoinsReceived and onCoinsSent still run for every transaction that causes them.
+     * If a transaction fails to verify, the ones before it stay in the wallet and the exception is rethrown.</p>
+     */
+    public void receivePending(List<Transaction> txns) throws VerificationException {
+        lock.lock();
+        try {
+            int version = beginBatch();
+            try {
+                for (Transaction tx : txns)
+                    receivePending(tx, null, false);
+            } finally {
+                endBatch(version, true);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * This method is used by a {@link Peer} to find out if a transaction that has been announced is interesting,
      * that is, whether we should bother downloading its dependencies and exploring the transaction to decide how
@@ -1762,7 +1930,8 @@ public class Wallet extends BaseTaggableObject
      * will soon be called with the transactions dependencies as well.
      */
     public boolean isPendingTransactionRelevant(Transaction tx) throws ScriptException {
-        lock.lock();
+        maybeLoadHistoryFor(tx);
+        readLock.lock();
         try {
             // Ignore it if we already know about this transaction. Receiving a pending transaction never moves it
             // between pools.
@@ -1781,7 +1950,7 @@ public class Wallet extends BaseTaggableObject
             }
             return true;
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
@@ -1794,13 +1963,14 @@ public class Wallet extends BaseTaggableObject
      * it will not be considered relevant.</p>
      */
     public boolean isTransactionRelevant(Transaction tx) throws ScriptException {
-        lock.lock();
+        maybeLoadHistoryFor(tx);
+        readLock.lock();
         try {
             return tx.getValueSentFromMe(this).signum() > 0 ||
                    tx.getValueSentToMe(this).signum() > 0 ||
                    !findDoubleSpendsAgainst(tx, transactions).isEmpty();
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
@@ -1810,7 +1980,7 @@ public class Wallet extends BaseTaggableObject
      * @return The set of transactions that double spend "tx".
      */
     private Set<Transaction> findDoubleSpendsAgainst(Transaction tx, Map<Sha256Hash, Transaction> candidates) {
-        checkState(lock.isHeldByCurrentThread());
+        checkState(isLockHeld());
         if (tx.isCoinBase()) return Sets.newHashSet();
         // Compile a set of outpoints that are spent by tx.
         HashSet<TransactionOutPoint> outpoints = new HashSet<TransactionOutPoint>();
@@ -1890,6 +2060,66 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * <p>Like {@link #receiveFromBlock(Transaction, StoredBlock, BlockChain.NewBlockType, int)} but for a run of
+     * transactions from the same block, the first of which is at the given relativity offset and the rest following
+     * it in order. Irrelevant transactions are skipped but still count towards the offset.</p>
+     *
+     * <p>The whole run is applied under a single acquisition of the wallet lock, and the onWalletChanged and
+     * confidence events it causes are coalesced so each listener hears about a transaction at most once. A
+     * transaction with a script that can't be parsed is logged and skipped, as the block chain does for single
+     * transactions, so it doesn't keep the rest of the run from being received.</p>
+     */
+    public void receiveFromBlock(List<Transaction> txns, StoredBlock block, BlockChain.NewBlockType blockType,
+                                 int relativityOffset) throws VerificationException {
+        lock.lock();
+        try {
+            int version = beginBatch();
+            try {
+                for (Transaction tx : txns) {
+                    try {
+                        if (isTransactionRelevant(tx))
+                            receive(tx, block, blockType, relativityOffset);
+                    } catch (ScriptException e) {
+                        // We don't want scripts we don't understand to break the block chain so just note that this
+                        // tx was not scanned here and continue.
+                        log.warn("Failed to parse a script: " + e.toString());
+                    }
+                    relativityOffset++;
+                }
+            } finally {
+                // As for a single transaction, notifyNewBestBlock is invoked next for the best chain and will call
+                // maybeQueueOnWalletChanged for us.
+                endBatch(version, blockType == BlockChain.NewBlockType.SIDE_CHAIN);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int beginBatch() {
+        checkState(lock.isHeldByCurrentThread());
+        batchDepth++;
+        onWalletChangedSuppressions++;
+        return snapshotVersion.get();
+    }
+
+    // Sends the events and does the save that were held back whilst the batch was applied. Anything that changes the
+    // wallet bumps the snapshot version, so comparing it against the start of the batch tells us if there was a change.
+    private void endBatch(int versionAtStart, boolean queueOnWalletChanged) {
+        checkState(batchDepth > 0);
+        onWalletChangedSuppressions--;
+        if (--batchDepth > 0)
+            return;
+        if (queueOnWalletChanged && snapshotVersion.get() != versionAtStart)
+            maybeQueueOnWalletChanged();
+        informConfidenceListenersIfNotReorganizing();
+        if (batchNeedsSave) {
+            batchNeedsSave = false;
+            saveNow();
+        }
+    }
+
     // Whether to do a saveNow or saveLater when we are notified of the next best block.
     private boolean hardSaveOnNextBlock = false;
 
@@ -1897,6 +2127,7 @@ public class Wallet extends BaseTaggableObject
                          int relativityOffset) throws VerificationException {
         // Runs in a peer thread.
         checkState(lock.isHeldByCurrentThread());
+        maybeLoadHistoryFor(tx);
 
         Coin prevBalance = getBalance();
         Sha256Hash txHash = tx.getHash();
@@ -1939,7 +2170,7 @@ public class Wallet extends BaseTaggableObject
                 for (TransactionOutput output : tx.getOutputs()) {
                     final TransactionInput spentBy = output.getSpentBy();
                     if (spentBy != null) {
-                        checkState(myUnspents.add(output));
+                        checkState(addUnspent(output));
                         spentBy.disconnect();
                     }
                 }
@@ -1980,7 +2211,7 @@ public class Wallet extends BaseTaggableObject
                 // change its confidence to PENDING (Unless they are also spending other txns IN_CONFLICT).
                 // Consider dependency chains.
                 Set<Transaction> currentTxDependencies = Sets.newHashSet(tx);
-                addTransactionsDependingOn(currentTxDependencies, getTransactions(true));
+                addTransactionsDependingOn(currentTxDependencies, getLoadedTransactions(true));
                 currentTxDependencies.remove(tx);
                 List<Transaction> currentTxDependenciesSorted = sortTxnsByDependency(currentTxDependencies);
                 for (Transaction txDependency : currentTxDependenciesSorted) {
@@ -2082,7 +2313,7 @@ public class Wallet extends BaseTaggableObject
     }
 
     private void informConfidenceListenersIfNotReorganizing() {
-        if (insideReorg)
+        if (insideReorg || batchDepth > 0)
             return;
         for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : confidenceChanged.entrySet()) {
             final Transaction tx = entry.getKey();
@@ -2114,8 +2345,8 @@ public class Wallet extends BaseTaggableObject
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
             // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their depth.
-            Set<Transaction> transactions = getTransactions(true);
+            // This is so that they can update their depth. Unread history catches up when it is read.
+            Set<Transaction> transactions = getLoadedTransactions(true);
             for (Transaction tx : transactions) {
                 if (ignoreNextNewBlock.contains(tx.getHash())) {
                     // tx was already processed in receive() due to it appearing in this block, so we don't want to
@@ -2277,7 +2508,7 @@ public class Wallet extends BaseTaggableObject
                 maybeMovePool(connected, "prevtx");
                 // Just because it's connected doesn't mean it's actually ours: sometimes we have total visibility.
                 if (output.isMineOrWatched(this)) {
-                    checkState(myUnspents.remove(output));
+                    checkState(removeUnspent(output));
                 }
             }
         }
@@ -2300,7 +2531,7 @@ public class Wallet extends BaseTaggableObject
                             pendingTx.getHashAsString(), pendingTx.getInputs().indexOf(input));
                     // The unspents map might not have it if we never saw this tx until it was included in the chain
                     // and thus becomes spent the moment we become aware of it.
-                    if (myUnspents.remove(input.getConnectedOutput()))
+                    if (removeUnspent(input.getConnectedOutput()))
                         log.info("Removed from UNSPENTS: {}", input.getConnectedOutput());
                 }
             }
@@ -2330,7 +2561,7 @@ public class Wallet extends BaseTaggableObject
                 Transaction connected = deadInput.getConnectedTransaction();
                 if (connected == null) continue;
                 if (connected.getConfidence().getConfidenceType() != ConfidenceType.DEAD && deadInput.getConnectedOutput().getSpentBy() != null && deadInput.getConnectedOutput().getSpentBy().equals(deadInput)) {
-                    checkState(myUnspents.add(deadInput.getConnectedOutput()));
+                    checkState(addUnspent(deadInput.getConnectedOutput()));
                     log.info("Added to UNSPENTS: {} in {}", deadInput.getConnectedOutput(), deadInput.getConnectedOutput().getParentTransaction().getHash());
                 }
                 deadInput.disconnect();
@@ -2340,7 +2571,7 @@ public class Wallet extends BaseTaggableObject
             confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
             // Now kill any transactions we have that depended on this one.
             for (TransactionOutput deadOutput : tx.getOutputs()) {
-                if (myUnspents.remove(deadOutput))
+                if (removeUnspent(deadOutput))
                     log.info("XX Removed from UNSPENTS: {}", deadOutput);
                 TransactionInput connected = deadOutput.getSpentBy();
                 if (connected == null) continue;
@@ -2356,13 +2587,13 @@ public class Wallet extends BaseTaggableObject
             TransactionInput.ConnectionResult result = input.connect(unspent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
             if (result == TransactionInput.ConnectionResult.SUCCESS) {
                 maybeMovePool(input.getConnectedTransaction(), "kill");
-                myUnspents.remove(input.getConnectedOutput());
+                removeUnspent(input.getConnectedOutput());
                 log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
             } else {
                 result = input.connect(spent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
                 if (result == TransactionInput.ConnectionResult.SUCCESS) {
                     maybeMovePool(input.getConnectedTransaction(), "kill");
-                    myUnspents.remove(input.getConnectedOutput());
+                    removeUnspent(input.getConnectedOutput());
                     log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
                 }
             }
@@ -2375,6 +2606,7 @@ public class Wallet extends BaseTaggableObject
      */
     private void maybeMovePool(Transaction tx, String context) {
         checkState(lock.isHeldByCurrentThread());
+        invalidateSnapshot();
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getHash()) != null) {
@@ -2404,6 +2636,7 @@ public class Wallet extends BaseTaggableObject
         try {
             if (pending.containsKey(tx.getHash()))
                 return false;
+            maybeLoadHistoryFor(tx);
             log.info("commitTx of {}", tx.getHashAsString());
             Coin balance = getBalance();
             tx.setUpdateTime(Utils.now());
@@ -2439,7 +2672,7 @@ public class Wallet extends BaseTaggableObject
                 log.info("->pending (IN_CONFLICT): {}", tx.getHashAsString());
                 addWalletTransaction(Pool.PENDING, tx);
                 doubleSpendPendingTxns.add(tx);
-                addTransactionsDependingOn(doubleSpendPendingTxns, getTransactions(true));
+                addTransactionsDependingOn(doubleSpendPendingTxns, getLoadedTransactions(true));
                 for (Transaction doubleSpendTx : doubleSpendPendingTxns) {
                     doubleSpendTx.getConfidence().setConfidenceType(ConfidenceType.IN_CONFLICT);
                     confidenceChanged.put(doubleSpendTx, TransactionConfidence.Listener.ChangeReason.TYPE);
@@ -2476,7 +2709,10 @@ public class Wallet extends BaseTaggableObject
 
             isConsistentOrThrow();
             informConfidenceListenersIfNotReorganizing();
-            saveNow();
+            if (batchDepth > 0)
+                batchNeedsSave = true;
+            else
+                saveNow();
         } finally {
             lock.unlock();
         }
@@ -2725,7 +2961,8 @@ public class Wallet extends BaseTaggableObject
             if (registration.executor == Threading.SAME_THREAD) {
                 registration.listener.onTransactionConfidenceChanged(this, tx);
             } else {
-                registration.executor.execute(new Runnable() {
+                // A listener that's behind only needs to hear about each transaction once.
+                confidenceEvents.execute(registration.executor, Maps.immutableEntry(registration, tx), new Runnable() {
                     @Override
                     public void run() {
                         registration.listener.onTransactionConfidenceChanged(Wallet.this, tx);
@@ -2740,6 +2977,7 @@ public class Wallet extends BaseTaggableObject
         // transactions due to a new block arriving. It will be called later instead.
         checkState(lock.isHeldByCurrentThread());
         checkState(onWalletChangedSuppressions >= 0);
+        invalidateBalances();
         if (onWalletChangedSuppressions > 0) return;
         for (final ListenerRegistration<WalletChangeEventListener> registration : changeListeners) {
             registration.executor.execute(new Runnable() {
@@ -2810,37 +3048,119 @@ public class Wallet extends BaseTaggableObject
      * @param includeDead     If true, transactions that were overridden by a double spend are included.
      */
     public Set<Transaction> getTransactions(boolean includeDead) {
-        lock.lock();
+        loadHistory();
+        readLock.lock();
         try {
-            Set<Transaction> all = new HashSet<Transaction>();
-            all.addAll(unspent.values());
-            all.addAll(spent.values());
-            all.addAll(pending.values());
-            if (includeDead)
-                all.addAll(dead.values());
-            return all;
+            return getLoadedTransactions(includeDead);
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
+    // Like getTransactions, but leaves out any history which has not been read yet.
+    Set<Transaction> getLoadedTransactions(boolean includeDead) {
+        checkState(isLockHeld());
+        Set<Transaction> all = new HashSet<Transaction>();
+        all.addAll(unspent.values());
+        all.addAll(spent.values());
+        all.addAll(pending.values());
+        if (includeDead)
+            all.addAll(dead.values());
+        return all;
+    }
+
     /**
      * Returns a set of all WalletTransactions in the wallet.
      */
     public Iterable<WalletTransaction> getWalletTransactions() {
+        loadHistory();
+        readLock.lock();
+        try {
+            return getLoadedWalletTransactions();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    // Like getWalletTransactions, but leaves out any history which has not been read yet.
+    Set<WalletTransaction> getLoadedWalletTransactions() {
+        checkState(isLockHeld());
+        Set<WalletTransaction> all = new HashSet<WalletTransaction>();
+        addWalletTransactionsToSet(all, Pool.UNSPENT, unspent.values());
+        addWalletTransactionsToSet(all, Pool.SPENT, spent.values());
+        addWalletTransactionsToSet(all, Pool.DEAD, dead.values());
+        addWalletTransactionsToSet(all, Pool.PENDING, pending.values());
+        return all;
+    }
+
+    /**
+     * Reads in the spent and dead transactions which were left out when the wallet was loaded with
+     * {@link WalletProtobufSerializer#setLoadHistoryLazily(boolean)}. This happens automatically as soon as anything
+     * needs the full history, but note that {@link #getTransactionPool(Pool)} only returns what has been read. Does
+     * nothing if the history is complete.
+     */
+    public void loadHistory() {
+        if (unloadedHistory == null)
+            return; // Nothing left to read, so don't contend for the lock.
+        checkState(walletLock.isWriteLockedByCurrentThread() || walletLock.getReadHoldCount() == 0,
+                "History must be read in before taking the read lock");
         lock.lock();
         try {
-            Set<WalletTransaction> all = new HashSet<WalletTransaction>();
-            addWalletTransactionsToSet(all, Pool.UNSPENT, unspent.values());
-            addWalletTransactionsToSet(all, Pool.SPENT, spent.values());
-            addWalletTransactionsToSet(all, Pool.DEAD, dead.values());
-            addWalletTransactionsToSet(all, Pool.PENDING, pending.values());
-            return all;
+            UnloadedHistory history = unloadedHistory;
+            if (history == null)
+                return;
+            Stopwatch watch = Stopwatch.createStarted();
+            List<WalletTransaction> wtxs;
+            try {
+                wtxs = new WalletProtobufSerializer().readHistory(this, history);
+            } catch (UnreadableWalletException e) {
+                throw new IllegalStateException("Could not read the transaction history of the wallet", e);
+            }
+            unloadedHistory = null;
+            for (WalletTransaction wtx : wtxs)
+                addWalletTransaction(wtx.getPool(), wtx.getTransaction());
+            log.info("Read {} transactions of history in {}", wtxs.size(), watch);
         } finally {
             lock.unlock();
         }
     }
 
+    // True if this thread holds either side of the wallet lock.
+    private boolean isLockHeld() {
+        return walletLock.isWriteLockedByCurrentThread() || walletLock.getReadHoldCount() > 0;
+    }
+
+    // Reads in the history if the given transaction can't be processed correctly without it.
+    private void maybeLoadHistoryFor(Transaction tx) {
+        UnloadedHistory history = unloadedHistory;
+        if (history != null && history.touches(tx))
+            loadHistory();
+    }
+
+    // Reads in the history if the given transaction is part of it.
+    private void maybeLoadHistoryFor(Sha256Hash txHash) {
+        UnloadedHistory history = unloadedHistory;
+        if (history != null && history.contains(txHash))
+            loadHistory();
+    }
+
+    /** Internal use only. Hands the wallet the history left out by a lazy load. */
+    void setUnloadedHistory(@Nullable UnloadedHistory history) {
+        lock.lock();
+        try {
+            unloadedHistory = history;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Internal use only. Returns the history left out by a lazy load, if it was not read yet. */
+    @Nullable
+    UnloadedHistory getUnloadedHistory() {
+        checkState(isLockHeld());
+        return unloadedHistory;
+    }
+
     private static void addWalletTransactionsToSet(Set<WalletTransaction> txns,
                                                    Pool poolType, Collection<Transaction> pool) {
         for (Transaction tx : pool) {
@@ -2856,6 +3176,7 @@ public class Wallet extends BaseTaggableObject
     public void addWalletTransaction(WalletTransaction wtx) {
         lock.lock();
         try {
+            maybeLoadHistoryFor(wtx.getTransaction());
             addWalletTransaction(wtx.getPool(), wtx.getTransaction());
         } finally {
             lock.unlock();
@@ -2867,6 +3188,7 @@ public class Wallet extends BaseTaggableObject
      */
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
+        invalidateSnapshot();
         transactions.put(tx.getHash(), tx);
         switch (pool) {
         case UNSPENT:
@@ -2887,7 +3209,7 @@ public class Wallet extends BaseTaggableObject
         if (pool == Pool.UNSPENT || pool == Pool.PENDING) {
             for (TransactionOutput output : tx.getOutputs()) {
                 if (output.isAvailableForSpending() && output.isMineOrWatched(this))
-                    myUnspents.add(output);
+                    addUnspent(output);
             }
         }
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
@@ -2911,9 +3233,10 @@ public class Wallet extends BaseTaggableObject
      * depending on how the wallet is implemented (eg if backed by a database).
      */
     public List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
-        lock.lock();
+        checkArgument(numTransactions >= 0);
+        loadHistory();
+        readLock.lock();
         try {
-            checkArgument(numTransactions >= 0);
             // Firstly, put all transactions into an array.
             int size = unspent.size() + spent.size() + pending.size();
             if (numTransactions > size || numTransactions == 0) {
@@ -2929,7 +3252,7 @@ public class Wallet extends BaseTaggableObject
                 return all;
             }
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
@@ -2938,18 +3261,23 @@ public class Wallet extends BaseTaggableObject
      */
     @Nullable
     public Transaction getTransaction(Sha256Hash hash) {
-        lock.lock();
+        maybeLoadHistoryFor(hash);
+        readLock.lock();
         try {
             return transactions.get(hash);
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
-    /** {@inheritDoc} */
+    /**
+     * {@inheritDoc}
+     * If the wallet was loaded with {@link WalletProtobufSerializer#setLoadHistoryLazily(boolean)}, the spent and dead
+     * pools only contain what has been read so far, see {@link #loadHistory()}.
+     */
     @Override
     public Map<Sha256Hash, Transaction> getTransactionPool(Pool pool) {
-        lock.lock();
+        readLock.lock();
         try {
             switch (pool) {
                 case UNSPENT:
@@ -2964,7 +3292,7 @@ public class Wallet extends BaseTaggableObject
                     throw new RuntimeException("Unknown wallet transaction type " + pool);
             }
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
@@ -3007,12 +3335,13 @@ public class Wallet extends BaseTaggableObject
     }
 
     private void clearTransactions() {
+        unloadedHistory = null;
         unspent.clear();
         spent.clear();
         pending.clear();
         dead.clear();
         transactions.clear();
-        myUnspents.clear();
+        clearUnspents();
     }
 
     /**
@@ -3021,8 +3350,8 @@ public class Wallet extends BaseTaggableObject
      * @param excludeImmatureCoinbases Whether to ignore outputs that are unspendable due to being immature.
      */
     public List<TransactionOutput> getWatchedOutputs(boolean excludeImmatureCoinbases) {
-        lock.lock();
-        keyChainGroupLock.lock();
+        readLock.lock();
+        keyChainGroupReadLock.lock();
         try {
             LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
             for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
@@ -3040,8 +3369,8 @@ public class Wallet extends BaseTaggableObject
             }
             return candidates;
         } finally {
-            keyChainGroupLock.unlock();
-            lock.unlock();
+            keyChainGroupReadLock.unlock();
+            readLock.unlock();
         }
     }
 
@@ -3052,6 +3381,7 @@ public class Wallet extends BaseTaggableObject
     public void cleanup() {
         lock.lock();
         try {
+            loadHistory();
             boolean dirty = false;
             for (Iterator<Transaction> i = pending.values().iterator(); i.hasNext();) {
                 Transaction tx = i.next();
@@ -3063,11 +3393,11 @@ public class Wallet extends BaseTaggableObject
                             TransactionOutput output = input.getConnectedOutput();
                             if (output == null) continue;
                             if (output.isMineOrWatched(this))
-                                checkState(myUnspents.add(output));
+                                checkState(addUnspent(output));
                             input.disconnect();
                         }
                         for (TransactionOutput output : tx.getOutputs())
-                            myUnspents.remove(output);
+                            removeUnspent(output);
 
                         i.remove();
                         transactions.remove(tx.getHash());
@@ -3092,10 +3422,11 @@ public class Wallet extends BaseTaggableObject
     }
 
     EnumSet<Pool> getContainingPools(Transaction tx) {
-        lock.lock();
+        Sha256Hash txHash = tx.getHash();
+        maybeLoadHistoryFor(txHash);
+        readLock.lock();
         try {
             EnumSet<Pool> result = EnumSet.noneOf(Pool.class);
-            Sha256Hash txHash = tx.getHash();
             if (unspent.containsKey(txHash)) {
                 result.add(Pool.UNSPENT);
             }
@@ -3110,13 +3441,15 @@ public class Wallet extends BaseTaggableObject
             }
             return result;
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
     @VisibleForTesting
     public int getPoolSize(WalletTransaction.Pool pool) {
-        lock.lock();
+        if (pool == Pool.SPENT || pool == Pool.DEAD)
+            loadHistory();
+        readLock.lock();
         try {
             switch (pool) {
                 case UNSPENT:
@@ -3130,13 +3463,14 @@ public class Wallet extends BaseTaggableObject
             }
             throw new RuntimeException("Unreachable");
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
     @VisibleForTesting
     public boolean poolContainsTxHash(final WalletTransaction.Pool pool, final Sha256Hash txHash) {
-        lock.lock();
+        maybeLoadHistoryFor(txHash);
+        readLock.lock();
         try {
             switch (pool) {
                 case UNSPENT:
@@ -3150,17 +3484,17 @@ public class Wallet extends BaseTaggableObject
             }
             throw new RuntimeException("Unreachable");
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
     /** Returns a copy of the internal unspent outputs list */
     public List<TransactionOutput> getUnspents() {
-        lock.lock();
+        readLock.lock();
         try {
             return new ArrayList<TransactionOutput>(myUnspents);
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
@@ -3180,6 +3514,8 @@ public class Wallet extends BaseTaggableObject
      */
     public String toString(boolean includePrivateKeys, boolean includeTransactions, boolean includeExtensions,
                            @Nullable AbstractBlockChain chain) {
+        if (includeTransactions)
+            loadHistory();
         lock.lock();
         keyChainGroupLock.lock();
         try {
@@ -3282,11 +3618,11 @@ public class Wallet extends BaseTaggableObject
      * Returns an immutable view of the transactions currently waiting for network confirmations.
      */
     public Collection<Transaction> getPendingTransactions() {
-        lock.lock();
+        readLock.lock();
         try {
             return Collections.unmodifiableCollection(pending.values());
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
@@ -3304,7 +3640,7 @@ public class Wallet extends BaseTaggableObject
      */
     @Override
     public long getEarliestKeyCreationTime() {
-        keyChainGroupLock.lock();
+        keyChainGroupReadLock.lock();
         try {
             long earliestTime = keyChainGroup.getEarliestKeyCreationTime();
             for (Script script : watchedScripts)
@@ -3313,18 +3649,18 @@ public class Wallet extends BaseTaggableObject
                 return Utils.currentTimeSeconds();
             return earliestTime;
         } finally {
-            keyChainGroupLock.unlock();
+            keyChainGroupReadLock.unlock();
         }
     }
 
     /** Returns the hash of the last seen best-chain block, or null if the wallet is too old to store this data. */
     @Nullable
     public Sha256Hash getLastBlockSeenHash() {
-        lock.lock();
+        readLock.lock();
         try {
             return lastBlockSeenHash;
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
@@ -3332,6 +3668,7 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             this.lastBlockSeenHash = lastBlockSeenHash;
+            invalidateSnapshot();
         } finally {
             lock.unlock();
         }
@@ -3341,6 +3678,7 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             this.lastBlockSeenHeight = lastBlockSeenHeight;
+            invalidateSnapshot();
         } finally {
             lock.unlock();
         }
@@ -3350,6 +3688,7 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             lastBlockSeenTimeSecs = timeSecs;
+            invalidateSnapshot();
         } finally {
             lock.unlock();
         }
@@ -3363,11 +3702,11 @@ public class Wallet extends BaseTaggableObject
      * time then this method returns zero.
      */
     public long getLastBlockSeenTimeSecs() {
-        lock.lock();
+        readLock.lock();
         try {
             return lastBlockSeenTimeSecs;
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
@@ -3392,14 +3731,58 @@ public class Wallet extends BaseTaggableObject
      * is old and doesn't have that data.
      */
     public int getLastBlockSeenHeight() {
-        lock.lock();
+        readLock.lock();
         try {
             return lastBlockSeenHeight;
         } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * <p>Returns an immutable snapshot of the transactions, balances, last seen block and public keys of this wallet.
+     * The same snapshot is returned until the wallet changes, and only the first call after a change takes the wallet
+     * lock to build a new one. This suits serving a lot of concurrent readers which need a consistent view, without
+     * them contending with the wallet lock or each other.</p>
+     *
+     * <p>Building a snapshot copies the transaction pools and works out every balance type. Wallets which change much
+     * more often than they are read are better off querying the wallet directly.</p>
+     */
+    public WalletSnapshot getSnapshot() {
+        WalletSnapshot snapshot = vSnapshot;
+        if (snapshot != null && snapshot.version == snapshotVersion.get())
+            return snapshot;
+        loadHistory();
+        lock.lock();
+        keyChainGroupLock.lock();
+        try {
+            // Confidence changes can bump the version without the lock, so read it before looking at anything.
+            int version = snapshotVersion.get();
+            snapshot = vSnapshot;
+            if (snapshot != null && snapshot.version == version)
+                return snapshot; // Somebody else built it while we waited for the lock.
+            Map<BalanceType, Coin> balances = new EnumMap<BalanceType, Coin>(BalanceType.class);
+            for (BalanceType balanceType : BalanceType.values())
+                balances.put(balanceType, calculateBalance(balanceType));
+            List<Address> issuedReceiveAddresses = new ArrayList<Address>();
+            if (!keyChainGroup.getDeterministicKeyChains().isEmpty())
+                for (ECKey key : keyChainGroup.getActiveKeyChain().getIssuedReceiveKeys())
+                    issuedReceiveAddresses.add(key.toAddress(params));
+            snapshot = new WalletSnapshot(version, unspent, spent, pending, dead, balances, lastBlockSeenHash,
+                    lastBlockSeenHeight, lastBlockSeenTimeSecs, issuedReceiveAddresses, watchedScripts);
+            vSnapshot = snapshot;
+            return snapshot;
+        } finally {
+            keyChainGroupLock.unlock();
             lock.unlock();
         }
     }
 
+    // May be called with or without the lock held.
+    private void invalidateSnapshot() {
+        snapshotVersion.incrementAndGet();
+    }
+
     /**
      * Get the version of the Wallet.
      * This is an int you can use to indicate which versions of wallets your code understands,
@@ -3495,25 +3878,160 @@ public class Wallet extends BaseTaggableObject
      * Returns the balance of this wallet as calculated by the provided balanceType.
      */
     public Coin getBalance(BalanceType balanceType) {
+        // With a UTXO provider the outputs live elsewhere and we can't tell when they change, so always ask it.
+        boolean cached = vUTXOProvider == null;
+        if (cached && balanceType == BalanceType.ESTIMATED)
+            return myUnspentsValue;
+        // Queries from inside the wallet may run half way through a change, so only outside callers use the snapshot.
+        cached &= !lock.isHeldByCurrentThread();
+        if (cached) {
+            Coin balance = balanceSnapshot.get().get(balanceType);
+            if (balance != null)
+                return balance;
+        }
         lock.lock();
         try {
-            if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
-                List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
-                CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
-                return selection.valueGathered;
-            } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
-                List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
-                Coin value = Coin.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
-            } else {
-                throw new AssertionError("Unknown balance type");  // Unreachable.
-            }
+            if (!cached)
+                return calculateBalance(balanceType);
+            BalanceSnapshot snapshot = balanceSnapshot.get();
+            // Record the pending confidences before calculating, so a change racing with us makes the result stale.
+            BalanceSnapshot base = snapshot.isCurrent() ? snapshot : new BalanceSnapshot(pending.values());
+            Coin balance = calculateBalance(balanceType);
+            balanceSnapshot.compareAndSet(snapshot, base.with(balanceType, balance));
+            return balance;
         } finally {
             lock.unlock();
         }
     }
 
+    private Coin calculateBalance(BalanceType balanceType) {
+        checkState(lock.isHeldByCurrentThread());
+        if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
+            List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
+            CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
+            return selection.valueGathered;
+        } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
+            List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
+            Coin value = Coin.ZERO;
+            for (TransactionOutput out : all) value = value.add(out.getValue());
+            return value;
+        } else {
+            throw new AssertionError("Unknown balance type");  // Unreachable.
+        }
+    }
+
+    /**
+     * Balances calculated by {@link #getBalance(BalanceType)}, along with the confidence of every pending transaction
+     * at the time. Confidence of pending transactions can change behind our back (e.g. peers announcing them), so a
+     * snapshot is only used as long as those still match. Anything else that could move a balance replaces the whole
+     * snapshot via {@link #invalidateBalances()}. Immutable.
+     */
+    private static class BalanceSnapshot {
+        private final Coin[] balances;
+        @Nullable private final TransactionConfidence[] confidences;
+        @Nullable private final int[] states;
+
+        /** Creates a stale snapshot. */
+        BalanceSnapshot() {
+            this(new Coin[BalanceType.values().length], null, null);
+        }
+
+        BalanceSnapshot(Collection<Transaction> pendingTransactions) {
+            this(new Coin[BalanceType.values().length], new TransactionConfidence[pendingTransactions.size()],
+                    new int[pendingTransactions.size()]);
+            int i = 0;
+            for (Transaction tx : pendingTransactions) {
+                confidences[i] = tx.getConfidence();
+                states[i] = state(confidences[i]);
+                i++;
+            }
+        }
+
+        private BalanceSnapshot(Coin[] balances, @Nullable TransactionConfidence[] confidences, @Nullable int[] states) {
+            this.balances = balances;
+            this.confidences = confidences;
+            this.states = states;
+        }
+
+        // Everything about a pending transaction that coin selectors get to look at.
+        private static int state(TransactionConfidence confidence) {
+            return (confidence.numBroadcastPeers() << 8) | (confidence.getConfidenceType().ordinal() << 4)
+                    | confidence.getSource().ordinal();
+        }
+
+        boolean isCurrent() {
+            if (confidences == null)
+                return false;
+            for (int i = 0; i < confidences.length; i++)
+                if (state(confidences[i]) != states[i])
+                    return false;
+            return true;
+        }
+
+        @Nullable Coin get(BalanceType balanceType) {
+            Coin balance = balances[balanceType.ordinal()];
+            return balance != null && isCurrent() ? balance : null;
+        }
+
+        BalanceSnapshot with(BalanceType balanceType, Coin balance) {
+            Coin[] copy = balances.clone();
+            copy[balanceType.ordinal()] = balance;
+            return new BalanceSnapshot(copy, confidences, states);
+        }
+    }
+
+    // May be called with or without the lock held.
+    private void invalidateBalances() {
+        balanceSnapshot.set(new BalanceSnapshot());
+        invalidateSnapshot();
+    }
+
+    // May be called with or without the lock held.
+    private void keysChanged() {
+        invalidateRelevanceMatcher();
+        signabilityStale = true;
+        invalidateBalances();
+    }
+
+    // Like keysChanged(), but the relevance matcher only needs to learn about the new keys.
+    private void keysAdded(List<ECKey> keys) {
+        RelevanceMatcher matcher = relevanceMatcher.get();
+        if (matcher != null && matcher.version == relevanceMatcherVersion.get())
+            matcher.addKeys(keys);
+        else
+            invalidateRelevanceMatcher();  // A matcher being built right now might not have the keys.
+        signabilityStale = true;
+        invalidateBalances();
+    }
+
+    private boolean addUnspent(TransactionOutput output) {
+        checkState(lock.isHeldByCurrentThread());
+        if (!myUnspents.add(output))
+            return false;
+        spendableOutputs.add(output, canSignFor(output.getScriptPubKey()));
+        myUnspentsValue = myUnspentsValue.add(output.getValue());
+        invalidateBalances();
+        return true;
+    }
+
+    private boolean removeUnspent(TransactionOutput output) {
+        checkState(lock.isHeldByCurrentThread());
+        if (!myUnspents.remove(output))
+            return false;
+        spendableOutputs.remove(output);
+        myUnspentsValue = myUnspentsValue.subtract(output.getValue());
+        invalidateBalances();
+        return true;
+    }
+
+    private void clearUnspents() {
+        checkState(lock.isHeldByCurrentThread());
+        myUnspents.clear();
+        spendableOutputs.clear();
+        myUnspentsValue = Coin.ZERO;
+        invalidateBalances();
+    }
+
     /**
      * Returns the balance that would be considered spendable by the given coin selector, including watched outputs
      * (i.e. balance includes outputs we don't have the private keys for). Just asks it to select as many coins as
@@ -3604,6 +4122,7 @@ public class Wallet extends BaseTaggableObject
      * @return the total amount of satoshis received, regardless of whether it was spent or not.
      */
     public Coin getTotalReceived() {
+        loadHistory();
         Coin total = Coin.ZERO;
 
         // Include outputs to us if they were not just change outputs, ie the inputs to us summed to less
@@ -3637,6 +4156,7 @@ public class Wallet extends BaseTaggableObject
      * @return the total amount of satoshis sent by us
      */
     public Coin getTotalSent() {
+        loadHistory();
         Coin total = Coin.ZERO;
 
         for (Transaction tx: transactions.values()) {
@@ -4125,14 +4645,7 @@ public class Wallet extends BaseTaggableObject
         try {
             List<TransactionOutput> candidates;
             if (vUTXOProvider == null) {
-                candidates = new ArrayList<TransactionOutput>(myUnspents.size());
-                for (TransactionOutput output : myUnspents) {
-                    if (excludeUnsignable && !canSignFor(output.getScriptPubKey())) continue;
-                    Transaction transaction = checkNotNull(output.getParentTransaction());
-                    if (excludeImmatureCoinbases && !transaction.isMature())
-                        continue;
-                    candidates.add(output);
-                }
+                candidates = getSpendableOutputs().getOutputs(excludeImmatureCoinbases, excludeUnsignable);
             } else {
                 candidates = calculateAllSpendCandidatesFromUTXOProvider(excludeImmatureCoinbases);
             }
@@ -4142,6 +4655,44 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Returns the outputs worth between minValue and maxValue (inclusive) that can potentially be spent, smallest
+     * first, taking into account the flags as in {@link #calculateAllSpendCandidates(boolean, boolean)}. Unlike that
+     * method this only looks at outputs within the range, which makes it cheap even for wallets with many outputs.
+     * Outputs from a {@link UTXOProvider} are filtered by value after being fetched.
+     */
+    public List<TransactionOutput> calculateSpendCandidates(Coin minValue, Coin maxValue,
+                                                            boolean excludeImmatureCoinbases, boolean excludeUnsignable) {
+        lock.lock();
+        try {
+            if (vUTXOProvider == null)
+                return getSpendableOutputs().getOutputs(minValue, maxValue, excludeImmatureCoinbases, excludeUnsignable);
+            List<TransactionOutput> candidates = new ArrayList<TransactionOutput>();
+            for (TransactionOutput output : calculateAllSpendCandidatesFromUTXOProvider(excludeImmatureCoinbases))
+                if (output.getValue().compareTo(minValue) >= 0 && output.getValue().compareTo(maxValue) <= 0)
+                    candidates.add(output);
+            Collections.sort(candidates, new Comparator<TransactionOutput>() {
+                @Override
+                public int compare(TransactionOutput a, TransactionOutput b) {
+                    return a.getValue().compareTo(b.getValue());
+                }
+            });
+            return candidates;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private SpendableOutputIndex getSpendableOutputs() {
+        checkState(lock.isHeldByCurrentThread());
+        if (signabilityStale) {
+            // Clear first: if keys change again while we update, the next query will catch it.
+            signabilityStale = false;
+            spendableOutputs.updateSignability(this);
+        }
+        return spendableOutputs;
+    }
+
     /**
      * Returns true if this wallet has at least one of the private keys needed to sign for this scriptPubKey. Returns
      * false if the form of the script is not known or if the script is OP_RETURN.
@@ -4242,11 +4793,11 @@ public class Wallet extends BaseTaggableObject
 
     /** Returns the {@link CoinSelector} object which controls which outputs can be spent by this wallet. */
     public CoinSelector getCoinSelector() {
-        lock.lock();
+        readLock.lock();
         try {
             return coinSelector;
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
@@ -4260,6 +4811,7 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             this.coinSelector = checkNotNull(coinSelector);
+            invalidateBalances();
         } finally {
             lock.unlock();
         }
@@ -4301,6 +4853,7 @@ public class Wallet extends BaseTaggableObject
         try {
             checkArgument(provider == null || provider.getParams().equals(params));
             this.vUTXOProvider = provider;
+            invalidateBalances();
         } finally {
             lock.unlock();
         }
@@ -4394,6 +4947,7 @@ public class Wallet extends BaseTaggableObject
     public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) throws VerificationException {
         lock.lock();
         try {
+            loadHistory();
             // This runs on any peer thread with the block chain locked.
             //
             // The reorganize functionality of the wallet is tested in ChainSplitTest.java
@@ -4461,7 +5015,7 @@ public class Wallet extends BaseTaggableObject
                             TransactionInput input = output.getSpentBy();
                             if (input != null) {
                                 if (output.isMineOrWatched(this))
-                                    checkState(myUnspents.add(output));
+                                    checkState(addUnspent(output));
                                 input.disconnect();
                             }
                         }
@@ -4571,6 +5125,9 @@ public class Wallet extends BaseTaggableObject
 
     private void calcBloomOutPointsLocked() {
         // TODO: This could be done once and then kept up to date.
+        // Spent transactions only contribute outputs to watched scripts, so unread history is only needed with those.
+        if (!watchedScripts.isEmpty())
+            loadHistory();
         bloomOutPoints.clear();
         Set<Transaction> all = new HashSet<Transaction>();
         all.addAll(unspent.values());
@@ -4663,16 +5220,8 @@ public class Wallet extends BaseTaggableObject
         beginBloomFilterCalculation();
         try {
             BloomFilter filter = keyChainGroup.getBloomFilter(size, falsePositiveRate, nTweak);
-            for (Script script : watchedScripts) {
-                for (ScriptChunk chunk : script.getChunks()) {
-                    // Only add long (at least 64 bit) data to the bloom filter.
-                    // If any long constants become popular in scripts, we will need logic
-                    // here to exclude them.
-                    if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
-                        filter.insert(chunk.data);
-                    }
-                }
-            }
+            for (byte[] data : getBloomFilterScriptElements(watchedScripts))
+                filter.insert(data);
             for (TransactionOutPoint point : bloomOutPoints)
                 filter.insert(point.unsafeBitcoinSerialize());
             return filter;
@@ -4681,6 +5230,41 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Returns true if any of the wallet's deterministic key chains is married. The keys of married chains are matched
+     * by P2SH scripts that only a full calculation of the Bloom filter inserts, so such a filter can't be extended with
+     * just the keys' pubkeys and hashes.
+     */
+    public boolean hasMarriedKeyChains() {
+        keyChainGroupReadLock.lock();
+        try {
+            for (DeterministicKeyChain chain : keyChainGroup.getDeterministicKeyChains())
+                if (chain.isMarried())
+                    return true;
+            return false;
+        } finally {
+            keyChainGroupReadLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the data that {@link #getBloomFilter(int, double, long)} inserts for the given watched scripts, so that
+     * an existing filter can be extended rather than built again.
+     */
+    public List<byte[]> getBloomFilterScriptElements(Collection<Script> scripts) {
+        List<byte[]> elements = new ArrayList<byte[]>();
+        for (Script script : scripts) {
+            for (ScriptChunk chunk : script.getChunks()) {
+                // Only add long (at least 64 bit) data to the bloom filter.
+                // If any long constants become popular in scripts, we will need logic
+                // here to exclude them.
+                if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH)
+                    elements.add(chunk.data);
+            }
+        }
+        return elements;
+    }
+
     // Returns true if the output is one that won't be selected by a data element matching in the scriptSig.
     private boolean isTxOutputBloomFilterable(TransactionOutput out) {
         Script script = out.getScriptPubKey();
@@ -4771,11 +5355,11 @@ public class Wallet extends BaseTaggableObject
 
     /** Returns a snapshot of all registered extension objects. The extensions themselves are not copied. */
     public Map<String, WalletExtension> getExtensions() {
-        lock.lock();
+        readLock.lock();
         try {
             return ImmutableMap.copyOf(extensions);
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
@@ -5214,6 +5798,7 @@ public class Wallet extends BaseTaggableObject
                 log.info(" ... no non-rotating random keys available, generating entirely new HD tree: backup required after this.");
                 keyChainGroup.createAndActivateNewHDChain();
             }
+            invalidateRelevanceMatcher();
             saveNow();
         }
 
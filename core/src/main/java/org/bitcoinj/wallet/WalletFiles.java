@@ -49,6 +49,14 @@ public class WalletFiles {
     private final Callable<Void> saver;
 
     private volatile Listener vListener;
+    // Non-null while in journal mode, see setJournalMode.
+    @Nullable private volatile WalletJournal vJournal;
+
+    /**
+     * The default size the journal may grow to, as a fraction of the wallet file, before it is compacted into a new
+     * wallet file.
+     */
+    public static final double DEFAULT_COMPACTION_RATIO = 0.5;
 
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
@@ -109,6 +117,35 @@ public class WalletFiles {
         this.vListener = checkNotNull(listener);
     }
 
+    /**
+     * <p>Switches journal mode on or off. In journal mode a save appends only what changed since the previous save to
+     * a journal file next to the wallet file, named like it with {@code .journal} appended, instead of rewriting the
+     * whole wallet. Once the journal grows past {@link #DEFAULT_COMPACTION_RATIO} of the wallet file it is compacted:
+     * the wallet file is rewritten and the journal starts over. The first save after switching journal mode on always
+     * rewrites the wallet file.</p>
+     *
+     * <p>{@link Wallet#loadFromFile(File, WalletExtension...)} replays the journal on load. A save that was cut short
+     * by a crash is dropped as a whole, so the wallet comes back as it was at the previous save. The {@link Listener}
+     * is only told about saves that rewrite the wallet file.</p>
+     */
+    public void setJournalMode(boolean enabled) {
+        setJournalMode(enabled, DEFAULT_COMPACTION_RATIO);
+    }
+
+    /**
+     * Like {@link #setJournalMode(boolean)}, but compacts once the journal has grown to {@code compactionRatio} times the
+     * size of the wallet file. Lower ratios save disk space and load time at the cost of more frequent full rewrites.
+     */
+    public void setJournalMode(boolean enabled, double compactionRatio) {
+        // Take the wallet lock so we don't swap the journal out from under a save in progress.
+        wallet.lock.lock();
+        try {
+            vJournal = enabled ? new WalletJournal(file, compactionRatio) : null;
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
     /** Actually write the wallet file to disk, using an atomic rename when possible. Runs on the current thread. */
     public void saveNow() throws IOException {
         // Can be called by any thread. However the wallet is locked whilst saving, so we can have two saves in flight
@@ -122,14 +159,24 @@ public class WalletFiles {
 
     private void saveNowInternal() throws IOException {
         final Stopwatch watch = Stopwatch.createStarted();
-        File directory = file.getAbsoluteFile().getParentFile();
-        File temp = File.createTempFile("wallet", null, directory);
         final Listener listener = vListener;
-        if (listener != null)
-            listener.onBeforeAutoSave(temp);
-        wallet.saveToFile(temp, file);
-        if (listener != null)
-            listener.onAfterAutoSave(file);
+        final WalletJournal journal = vJournal;
+        if (journal != null) {
+            journal.save(wallet, listener);
+        } else {
+            File directory = file.getAbsoluteFile().getParentFile();
+            File temp = File.createTempFile("wallet", null, directory);
+            if (listener != null)
+                listener.onBeforeAutoSave(temp);
+            wallet.saveToFile(temp, file);
+            // A journal left over from journal mode was written against an older wallet file and would be ignored on
+            // load anyway.
+            File journalFile = WalletJournal.journalFileFor(file);
+            if (journalFile.exists() && !journalFile.delete())
+                log.warn("Failed to delete {}", journalFile);
+            if (listener != null)
+                listener.onAfterAutoSave(file);
+        }
         watch.stop();
         log.info("Save completed in {}", watch);
     }
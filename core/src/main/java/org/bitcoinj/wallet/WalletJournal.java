@@ -0,0 +1,440 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.ByteString;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>An append-only log of the changes made to a wallet since its file was last written out in full, used by
+ * {@link WalletFiles} in journal mode so that a save only costs as much I/O as what changed since the previous one.
+ * Once the journal grows past a given fraction of the wallet file, the next save compacts it: the whole wallet is
+ * written out as a new snapshot and the journal starts over.</p>
+ *
+ * <p>The journal lives next to the wallet file, with {@link #SUFFIX} appended to its name. It starts with a header
+ * naming the snapshot it applies to by length and SHA-256 hash, so a journal left behind by a crash during compaction,
+ * or by a plain {@link Wallet#saveToFile(File)}, is recognised as stale and ignored. After the header come records,
+ * each framed by its length and a CRC32. The records written by one save end with a commit record and are replayed
+ * all together or not at all, so a save cut short by a crash is dropped on load, leaving the wallet as it was at the
+ * previous save.</p>
+ *
+ * <p>Changes are found by comparing each part of a freshly built {@link Protos.Wallet} against digests of what was
+ * last written, so no mutation path of the wallet has to report what it touched. The depth of building transactions
+ * is left out of the comparison and recomputed from the last seen block height on load, as it changes with every
+ * block.</p>
+ */
+final class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    /** Appended to the name of the wallet file to get the name of its journal. */
+    static final String SUFFIX = ".journal";
+
+    private static final int MAGIC = 0x626a6a6c; // "bjjl"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 4 + 4 + 32 + 8;
+    // Protects against allocating absurd amounts of memory for a record with a corrupted length.
+    private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+
+    // Wallet fields other than the transactions, keys and extensions, which are journaled individually.
+    private static final byte RECORD_WALLET = 1;
+    private static final byte RECORD_TRANSACTION = 2;
+    private static final byte RECORD_REMOVE_TRANSACTION = 3;
+    // The new number of keys followed by those keys which are new or changed, each with its index.
+    private static final byte RECORD_KEYS = 4;
+    private static final byte RECORD_EXTENSION = 5;
+    private static final byte RECORD_REMOVE_EXTENSION = 6;
+    private static final byte RECORD_COMMIT = 7;
+
+    private final File file;
+    private final File journalFile;
+    private final double compactionRatio;
+
+    // Digests of the parts of the wallet as the files on disk currently hold them. The wallet digest is null until
+    // the first snapshot has been written, or after a failed write left the files in an unknown state.
+    @Nullable private Sha256Hash walletDigest;
+    private final Map<ByteString, Sha256Hash> transactionDigests = new HashMap<ByteString, Sha256Hash>();
+    private final List<Sha256Hash> keyDigests = new ArrayList<Sha256Hash>();
+    private final Map<String, Sha256Hash> extensionDigests = new HashMap<String, Sha256Hash>();
+    private long snapshotLength, snapshotModified, journalLength;
+
+    /**
+     * Creates a journal for the given wallet file, which compacts once it has grown to {@code compactionRatio} times
+     * the size of the wallet file. The first save always writes a full snapshot.
+     */
+    WalletJournal(File file, double compactionRatio) {
+        checkArgument(compactionRatio >= 0, "compactionRatio must not be negative");
+        this.file = file;
+        this.journalFile = journalFileFor(file);
+        this.compactionRatio = compactionRatio;
+    }
+
+    /** Returns the journal file belonging to the given wallet file, which may or may not exist. */
+    static File journalFileFor(File file) {
+        return new File(file.getPath() + SUFFIX);
+    }
+
+    /**
+     * Brings the files on disk up to date with the given wallet, either by appending what changed to the journal or,
+     * when the journal is due for compaction or the files were touched by someone else, by writing a new snapshot.
+     * Holds the wallet lock throughout. Returns true if a snapshot was written.
+     */
+    boolean save(Wallet wallet, @Nullable WalletFiles.Listener listener) throws IOException {
+        wallet.lock.lock();
+        try {
+            Protos.Wallet proto = new WalletProtobufSerializer().walletToProto(wallet);
+            if (needsSnapshot()) {
+                writeSnapshot(proto, listener);
+                return true;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream batch = new DataOutputStream(bytes);
+            int records = writeChanges(proto, batch);
+            if (records == 0)
+                return false;
+            writeRecord(batch, RECORD_COMMIT, new byte[0]);
+            FileOutputStream stream = new FileOutputStream(journalFile, true);
+            try {
+                bytes.writeTo(stream);
+                stream.flush();
+                stream.getFD().sync();
+            } catch (IOException e) {
+                walletDigest = null; // We don't know how much made it to disk, so start over with a snapshot.
+                throw e;
+            } finally {
+                stream.close();
+            }
+            journalLength += bytes.size();
+            log.info("Journaled {} changes, {} bytes", records, bytes.size());
+            return false;
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    private boolean needsSnapshot() {
+        return walletDigest == null
+                || journalLength - HEADER_LENGTH > snapshotLength * compactionRatio
+                || file.length() != snapshotLength || file.lastModified() != snapshotModified
+                || journalFile.length() != journalLength;
+    }
+
+    private void writeSnapshot(Protos.Wallet proto, @Nullable WalletFiles.Listener listener) throws IOException {
+        walletDigest = null;
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile("wallet", null, directory);
+        if (listener != null)
+            listener.onBeforeAutoSave(temp);
+        MessageDigest digest = Sha256Hash.newDigest();
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            OutputStream output = new DigestOutputStream(new BufferedOutputStream(stream), digest);
+            proto.writeTo(output);
+            output.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        // From here on the old journal no longer matches the wallet file, so a crash before the new header is written
+        // just leaves a journal that is ignored on load.
+        Wallet.replaceFile(temp, file);
+        snapshotLength = file.length();
+        snapshotModified = file.lastModified();
+
+        stream = new FileOutputStream(journalFile);
+        try {
+            DataOutputStream header = new DataOutputStream(stream);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.write(digest.digest());
+            header.writeLong(snapshotLength);
+            header.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        journalLength = HEADER_LENGTH;
+
+        transactionDigests.clear();
+        keyDigests.clear();
+        extensionDigests.clear();
+        writeChanges(proto, new DataOutputStream(ByteStreams.nullOutputStream()));
+        if (listener != null)
+            listener.onAfterAutoSave(file);
+    }
+
+    // Writes a record for every part of the given wallet that differs from what is on disk and updates the digests to
+    // match. Returns the number of records written.
+    private int writeChanges(Protos.Wallet proto, DataOutputStream out) throws IOException {
+        int records = 0;
+        byte[] bytes = proto.toBuilder().clearTransaction().clearKey().clearExtension().build().toByteArray();
+        Sha256Hash digest = Sha256Hash.of(bytes);
+        if (!digest.equals(walletDigest)) {
+            writeRecord(out, RECORD_WALLET, bytes);
+            walletDigest = digest;
+            records++;
+        }
+
+        Set<ByteString> removedTransactions = new HashSet<ByteString>(transactionDigests.keySet());
+        for (Protos.Transaction tx : proto.getTransactionList()) {
+            bytes = withoutDepth(tx).toByteArray();
+            digest = Sha256Hash.of(bytes);
+            removedTransactions.remove(tx.getHash());
+            if (!digest.equals(transactionDigests.put(tx.getHash(), digest))) {
+                writeRecord(out, RECORD_TRANSACTION, bytes);
+                records++;
+            }
+        }
+        for (ByteString hash : removedTransactions) {
+            transactionDigests.remove(hash);
+            writeRecord(out, RECORD_REMOVE_TRANSACTION, hash.toByteArray());
+            records++;
+        }
+
+        // Keys have no identity of their own in the proto, so they are compared by position. Key chains mostly grow
+        // at the end, but also update a few counters stored with their earlier keys as keys are issued.
+        List<Protos.Key> keys = proto.getKeyList();
+        ByteArrayOutputStream changedKeys = new ByteArrayOutputStream();
+        DataOutputStream changed = new DataOutputStream(changedKeys);
+        int numChanged = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            bytes = keys.get(i).toByteArray();
+            digest = Sha256Hash.of(bytes);
+            if (i < keyDigests.size() && digest.equals(keyDigests.get(i)))
+                continue;
+            if (i < keyDigests.size())
+                keyDigests.set(i, digest);
+            else
+                keyDigests.add(digest);
+            changed.writeInt(i);
+            changed.writeInt(bytes.length);
+            changed.write(bytes);
+            numChanged++;
+        }
+        boolean keysRemoved = keyDigests.size() > keys.size();
+        while (keyDigests.size() > keys.size())
+            keyDigests.remove(keyDigests.size() - 1);
+        if (numChanged > 0 || keysRemoved) {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(payload);
+            header.writeInt(keys.size());
+            header.writeInt(numChanged);
+            changedKeys.writeTo(payload);
+            writeRecord(out, RECORD_KEYS, payload.toByteArray());
+            records++;
+        }
+
+        Set<String> removedExtensions = new HashSet<String>(extensionDigests.keySet());
+        for (Protos.Extension extension : proto.getExtensionList()) {
+            bytes = extension.toByteArray();
+            digest = Sha256Hash.of(bytes);
+            removedExtensions.remove(extension.getId());
+            if (!digest.equals(extensionDigests.put(extension.getId(), digest))) {
+                writeRecord(out, RECORD_EXTENSION, bytes);
+                records++;
+            }
+        }
+        for (String id : removedExtensions) {
+            extensionDigests.remove(id);
+            writeRecord(out, RECORD_REMOVE_EXTENSION, id.getBytes("UTF-8"));
+            records++;
+        }
+        return records;
+    }
+
+    private static void writeRecord(DataOutputStream out, byte type, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        out.writeInt(1 + payload.length);
+        out.writeInt((int) crc.getValue());
+        out.writeByte(type);
+        out.write(payload);
+    }
+
+    private static Protos.Transaction withoutDepth(Protos.Transaction tx) {
+        if (!tx.hasConfidence() || !tx.getConfidence().hasDepth())
+            return tx;
+        return tx.toBuilder().setConfidence(tx.getConfidence().toBuilder().clearDepth()).build();
+    }
+
+    /**
+     * Reads the wallet proto stored in the given file and applies the committed records of its journal, if there is a
+     * journal and it belongs to this version of the file. Records of a save that did not complete are dropped.
+     */
+    static Protos.Wallet readWallet(File file) throws IOException {
+        File journalFile = journalFileFor(file);
+        boolean hasJournal = journalFile.exists();
+        MessageDigest digest = Sha256Hash.newDigest();
+        Protos.Wallet snapshot;
+        InputStream input = new BufferedInputStream(new FileInputStream(file));
+        try {
+            if (!hasJournal)
+                return WalletProtobufSerializer.parseToProto(input);
+            input = new DigestInputStream(input, digest);
+            snapshot = WalletProtobufSerializer.parseToProto(input);
+            ByteStreams.copy(input, ByteStreams.nullOutputStream()); // Make sure the whole file went into the digest.
+        } finally {
+            input.close();
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            byte[] snapshotHash = new byte[32];
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    log.warn("Ignoring {} as it is not a wallet journal", journalFile);
+                    return snapshot;
+                }
+                in.readFully(snapshotHash);
+                if (in.readLong() != file.length() || !Arrays.equals(snapshotHash, digest.digest())) {
+                    log.info("Ignoring {} as it belongs to a different version of the wallet file", journalFile);
+                    return snapshot;
+                }
+            } catch (EOFException e) {
+                log.warn("Ignoring {} as its header is incomplete", journalFile);
+                return snapshot;
+            }
+
+            Contents contents = new Contents(snapshot);
+            List<byte[]> pending = new ArrayList<byte[]>();
+            int batches = 0;
+            try {
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        break; // Clean end of the journal.
+                    }
+                    int checksum = in.readInt();
+                    if (length < 1 || length > MAX_RECORD_LENGTH) {
+                        log.warn("Journal record with bad length {}, ignoring the rest of {}", length, journalFile);
+                        break;
+                    }
+                    byte[] record = new byte[length];
+                    in.readFully(record);
+                    CRC32 crc = new CRC32();
+                    crc.update(record);
+                    if ((int) crc.getValue() != checksum) {
+                        log.warn("Journal record with bad checksum, ignoring the rest of {}", journalFile);
+                        break;
+                    }
+                    if (record[0] == RECORD_COMMIT) {
+                        for (byte[] r : pending)
+                            contents.apply(r);
+                        pending.clear();
+                        batches++;
+                    } else {
+                        pending.add(record);
+                    }
+                }
+            } catch (EOFException e) {
+                log.warn("Journal record cut short, ignoring the rest of {}", journalFile);
+            }
+            if (!pending.isEmpty())
+                log.warn("Dropped {} journal records of a save that did not complete", pending.size());
+            log.info("Replayed {} saves from {}", batches, journalFile);
+            return batches > 0 ? contents.toProto() : snapshot;
+        } finally {
+            in.close();
+        }
+    }
+
+    // The parts of a wallet proto in a form the journal records can be applied to.
+    private static class Contents {
+        private Protos.Wallet wallet;
+        private final LinkedHashMap<ByteString, Protos.Transaction> transactions = new LinkedHashMap<ByteString, Protos.Transaction>();
+        private final ArrayList<Protos.Key> keys;
+        private final LinkedHashMap<String, Protos.Extension> extensions = new LinkedHashMap<String, Protos.Extension>();
+
+        Contents(Protos.Wallet proto) {
+            wallet = proto.toBuilder().clearTransaction().clearKey().clearExtension().build();
+            for (Protos.Transaction tx : proto.getTransactionList())
+                transactions.put(tx.getHash(), tx);
+            keys = new ArrayList<Protos.Key>(proto.getKeyList());
+            for (Protos.Extension extension : proto.getExtensionList())
+                extensions.put(extension.getId(), extension);
+        }
+
+        void apply(byte[] record) throws IOException {
+            ByteArrayInputStream payload = new ByteArrayInputStream(record, 1, record.length - 1);
+            switch (record[0]) {
+                case RECORD_WALLET:
+                    wallet = Protos.Wallet.parseFrom(payload);
+                    break;
+                case RECORD_TRANSACTION:
+                    Protos.Transaction tx = Protos.Transaction.parseFrom(payload);
+                    transactions.put(tx.getHash(), tx);
+                    break;
+                case RECORD_REMOVE_TRANSACTION:
+                    transactions.remove(ByteString.copyFrom(record, 1, record.length - 1));
+                    break;
+                case RECORD_KEYS:
+                    DataInputStream in = new DataInputStream(payload);
+                    int numKeys = in.readInt();
+                    int numChanged = in.readInt();
+                    while (keys.size() > numKeys)
+                        keys.remove(keys.size() - 1);
+                    for (int i = 0; i < numChanged; i++) {
+                        int index = in.readInt();
+                        byte[] bytes = new byte[in.readInt()];
+                        in.readFully(bytes);
+                        Protos.Key key = Protos.Key.parseFrom(bytes);
+                        if (index < keys.size())
+                            keys.set(index, key);
+                        else if (index == keys.size())
+                            keys.add(key);
+                        else
+                            throw new IOException("Journaled key " + index + " is out of sequence");
+                    }
+                    break;
+                case RECORD_EXTENSION:
+                    Protos.Extension extension = Protos.Extension.parseFrom(payload);
+                    extensions.put(extension.getId(), extension);
+                    break;
+                case RECORD_REMOVE_EXTENSION:
+                    extensions.remove(new String(record, 1, record.length - 1, "UTF-8"));
+                    break;
+                default:
+                    throw new IOException("Unknown journal record type " + record[0]);
+            }
+        }
+
+        Protos.Wallet toProto() {
+            Protos.Wallet.Builder builder = wallet.toBuilder();
+            // Depths are not journaled, work them out from the height of the last block the wallet saw.
+            int lastSeenBlockHeight = wallet.hasLastSeenBlockHeight() ? wallet.getLastSeenBlockHeight() : -1;
+            for (Protos.Transaction tx : transactions.values())
+                builder.addTransaction(WalletProtobufSerializer.withDepth(tx, lastSeenBlockHeight));
+            builder.addAllKey(keys);
+            builder.addAllExtension(extensions.values());
+            return builder.build();
+        }
+    }
+}
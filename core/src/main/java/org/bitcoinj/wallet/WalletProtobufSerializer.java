@@ -28,9 +28,12 @@ import org.bitcoinj.utils.ExchangeRate;
 import org.bitcoinj.utils.Fiat;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.TextFormat;
 import com.google.protobuf.WireFormat;
 
@@ -38,6 +41,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -45,6 +49,10 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -74,10 +82,14 @@ public class WalletProtobufSerializer {
     public static final int CURRENT_WALLET_VERSION = Protos.Wallet.getDefaultInstance().getVersion();
     // 512 MB
     private static final int WALLET_SIZE_LIMIT = 512 * 1024 * 1024;
+    // How many transactions each task decodes when loading in parallel. Big enough to make the task overhead vanish.
+    private static final int TRANSACTIONS_PER_TASK = 256;
     // Used for de-serialization
     protected Map<ByteString, Transaction> txMap;
 
     private boolean requireMandatoryExtensions = true;
+    private boolean loadHistoryLazily = false;
+    @Nullable private ExecutorService loadExecutor;
 
     public interface WalletFactory {
         Wallet create(NetworkParameters params, KeyChainGroup keyChainGroup);
@@ -114,6 +126,34 @@ public class WalletProtobufSerializer {
         requireMandatoryExtensions = value;
     }
 
+    /**
+     * <p>If this property is set to true, wallets are read with only their keys and unspent and pending transactions
+     * (plus the few spent ones directly connected to those) turned into objects. The rest of the spent and dead
+     * transaction history is kept serialized until something needs it, at which point the wallet reads all of it in,
+     * see {@link Wallet#loadHistory()}. Startup time and heap then depend on the live part of the wallet rather than
+     * its whole history. Saving such a wallet writes the unread history straight back out.</p>
+     *
+     * <p>Receiving transactions, blocks and creating spends normally proceed without the history. It is read in on
+     * first use of methods like {@link Wallet#getTransactions(boolean)}, on a re-org, or when a new transaction spends
+     * from or double spends a history transaction.</p>
+     */
+    public void setLoadHistoryLazily(boolean value) {
+        loadHistoryLazily = value;
+    }
+
+    /**
+     * <p>If an executor is set, {@link #readWallet(NetworkParameters, WalletExtension[], Protos.Wallet, boolean)}
+     * rebuilds the key chains and decodes the transactions as tasks on it, rather than one after the other on the
+     * calling thread. Connecting the transactions to each other and adding them to the wallet still happens in a single
+     * pass on the calling thread afterwards, so the resulting wallet is exactly the same.</p>
+     *
+     * <p>This pays off for wallets with many thousands of transactions on machines with several cores. Any pool will
+     * do, for example a fixed thread pool or a ForkJoinPool; it is not shut down by the serializer.</p>
+     */
+    public void setLoadExecutor(@Nullable ExecutorService executor) {
+        loadExecutor = executor;
+    }
+
     /**
      * Formats the given wallet (transactions and keys) to the given output stream in protocol buffer format.<p>
      *
@@ -147,9 +187,27 @@ public class WalletProtobufSerializer {
             walletBuilder.setDescription(wallet.getDescription());
         }
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
-            Protos.Transaction txProto = makeTxProto(wtx);
-            walletBuilder.addTransaction(txProto);
+        wallet.lock.lock();
+        try {
+            UnloadedHistory history = wallet.getUnloadedHistory();
+            for (WalletTransaction wtx : wallet.getLoadedWalletTransactions()) {
+                Protos.Transaction txProto = makeTxProto(wtx);
+                Protos.Transaction readAheadProto = history != null ? history.getReadAhead(wtx.getTransaction().getHash()) : null;
+                if (readAheadProto != null)
+                    txProto = withUnreadSpenders(txProto, readAheadProto, history);
+                walletBuilder.addTransaction(txProto);
+            }
+            // History left out by a lazy load goes straight back out without being read, just bringing depths up to date.
+            if (history != null) {
+                try {
+                    for (Protos.Transaction txProto : history.getUnreadProtos())
+                        walletBuilder.addTransaction(withDepth(txProto, wallet.getLastBlockSeenHeight()));
+                } catch (InvalidProtocolBufferException e) {
+                    throw new RuntimeException(e); // Can't happen, we serialized these ourselves.
+                }
+            }
+        } finally {
+            wallet.lock.unlock();
         }
 
         walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
@@ -228,6 +286,25 @@ public class WalletProtobufSerializer {
         }
     }
 
+    // A transaction read ahead by a lazy load is live and may have changed since, so it is written like any other. But
+    // its outputs spent by history that is still unread aren't connected, so those spenders are taken from its proto.
+    private static Protos.Transaction withUnreadSpenders(Protos.Transaction txProto, Protos.Transaction readAheadProto,
+                                                         UnloadedHistory history) {
+        Protos.Transaction.Builder builder = null;
+        for (int i = 0; i < txProto.getTransactionOutputCount(); i++) {
+            Protos.TransactionOutput stored = readAheadProto.getTransactionOutput(i);
+            if (txProto.getTransactionOutput(i).hasSpentByTransactionHash() || !stored.hasSpentByTransactionHash()
+                    || !history.contains(byteStringToHash(stored.getSpentByTransactionHash())))
+                continue;
+            if (builder == null)
+                builder = txProto.toBuilder();
+            builder.setTransactionOutput(i, builder.getTransactionOutput(i).toBuilder()
+                    .setSpentByTransactionHash(stored.getSpentByTransactionHash())
+                    .setSpentByTransactionIndex(stored.getSpentByTransactionIndex()));
+        }
+        return builder != null ? builder.build() : txProto;
+    }
+
     private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
@@ -368,6 +445,21 @@ public class WalletProtobufSerializer {
         txBuilder.setConfidence(confidenceBuilder);
     }
 
+    /**
+     * Returns the given transaction with the depth of its confidence worked out from the given best chain height, for
+     * when it was stored earlier and blocks have come in since.
+     */
+    static Protos.Transaction withDepth(Protos.Transaction txProto, int lastSeenBlockHeight) {
+        Protos.TransactionConfidence confidence = txProto.getConfidence();
+        if (lastSeenBlockHeight < 0 || !confidence.hasAppearedAtHeight()
+                || confidence.getType() != Protos.TransactionConfidence.Type.BUILDING)
+            return txProto;
+        int depth = lastSeenBlockHeight - confidence.getAppearedAtHeight() + 1;
+        if (depth <= 0 || (confidence.hasDepth() && confidence.getDepth() == depth))
+            return txProto;
+        return txProto.toBuilder().setConfidence(confidence.toBuilder().setDepth(depth)).build();
+    }
+
     public static ByteString hashToByteString(Sha256Hash hash) {
         return ByteString.copyFrom(hash.getBytes());
     }
@@ -456,21 +548,29 @@ public class WalletProtobufSerializer {
      *
      * @throws UnreadableWalletException thrown in various error conditions (see description).
      */
-    public Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
-                             Protos.Wallet walletProto, boolean forceReset) throws UnreadableWalletException {
+    public Wallet readWallet(final NetworkParameters params, @Nullable WalletExtension[] extensions,
+                             final Protos.Wallet walletProto, boolean forceReset) throws UnreadableWalletException {
         if (walletProto.getVersion() > CURRENT_WALLET_VERSION)
             throw new UnreadableWalletException.FutureVersion();
         if (!walletProto.getNetworkIdentifier().equals(params.getId()))
             throw new UnreadableWalletException.WrongNetwork();
 
-        // Read the scrypt parameters that specify how encryption and decryption is performed.
         KeyChainGroup keyChainGroup;
-        if (walletProto.hasEncryptionParameters()) {
-            Protos.ScryptParameters encryptionParameters = walletProto.getEncryptionParameters();
-            final KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(encryptionParameters);
-            keyChainGroup = KeyChainGroup.fromProtobufEncrypted(params, walletProto.getKeyList(), keyCrypter, keyChainFactory);
+        final ExecutorService executor = loadExecutor;
+        if (executor != null) {
+            // The key chains are rebuilt while the transactions are decoded, as they don't depend on each other.
+            final KeyChainFactory keyChainFactory = this.keyChainFactory;
+            Future<KeyChainGroup> keys = executor.submit(new Callable<KeyChainGroup>() {
+                @Override
+                public KeyChainGroup call() throws UnreadableWalletException {
+                    return readKeyChainGroup(params, walletProto, keyChainFactory);
+                }
+            });
+            if (!forceReset && !loadHistoryLazily)
+                readTransactions(walletProto.getTransactionList(), params);
+            keyChainGroup = getLoadResult(keys);
         } else {
-            keyChainGroup = KeyChainGroup.fromProtobufUnencrypted(params, walletProto.getKeyList(), keyChainFactory);
+            keyChainGroup = readKeyChainGroup(params, walletProto, keyChainFactory);
         }
         Wallet wallet = factory.create(params, keyChainGroup);
 
@@ -498,15 +598,18 @@ public class WalletProtobufSerializer {
             wallet.setLastBlockSeenHeight(-1);
             wallet.setLastBlockSeenTimeSecs(0);
         } else {
-            // Read all transactions and insert into the txMap.
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                readTransaction(txProto, wallet.getParams());
-            }
-
-            // Update transaction outputs to point to inputs that spend them
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                WalletTransaction wtx = connectTransactionOutputs(params, txProto);
-                wallet.addWalletTransaction(wtx);
+            if (loadHistoryLazily) {
+                readTransactionsLazily(wallet, params, walletProto.getTransactionList());
+            } else {
+                // Read all transactions and insert into the txMap, unless that happened alongside the keys.
+                if (executor == null)
+                    readTransactions(walletProto.getTransactionList(), params);
+
+                // Update transaction outputs to point to inputs that spend them
+                for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+                    WalletTransaction wtx = connectTransactionOutputs(params, txProto);
+                    wallet.addWalletTransaction(wtx);
+                }
             }
 
             // Update the lastBlockSeenHash.
@@ -556,6 +659,27 @@ public class WalletProtobufSerializer {
         return wallet;
     }
 
+    private static KeyChainGroup readKeyChainGroup(NetworkParameters params, Protos.Wallet walletProto,
+                                                   KeyChainFactory keyChainFactory) throws UnreadableWalletException {
+        // Read the scrypt parameters that specify how encryption and decryption is performed.
+        if (walletProto.hasEncryptionParameters()) {
+            Protos.ScryptParameters encryptionParameters = walletProto.getEncryptionParameters();
+            final KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(encryptionParameters);
+            return KeyChainGroup.fromProtobufEncrypted(params, walletProto.getKeyList(), keyCrypter, keyChainFactory);
+        } else {
+            return KeyChainGroup.fromProtobufUnencrypted(params, walletProto.getKeyList(), keyChainFactory);
+        }
+    }
+
+    private static <T> T getLoadResult(Future<T> future) throws UnreadableWalletException {
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), UnreadableWalletException.class);
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
     private void loadExtensions(Wallet wallet, WalletExtension[] extensionsList, Protos.Wallet walletProto) throws UnreadableWalletException {
         final Map<String, WalletExtension> extensions = new HashMap<String, WalletExtension>();
         for (WalletExtension e : extensionsList)
@@ -598,7 +722,166 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(codedInput);
     }
 
-    private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
+    /**
+     * Returns the loaded protocol buffer from the given wallet file, with any changes journaled by {@link WalletFiles}
+     * in journal mode applied. Like {@link #parseToProto(InputStream)} this is for low level work, you normally want
+     * {@link Wallet#loadFromFile(java.io.File, WalletExtension...)} instead.
+     */
+    public static Protos.Wallet parseToProto(File file) throws IOException {
+        return WalletJournal.readWallet(file);
+    }
+
+    private static boolean isHistory(Protos.Transaction txProto) {
+        return txProto.getPool() == Protos.Transaction.Pool.SPENT || txProto.getPool() == Protos.Transaction.Pool.DEAD;
+    }
+
+    // Reads the unspent and pending transactions into the wallet and hands it the spent and dead ones as
+    // UnloadedHistory. Only history transactions directly connected to the others are read, as those connections must
+    // be in place from the start.
+    private void readTransactionsLazily(Wallet wallet, NetworkParameters params,
+                                        List<Protos.Transaction> txProtos) throws UnreadableWalletException {
+        Set<ByteString> live = new HashSet<ByteString>();
+        Set<ByteString> connected = new HashSet<ByteString>();
+        for (Protos.Transaction txProto : txProtos) {
+            if (isHistory(txProto))
+                continue;
+            live.add(txProto.getHash());
+            for (Protos.TransactionInput inputProto : txProto.getTransactionInputList())
+                connected.add(inputProto.getTransactionOutPointHash());
+            for (Protos.TransactionOutput outputProto : txProto.getTransactionOutputList())
+                if (outputProto.hasSpentByTransactionHash())
+                    connected.add(outputProto.getSpentByTransactionHash());
+        }
+
+        UnloadedHistory history = new UnloadedHistory();
+        List<Protos.Transaction> toRead = new ArrayList<Protos.Transaction>();
+        List<Protos.Transaction> readAhead = new ArrayList<Protos.Transaction>();
+        for (Protos.Transaction txProto : txProtos) {
+            if (!isHistory(txProto)) {
+                toRead.add(txProto);
+            } else if (connected.contains(txProto.getHash())) {
+                toRead.add(txProto);
+                readAhead.add(txProto);
+                history.addReadAhead(txProto);
+            } else {
+                history.add(txProto);
+            }
+        }
+        readTransactions(toRead, params);
+
+        // The history we read ahead only gets those outputs connected whose spenders we have. The rest follow along
+        // with the remaining history.
+        for (Protos.Transaction txProto : readAhead) {
+            Transaction tx = txMap.get(txProto.getHash());
+            for (int i = 0; i < tx.getOutputs().size(); i++) {
+                Protos.TransactionOutput outputProto = txProto.getTransactionOutput(i);
+                if (!outputProto.hasSpentByTransactionHash())
+                    continue;
+                Transaction spendingTx = txMap.get(outputProto.getSpentByTransactionHash());
+                if (spendingTx != null)
+                    checkNotNull(spendingTx.getInput(outputProto.getSpentByTransactionIndex())).connect(tx.getOutput(i));
+            }
+            if (txProto.hasConfidence())
+                readConfidence(params, tx, txProto.getConfidence(), tx.getConfidence());
+            wallet.addWalletTransaction(new WalletTransaction(readPool(txProto), tx));
+        }
+
+        for (Protos.Transaction txProto : txProtos) {
+            if (!isHistory(txProto))
+                wallet.addWalletTransaction(connectTransactionOutputs(params, txProto));
+        }
+        if (history.size() > 0) {
+            // From here on it's only read, by threads that may not hold the wallet lock.
+            history.doneAdding();
+            log.info("Left {} spent and dead transactions to be read later", history.size());
+            wallet.setUnloadedHistory(history);
+        }
+    }
+
+    /**
+     * Reads the transaction history left out by {@link #setLoadHistoryLazily(boolean)} and connects it to the
+     * transactions the wallet already has. Called by the wallet with its lock held.
+     */
+    List<WalletTransaction> readHistory(Wallet wallet, UnloadedHistory history) throws UnreadableWalletException {
+        try {
+            NetworkParameters params = wallet.getParams();
+            for (Transaction tx : wallet.getLoadedTransactions(true))
+                txMap.put(hashToByteString(tx.getHash()), tx);
+            List<Protos.Transaction> txProtos;
+            try {
+                txProtos = history.getProtos();
+            } catch (InvalidProtocolBufferException e) {
+                throw new UnreadableWalletException("Could not parse transaction history", e);
+            }
+            List<Protos.Transaction> toRead = new ArrayList<Protos.Transaction>(history.size());
+            for (Protos.Transaction txProto : txProtos) {
+                if (!history.isReadAhead(byteStringToHash(txProto.getHash())))
+                    toRead.add(txProto);
+            }
+            readTransactions(toRead, params);
+            List<WalletTransaction> wtxs = new ArrayList<WalletTransaction>(history.size());
+            for (Protos.Transaction txProto : txProtos) {
+                if (history.isReadAhead(byteStringToHash(txProto.getHash())))
+                    connectUnreadSpenders(txProto, history);
+                else
+                    wtxs.add(connectTransactionOutputs(params, withDepth(txProto, wallet.getLastBlockSeenHeight())));
+            }
+            return wtxs;
+        } finally {
+            txMap.clear();
+        }
+    }
+
+    // Those read ahead are in the wallet already, but get their outputs spent by the rest of the history connected
+    // here. Everything else about them is live and may have changed since, so it is left alone.
+    private void connectUnreadSpenders(Protos.Transaction txProto, UnloadedHistory history) {
+        Transaction tx = txMap.get(txProto.getHash());
+        for (int i = 0; i < tx.getOutputs().size(); i++) {
+            Protos.TransactionOutput outputProto = txProto.getTransactionOutput(i);
+            if (!outputProto.hasSpentByTransactionHash()
+                    || !history.contains(byteStringToHash(outputProto.getSpentByTransactionHash())))
+                continue;
+            Transaction spendingTx = txMap.get(outputProto.getSpentByTransactionHash());
+            checkNotNull(spendingTx.getInput(outputProto.getSpentByTransactionIndex())).connect(tx.getOutput(i));
+        }
+    }
+
+    // Decodes the transactions and inserts them into the txMap. With a load executor the decoding is spread over it in
+    // batches, the txMap is only ever touched from the calling thread.
+    private void readTransactions(final List<Protos.Transaction> txProtos, final NetworkParameters params) throws UnreadableWalletException {
+        final ExecutorService executor = loadExecutor;
+        if (executor == null || txProtos.size() <= TRANSACTIONS_PER_TASK) {
+            for (Protos.Transaction txProto : txProtos)
+                putTransaction(txProto, decodeTransaction(txProto, params));
+            return;
+        }
+        List<Future<List<Transaction>>> batches = new ArrayList<Future<List<Transaction>>>();
+        for (int i = 0; i < txProtos.size(); i += TRANSACTIONS_PER_TASK) {
+            final List<Protos.Transaction> batch = txProtos.subList(i, Math.min(i + TRANSACTIONS_PER_TASK, txProtos.size()));
+            batches.add(executor.submit(new Callable<List<Transaction>>() {
+                @Override
+                public List<Transaction> call() throws UnreadableWalletException {
+                    List<Transaction> txns = new ArrayList<Transaction>(batch.size());
+                    for (Protos.Transaction txProto : batch)
+                        txns.add(decodeTransaction(txProto, params));
+                    return txns;
+                }
+            }));
+        }
+        Iterator<Protos.Transaction> txProtoIterator = txProtos.iterator();
+        for (Future<List<Transaction>> batch : batches) {
+            for (Transaction tx : getLoadResult(batch))
+                putTransaction(txProtoIterator.next(), tx);
+        }
+    }
+
+    private void putTransaction(Protos.Transaction txProto, Transaction tx) throws UnreadableWalletException {
+        if (txMap.containsKey(txProto.getHash()))
+            throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
+        txMap.put(txProto.getHash(), tx);
+    }
+
+    private static Transaction decodeTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
         if (txProto.hasUpdatedAt()) {
             tx.setUpdateTime(new Date(txProto.getUpdatedAt()));
@@ -665,31 +948,31 @@ public class WalletProtobufSerializer {
         Sha256Hash protoHash = byteStringToHash(txProto.getHash());
         if (!tx.getHash().equals(protoHash))
             throw new UnreadableWalletException(String.format(Locale.US, "Transaction did not deserialize completely: %s vs %s", tx.getHash(), protoHash));
-        if (txMap.containsKey(txProto.getHash()))
-            throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
-        txMap.put(txProto.getHash(), tx);
+        return tx;
     }
 
-    private WalletTransaction connectTransactionOutputs(final NetworkParameters params,
-                                                        final org.bitcoinj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
-        Transaction tx = txMap.get(txProto.getHash());
-        final WalletTransaction.Pool pool;
+    private static WalletTransaction.Pool readPool(Protos.Transaction txProto) throws UnreadableWalletException {
         switch (txProto.getPool()) {
-            case DEAD: pool = WalletTransaction.Pool.DEAD; break;
-            case PENDING: pool = WalletTransaction.Pool.PENDING; break;
-            case SPENT: pool = WalletTransaction.Pool.SPENT; break;
-            case UNSPENT: pool = WalletTransaction.Pool.UNSPENT; break;
+            case DEAD: return WalletTransaction.Pool.DEAD;
+            case PENDING: return WalletTransaction.Pool.PENDING;
+            case SPENT: return WalletTransaction.Pool.SPENT;
+            case UNSPENT: return WalletTransaction.Pool.UNSPENT;
             // Upgrade old wallets: inactive pool has been merged with the pending pool.
             // Remove this some time after 0.9 is old and everyone has upgraded.
             // There should not be any spent outputs in this tx as old wallets would not allow them to be spent
             // in this state.
             case INACTIVE:
             case PENDING_INACTIVE:
-                pool = WalletTransaction.Pool.PENDING;
-                break;
+                return WalletTransaction.Pool.PENDING;
             default:
                 throw new UnreadableWalletException("Unknown transaction pool: " + txProto.getPool());
         }
+    }
+
+    private WalletTransaction connectTransactionOutputs(final NetworkParameters params,
+                                                        final org.bitcoinj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
+        Transaction tx = txMap.get(txProto.getHash());
+        final WalletTransaction.Pool pool = readPool(txProto);
         for (int i = 0 ; i < tx.getOutputs().size() ; i++) {
             TransactionOutput output = tx.getOutputs().get(i);
             final Protos.TransactionOutput transactionOutput = txProto.getTransactionOutput(i);
@@ -702,7 +985,9 @@ public class WalletProtobufSerializer {
                 }
                 final int spendingIndex = transactionOutput.getSpentByTransactionIndex();
                 TransactionInput input = checkNotNull(spendingTx.getInput(spendingIndex));
-                input.connect(output);
+                // Outputs of history read ahead by a lazy load may be connected already.
+                if (output.getSpentBy() != input)
+                    input.connect(output);
             }
         }
 
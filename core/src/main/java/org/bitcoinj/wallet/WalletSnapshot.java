@@ -0,0 +1,158 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.wallet.Wallet.BalanceType;
+import org.bitcoinj.wallet.WalletTransaction.Pool;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import javax.annotation.Nullable;
+import java.util.Locale;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>An immutable view of a {@link Wallet} at one point in time: its transaction pools, balances, the last block it saw
+ * and the public side of its keys. Get one from {@link Wallet#getSnapshot()}, which keeps handing out the same snapshot
+ * until the wallet changes. Any number of threads can read a snapshot without ever touching the wallet lock, and all
+ * they see is consistent with each other.</p>
+ *
+ * <p>The collections are immutable copies, but the {@link Transaction} objects in them are the wallet's own, so things
+ * like their confidence keep changing after the snapshot was taken. Don't modify them.</p>
+ */
+public class WalletSnapshot {
+    private final ImmutableMap<Sha256Hash, Transaction> unspent, spent, pending, dead;
+    private final ImmutableMap<BalanceType, Coin> balances;
+    @Nullable private final Sha256Hash lastBlockSeenHash;
+    private final int lastBlockSeenHeight;
+    private final long lastBlockSeenTimeSecs;
+    private final ImmutableList<Address> issuedReceiveAddresses;
+    private final ImmutableList<Script> watchedScripts;
+    // The wallet's snapshot version this was taken at, see Wallet.getSnapshot().
+    final int version;
+
+    WalletSnapshot(int version, Map<Sha256Hash, Transaction> unspent, Map<Sha256Hash, Transaction> spent,
+                   Map<Sha256Hash, Transaction> pending, Map<Sha256Hash, Transaction> dead,
+                   Map<BalanceType, Coin> balances, @Nullable Sha256Hash lastBlockSeenHash, int lastBlockSeenHeight,
+                   long lastBlockSeenTimeSecs, Iterable<Address> issuedReceiveAddresses, Iterable<Script> watchedScripts) {
+        this.version = version;
+        this.unspent = ImmutableMap.copyOf(unspent);
+        this.spent = ImmutableMap.copyOf(spent);
+        this.pending = ImmutableMap.copyOf(pending);
+        this.dead = ImmutableMap.copyOf(dead);
+        this.balances = ImmutableMap.copyOf(balances);
+        this.lastBlockSeenHash = lastBlockSeenHash;
+        this.lastBlockSeenHeight = lastBlockSeenHeight;
+        this.lastBlockSeenTimeSecs = lastBlockSeenTimeSecs;
+        this.issuedReceiveAddresses = ImmutableList.copyOf(issuedReceiveAddresses);
+        this.watchedScripts = ImmutableList.copyOf(watchedScripts);
+    }
+
+    /** Returns the transactions that were in the given pool, by hash. */
+    public ImmutableMap<Sha256Hash, Transaction> getTransactionPool(Pool pool) {
+        switch (checkNotNull(pool)) {
+            case UNSPENT:
+                return unspent;
+            case SPENT:
+                return spent;
+            case PENDING:
+                return pending;
+            case DEAD:
+                return dead;
+            default:
+                throw new RuntimeException("Unknown wallet transaction type " + pool);
+        }
+    }
+
+    /** Returns the transaction with the given hash if it was in the wallet, or null otherwise. */
+    @Nullable
+    public Transaction getTransaction(Sha256Hash hash) {
+        Transaction tx = unspent.get(hash);
+        if (tx == null)
+            tx = spent.get(hash);
+        if (tx == null)
+            tx = pending.get(hash);
+        if (tx == null)
+            tx = dead.get(hash);
+        return tx;
+    }
+
+    /**
+     * Returns all transactions that were in the wallet, see {@link Wallet#getTransactions(boolean)}.
+     * @param includeDead If true, transactions that were overridden by a double spend are included.
+     */
+    public ImmutableSet<Transaction> getTransactions(boolean includeDead) {
+        ImmutableSet.Builder<Transaction> all = ImmutableSet.builder();
+        all.addAll(unspent.values()).addAll(spent.values()).addAll(pending.values());
+        if (includeDead)
+            all.addAll(dead.values());
+        return all.build();
+    }
+
+    /** Returns the AVAILABLE balance, see {@link Wallet#getBalance()}. */
+    public Coin getBalance() {
+        return getBalance(BalanceType.AVAILABLE);
+    }
+
+    /** Returns the balance of the given type, see {@link Wallet#getBalance(BalanceType)}. */
+    public Coin getBalance(BalanceType balanceType) {
+        return checkNotNull(balances.get(balanceType));
+    }
+
+    /** Returns the hash of the last seen best-chain block, see {@link Wallet#getLastBlockSeenHash()}. */
+    @Nullable
+    public Sha256Hash getLastBlockSeenHash() {
+        return lastBlockSeenHash;
+    }
+
+    /** Returns the height of the last seen best-chain block, see {@link Wallet#getLastBlockSeenHeight()}. */
+    public int getLastBlockSeenHeight() {
+        return lastBlockSeenHeight;
+    }
+
+    /** Returns the time of the last seen best-chain block, see {@link Wallet#getLastBlockSeenTimeSecs()}. */
+    public long getLastBlockSeenTimeSecs() {
+        return lastBlockSeenTimeSecs;
+    }
+
+    /**
+     * Returns the addresses of the keys handed out for receiving funds by the active key chain, see
+     * {@link Wallet#getIssuedReceiveKeys()}. Empty if the wallet has no deterministic key chain.
+     */
+    public ImmutableList<Address> getIssuedReceiveAddresses() {
+        return issuedReceiveAddresses;
+    }
+
+    /** Returns the scripts the wallet was watching, see {@link Wallet#getWatchedScripts()}. */
+    public ImmutableList<Script> getWatchedScripts() {
+        return watchedScripts;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "WalletSnapshot of %d transactions at height %d, balance %s",
+                unspent.size() + spent.size() + pending.size() + dead.size(), lastBlockSeenHeight,
+                getBalance().toFriendlyString());
+    }
+}
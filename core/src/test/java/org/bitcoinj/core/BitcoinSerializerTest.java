@@ -130,6 +130,30 @@ public class BitcoinSerializerTest {
         assertTrue(Arrays.equals(TRANSACTION_MESSAGE_BYTES, bos.toByteArray()));
     }
 
+    @Test
+    public void testPayloadNotCopied() throws Exception {
+        MessageSerializer serializer = MainNetParams.get().getSerializer(true);
+        ByteBuffer in = ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES);
+        serializer.seekPastMagicBytes(in);
+        BitcoinSerializer.BitcoinPacketHeader header = serializer.deserializeHeader(in);
+        byte[] payload = new byte[header.size];
+        in.get(payload);
+
+        // A buffer holding exactly the payload is parsed in place, and retained in parseRetain mode.
+        ByteBuffer payloadBuffer = ByteBuffer.wrap(payload);
+        Transaction transaction = (Transaction) serializer.deserializePayload(header, payloadBuffer);
+        assertFalse(payloadBuffer.hasRemaining());
+        assertSame(payload, transaction.unsafeBitcoinSerialize());
+
+        // Otherwise the payload is copied out of the buffer.
+        in.position(BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH + 4);
+        Transaction copied = (Transaction) serializer.deserializePayload(header, in);
+        assertFalse(in.hasRemaining());
+        assertEquals(transaction.getHash(), copied.getHash());
+        assertNotSame(payload, copied.unsafeBitcoinSerialize());
+        assertArrayEquals(payload, copied.unsafeBitcoinSerialize());
+    }
+
     /**
      * Get 1 header of the block number 1 (the first one is 0) in the chain
      */
@@ -121,6 +121,27 @@ public class ECKeyTest {
         assertTrue(key.verify(Sha256Hash.ZERO_HASH.getBytes(), sig));
     }
 
+    @Test
+    public void verifyBatch() throws Exception {
+        ECKey key = new ECKey();
+        ECKey otherKey = new ECKey();
+        byte[][] data = new byte[3][];
+        ECDSASignature[] sigs = new ECDSASignature[3];
+        byte[][] pubs = new byte[3][];
+        for (int i = 0; i < 3; i++) {
+            Sha256Hash hash = Sha256Hash.of(new byte[] { (byte) i });
+            data[i] = hash.getBytes();
+            sigs[i] = key.sign(hash);
+            pubs[i] = key.getPubKey();
+        }
+        pubs[1] = otherKey.getPubKey();
+        boolean[] results = ECKey.verifyBatch(data, sigs, pubs);
+        assertTrue(results[0]);
+        assertFalse(results[1]);
+        assertTrue(results[2]);
+        assertEquals(0, ECKey.verifyBatch(new byte[0][], new ECDSASignature[0], new byte[0][]).length);
+    }
+
     @Test
     public void testASN1Roundtrip() throws Exception {
         byte[] privkeyASN1 = HEX.decode(
@@ -672,6 +672,105 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertFalse(f1.contains(key.getPubKeyHash()));
     }
 
+    @Test
+    public void testBloomExtendOnNewKey() throws Exception {
+        // As above, but with incremental updates the new keys are sent as filteradd messages instead of a new filter.
+        peerGroup.setIncrementalBloomFilterUpdatesEnabled(true);
+        wallet.setKeyChainGroupLookaheadSize(5);
+        wallet.setKeyChainGroupLookaheadThreshold(4);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        peerGroup.waitForJobQueue();
+        BloomFilter f1 = p1.lastReceivedFilter;
+        // Keep a copy of what the remote peer would end up with.
+        BloomFilter remote = new BloomFilter(PARAMS, f1.bitcoinSerialize());
+        ECKey key = null;
+        for (int i = 0; i < wallet.getKeyChainGroupLookaheadSize() + wallet.getKeyChainGroupLookaheadThreshold() + 1; i++) {
+            key = wallet.freshReceiveKey();
+        }
+        peerGroup.waitForJobQueue();
+        Message m;
+        int adds = 0;
+        while ((m = outbound(p1)) != null) {
+            if (m instanceof FilterAddMessage) {
+                remote.insert(((FilterAddMessage) m).getData());
+                adds++;
+            } else {
+                assertEquals(MemoryPoolMessage.class, m.getClass());
+            }
+        }
+        assertNotNull(key);
+        assertTrue(adds > 0);
+        assertSame(f1, p1.lastReceivedFilter);
+        assertFalse(f1.contains(key.getPubKey()));
+        assertTrue(remote.contains(key.getPubKey()));
+        assertTrue(remote.contains(key.getPubKeyHash()));
+        // A new peer gets the extended filter, and a full recalculation now finds nothing to send.
+        InboundMessageQueuer p2 = connectPeer(2);
+        assertEquals(remote, p2.lastReceivedFilter);
+        peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED).get();
+        assertNull(outbound(p1));
+    }
+
+    @Test
+    public void testBloomExtendOnNewKeysFromTwoWallets() throws Exception {
+        // The key listener runs with the adding wallet's key chain locks held. Two wallets issuing keys at the same time
+        // must not take each other's locks from there, which would throw PotentialDeadlockException or deadlock.
+        peerGroup.setIncrementalBloomFilterUpdatesEnabled(true);
+        final Wallet wallet2 = new Wallet(PARAMS);
+        peerGroup.addWallet(wallet2);
+        final List<Wallet> wallets = ImmutableList.of(wallet, wallet2);
+        for (Wallet w : wallets) {
+            w.setKeyChainGroupLookaheadSize(5);
+            w.setKeyChainGroupLookaheadThreshold(4);
+        }
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        peerGroup.waitForJobQueue();
+        BloomFilter remote = new BloomFilter(PARAMS, p1.lastReceivedFilter.bitcoinSerialize());
+        while (outbound(p1) != null);
+
+        final CyclicBarrier barrier = new CyclicBarrier(wallets.size());
+        final ECKey[] lastKeys = new ECKey[wallets.size()];
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = Lists.newArrayList();
+        for (int i = 0; i < wallets.size(); i++) {
+            final int index = i;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        barrier.await();
+                        Wallet w = wallets.get(index);
+                        for (int j = 0; j < 50; j++)
+                            lastKeys[index] = w.freshReceiveKey();
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(Collections.<Throwable>emptyList(), errors);
+        peerGroup.waitForJobQueue();
+        Message m;
+        while ((m = outbound(p1)) != null) {
+            if (m instanceof FilterAddMessage)
+                remote.insert(((FilterAddMessage) m).getData());
+            else if (m instanceof BloomFilter)
+                remote = (BloomFilter) m;  // Outgrew the filter, so a new one was calculated.
+            else
+                assertEquals(MemoryPoolMessage.class, m.getClass());
+        }
+        for (ECKey key : lastKeys) {
+            assertTrue(remote.contains(key.getPubKey()));
+            assertTrue(remote.contains(key.getPubKeyHash()));
+        }
+    }
+
     @Test
     public void waitForNumPeers1() throws Exception {
         ListenableFuture<List<Peer>> future = peerGroup.waitForPeers(3);
@@ -0,0 +1,208 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.script.ScriptOpCodes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class ScriptVerificationEngineTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private ExecutorService executor;
+    private ScriptVerificationEngine engine;
+    private ECKey key;
+    private Transaction funding;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        executor = Executors.newFixedThreadPool(2);
+        engine = new ScriptVerificationEngine(executor, 3);
+        key = new ECKey();
+        funding = new Transaction(PARAMS);
+        for (int i = 0; i < 10; i++)
+            funding.addOutput(Coin.COIN, key.toAddress(PARAMS));
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private Transaction spend(int firstOutput, int numOutputs, ECKey signingKey) {
+        Transaction tx = new Transaction(PARAMS);
+        tx.addOutput(Coin.COIN, new ECKey().toAddress(PARAMS));
+        for (int i = firstOutput; i < firstOutput + numOutputs; i++)
+            tx.addSignedInput(funding.getOutput(i), signingKey);
+        return tx;
+    }
+
+    private List<Script> connectedScripts(Transaction tx) {
+        List<Script> scripts = new ArrayList<Script>();
+        for (TransactionInput input : tx.getInputs())
+            scripts.add(funding.getOutput(input.getOutpoint().getIndex()).getScriptPubKey());
+        return scripts;
+    }
+
+    @Test
+    public void verifiesInputsAcrossChunks() throws Exception {
+        ScriptVerificationEngine.Batch batch = engine.newBatch(null);
+        for (Transaction tx : ImmutableList.of(spend(0, 5, key), spend(5, 1, key), spend(6, 4, key)))
+            batch.add(tx, connectedScripts(tx), Script.ALL_VERIFY_FLAGS);
+        batch.verify();
+        assertEquals(10, engine.getInputsVerified());
+        assertEquals(1, engine.getBatchesVerified());
+        assertEquals(0, engine.getBatchesFailed());
+    }
+
+    @Test
+    public void failureDoesNotAffectLaterBatches() throws Exception {
+        ScriptVerificationEngine.Batch batch = engine.newBatch(null);
+        Transaction good = spend(0, 5, key);
+        Transaction bad = spend(5, 5, new ECKey());
+        batch.add(good, connectedScripts(good), Script.ALL_VERIFY_FLAGS);
+        batch.add(bad, connectedScripts(bad), Script.ALL_VERIFY_FLAGS);
+        try {
+            batch.verify();
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(1, engine.getBatchesFailed());
+        assertFalse(executor.isShutdown());
+
+        batch = engine.newBatch(null);
+        batch.add(good, connectedScripts(good), Script.ALL_VERIFY_FLAGS);
+        batch.verify();
+        assertEquals(1, engine.getBatchesVerified());
+        assertEquals(5, engine.getInputsVerified());
+    }
+
+    @Test
+    public void failureWaitsForRunningChunks() throws Exception {
+        // The first chunk gets stuck in the signature cache, while the second one fails.
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean blocked = new AtomicBoolean();
+        SignatureCache cache = new SignatureCache() {
+            @Override
+            public boolean contains(Sha256Hash sigHash, ECKey.ECDSASignature signature, byte[] pubKey) {
+                if (blocked.compareAndSet(false, true)) {
+                    entered.countDown();
+                    Uninterruptibles.awaitUninterruptibly(release);
+                }
+                return super.contains(sigHash, signature, pubKey);
+            }
+        };
+        final ScriptVerificationEngine.Batch batch = engine.newBatch(cache);
+        Transaction good = spend(0, 3, key);
+        batch.add(good, connectedScripts(good), Script.ALL_VERIFY_FLAGS);
+        entered.await();
+        Transaction bad = spend(3, 3, new ECKey());
+        batch.add(bad, connectedScripts(bad), Script.ALL_VERIFY_FLAGS);
+        while (((ThreadPoolExecutor) executor).getCompletedTaskCount() < 1)
+            Thread.sleep(10);
+
+        ExecutorService verifier = Executors.newSingleThreadExecutor();
+        Future<?> verification = verifier.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                batch.verify();
+                return null;
+            }
+        });
+        try {
+            verification.get(200, TimeUnit.MILLISECONDS);
+            fail("verify() returned while a chunk was still running");
+        } catch (TimeoutException e) {
+            // Expected.
+        }
+        release.countDown();
+        try {
+            verification.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof VerificationException);
+        }
+        verifier.shutdown();
+        assertEquals(1, engine.getBatchesFailed());
+    }
+
+    @Test
+    public void invalidPubKeyIsJustAnInvalidSignature() throws Exception {
+        // <sig> <garbage pubkey> CHECKSIG NOT is valid: the pubkey doesn't decode, so CHECKSIG pushes false.
+        byte[] garbage = new byte[33];
+        Arrays.fill(garbage, (byte) 7);
+        Script scriptPubKey = new ScriptBuilder().data(garbage).op(ScriptOpCodes.OP_CHECKSIG).op(ScriptOpCodes.OP_NOT).build();
+        funding.addOutput(Coin.COIN, scriptPubKey);
+        Transaction tx = new Transaction(PARAMS);
+        tx.addOutput(Coin.COIN, new ECKey().toAddress(PARAMS));
+        tx.addInput(funding.getOutput(10));
+        TransactionSignature sig = tx.calculateSignature(0, key, scriptPubKey, Transaction.SigHash.ALL, false);
+        tx.getInput(0).setScriptSig(new ScriptBuilder().data(sig.encodeToBitcoin()).build());
+        ScriptVerificationEngine.Batch batch = engine.newBatch(null);
+        batch.add(tx, connectedScripts(tx), Script.ALL_VERIFY_FLAGS);
+        batch.verify();
+        assertEquals(1, engine.getBatchesVerified());
+        assertEquals(0, engine.getBatchesFailed());
+    }
+
+    @Test
+    public void usesSignatureCache() throws Exception {
+        SignatureCache cache = new SignatureCache();
+        Transaction tx = spend(0, 4, key);
+        ScriptVerificationEngine.Batch batch = engine.newBatch(cache);
+        batch.add(tx, connectedScripts(tx), Script.ALL_VERIFY_FLAGS);
+        batch.verify();
+        assertEquals(4, cache.size());
+        batch = engine.newBatch(cache);
+        batch.add(tx, connectedScripts(tx), Script.ALL_VERIFY_FLAGS);
+        batch.verify();
+        assertEquals(4, cache.getHitCount());
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        Transaction tx = spend(0, 4, key);
+        ScriptVerificationEngine.Batch batch = engine.newBatch(null);
+        batch.add(tx, connectedScripts(tx), Script.ALL_VERIFY_FLAGS);
+        batch.cancel();
+        assertEquals(1, engine.getBatchesFailed());
+        assertEquals(0, engine.getInputsVerified());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void verifyOnlyOnce() throws Exception {
+        ScriptVerificationEngine.Batch batch = engine.newBatch(null);
+        batch.verify();
+        batch.verify();
+    }
+}
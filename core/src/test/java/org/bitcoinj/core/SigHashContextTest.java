@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.Transaction.SigHash;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.bitcoinj.script.ScriptOpCodes.*;
+import static org.junit.Assert.*;
+
+public class SigHashContextTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private Transaction tx;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        Random random = new Random(42);
+        tx = new Transaction(PARAMS);
+        tx.setLockTime(12345);
+        for (int i = 0; i < 5; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            byte[] scriptSig = new byte[random.nextInt(100)];
+            random.nextBytes(scriptSig);
+            TransactionInput input = tx.addInput(Sha256Hash.wrap(hash), random.nextInt(10), new Script(new byte[0]));
+            input.setScriptBytes(scriptSig);
+            input.setSequenceNumber(i);
+        }
+        for (int i = 0; i < 3; i++) {
+            byte[] pubKeyHash = new byte[20];
+            random.nextBytes(pubKeyHash);
+            tx.addOutput(Coin.valueOf(random.nextInt(100000)), ScriptBuilder.createOutputScript(
+                    new Address(PARAMS, pubKeyHash)));
+        }
+    }
+
+    @Test
+    public void sameAsTransaction() {
+        SigHashContext context = new SigHashContext(tx);
+        byte[] script = new ScriptBuilder().op(OP_DUP).op(OP_CODESEPARATOR).op(OP_CHECKSIG).build().getProgram();
+        for (int index = 0; index < tx.getInputs().size(); index++) {
+            for (SigHash type : new SigHash[] { SigHash.ALL, SigHash.NONE, SigHash.SINGLE }) {
+                for (boolean anyoneCanPay : new boolean[] { false, true }) {
+                    assertEquals(tx.hashForSignature(index, script, type, anyoneCanPay),
+                            context.hashForSignature(index, script, type, anyoneCanPay));
+                }
+            }
+            // Unknown hash types are treated like SIGHASH_ALL but still committed to.
+            assertEquals(tx.hashForSignature(index, script, (byte) 0),
+                    context.hashForSignature(index, script, (byte) 0));
+        }
+    }
+
+    @Test
+    public void unaffectedByInputScripts() {
+        SigHashContext context = new SigHashContext(tx);
+        byte[] script = new byte[] { (byte) OP_CHECKSIG };
+        tx.getInput(1).setScriptBytes(new byte[] { 1, 2, 3 });
+        assertEquals(tx.hashForSignature(0, script, SigHash.ALL, false),
+                context.hashForSignature(0, script, SigHash.ALL, false));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    @Test
+    public void onlyValidSignaturesAreCached() {
+        SignatureCache cache = new SignatureCache(10);
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1, 2, 3 });
+        ECKey.ECDSASignature sig = key.sign(hash);
+
+        assertTrue(cache.verify(hash, sig, key.getPubKey()));
+        assertEquals(0, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertTrue(cache.contains(hash, sig, key.getPubKey()));
+        assertTrue(cache.verify(hash, sig, key.getPubKey()));
+        assertEquals(1, cache.getHitCount());
+
+        // Same signature, different key or hash.
+        ECKey otherKey = new ECKey();
+        assertFalse(cache.verify(hash, sig, otherKey.getPubKey()));
+        assertFalse(cache.verify(hash, sig, otherKey.getPubKey()));
+        assertFalse(cache.contains(hash, sig, otherKey.getPubKey()));
+        Sha256Hash otherHash = Sha256Hash.of(new byte[] { 4, 5, 6 });
+        assertFalse(cache.verify(otherHash, sig, key.getPubKey()));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(4, cache.getMissCount());
+        assertEquals(1, cache.size());
+
+        cache.clear();
+        assertFalse(cache.contains(hash, sig, key.getPubKey()));
+    }
+
+    @Test
+    public void correctlySpends() {
+        NetworkParameters params = UnitTestParams.get();
+        Context.propagate(new Context(params));
+        ECKey key = new ECKey();
+        Transaction prev = new Transaction(params);
+        prev.addOutput(Coin.COIN, key.toAddress(params));
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Coin.COIN, new ECKey().toAddress(params));
+        tx.addSignedInput(prev.getOutput(0), key);
+
+        SignatureCache cache = new SignatureCache();
+        Script scriptSig = tx.getInput(0).getScriptSig();
+        Script scriptPubKey = prev.getOutput(0).getScriptPubKey();
+        scriptSig.correctlySpends(tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS, cache);
+        assertEquals(1, cache.getMissCount());
+        scriptSig.correctlySpends(tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS, cache);
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.wallet.BasicKeyChain;
+import org.junit.Test;
+import org.spongycastle.math.ec.ECPoint;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PubKeyCacheTest {
+    @Test
+    public void hashesAreRemembered() {
+        PubKeyCache cache = new PubKeyCache();
+        ECKey key = new ECKey();
+        byte[] pub = key.getPubKey();
+        byte[] expected = Utils.sha256hash160(pub);
+        cache.add(key);
+        assertEquals(1, cache.size());
+        byte[] first = cache.getPubKeyHash(pub);
+        assertArrayEquals(expected, first);
+        assertEquals(1, cache.getHitCount());
+        // Scribbling on what we got back, or on the key we passed in, doesn't change what later callers see.
+        first[0]++;
+        byte[] copy = pub.clone();
+        pub[1]++;
+        assertArrayEquals(expected, cache.getPubKeyHash(copy));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void pointsAreRemembered() {
+        PubKeyCache cache = new PubKeyCache();
+        ECKey key = new ECKey();
+        byte[] pub = key.getPubKey();
+        cache.add(key);
+        long misses = cache.getMissCount();
+        ECPoint point = cache.decodePoint(ECKey.CURVE.getCurve(), pub);
+        assertEquals(key.getPubKeyPoint(), point);
+        assertSame(point, cache.decodePoint(ECKey.CURVE.getCurve(), pub.clone()));
+        assertEquals(misses + 1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+        // The point and the hash share one entry.
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void keysNotAddedAreNotRemembered() {
+        PubKeyCache cache = new PubKeyCache();
+        byte[] pub = new ECKey().getPubKey();
+        assertArrayEquals(Utils.sha256hash160(pub), cache.getPubKeyHash(pub));
+        cache.getPubKeyHash(pub);
+        cache.decodePoint(ECKey.CURVE.getCurve(), pub);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+    }
+
+    @Test
+    public void bounded() {
+        PubKeyCache cache = new PubKeyCache(10);
+        for (int i = 0; i < 100; i++)
+            cache.add(new ECKey());
+        assertTrue(cache.size() <= 10);
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void walletKeysStayCached() {
+        PubKeyCache previous = PubKeyCache.get();
+        PubKeyCache cache = new PubKeyCache();
+        PubKeyCache.set(cache);
+        try {
+            // More keys than the cache used to hold. Consecutive points are much quicker to make than random keys.
+            List<ECKey> keys = new ArrayList<ECKey>();
+            ECPoint point = new ECKey().getPubKeyPoint();
+            for (int i = 0; i < 25000; i++) {
+                keys.add(ECKey.fromPublicOnly(point));
+                point = point.add(ECKey.CURVE.getG()).normalize();
+            }
+            BasicKeyChain chain = new BasicKeyChain();
+            chain.importKeys(keys);
+            // Throwaway keys, as made when signing or parsing scripts, don't push out the chain's keys.
+            for (int i = 0; i < 25000; i++) {
+                ECKey.fromPublicOnly(point).getPubKeyHash();
+                point = point.add(ECKey.CURVE.getG()).normalize();
+            }
+            assertEquals(keys.size(), cache.size());
+            long hits = cache.getHitCount();
+            long misses = cache.getMissCount();
+            // Scan the whole wallet twice, through copies of the keys that have to look up their hashes.
+            for (int pass = 0; pass < 2; pass++)
+                for (ECKey key : keys)
+                    assertArrayEquals(key.getPubKeyHash(), ECKey.fromPublicOnly(key.getPubKeyPoint()).getPubKeyHash());
+            assertEquals(hits + 2 * keys.size(), cache.getHitCount());
+            assertEquals(misses, cache.getMissCount());
+        } finally {
+            PubKeyCache.set(previous);
+        }
+    }
+}
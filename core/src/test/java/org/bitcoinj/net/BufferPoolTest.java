@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+    @Test
+    public void reusesReleasedBuffers() {
+        BufferPool pool = new BufferPool(BufferPool.MAX_POOLED_SIZE);
+        ByteBuffer buffer = pool.acquireDirect(5000);
+        assertTrue(buffer.isDirect());
+        assertEquals(8192, buffer.capacity());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(1, pool.getOutstandingCount());
+        buffer.put((byte) 1);
+        pool.release(buffer);
+        assertEquals(0, pool.getOutstandingCount());
+
+        ByteBuffer again = pool.acquireDirect(8192);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(again.capacity(), again.limit());
+        assertEquals(1, pool.getHitCount());
+
+        // Heap buffers are pooled separately.
+        ByteBuffer heap = pool.acquireHeap(8192);
+        assertFalse(heap.isDirect());
+        assertEquals(2, pool.getMissCount());
+        pool.release(heap);
+        assertSame(heap, pool.acquireHeap(6000));
+    }
+
+    @Test
+    public void sizeClasses() {
+        BufferPool pool = new BufferPool(BufferPool.MAX_POOLED_SIZE);
+        assertEquals(BufferPool.MIN_POOLED_SIZE, pool.acquireHeap(0).capacity());
+        assertEquals(BufferPool.MIN_POOLED_SIZE, pool.acquireHeap(BufferPool.MIN_POOLED_SIZE).capacity());
+        assertEquals(65536, pool.acquireHeap(65536).capacity());
+        assertEquals(131072, pool.acquireHeap(65537).capacity());
+        assertEquals(BufferPool.MAX_POOLED_SIZE, pool.acquireHeap(BufferPool.MAX_POOLED_SIZE).capacity());
+        // Too large to be pooled, so allocated exactly and dropped when released.
+        ByteBuffer huge = pool.acquireHeap(BufferPool.MAX_POOLED_SIZE + 1);
+        assertEquals(BufferPool.MAX_POOLED_SIZE + 1, huge.capacity());
+        pool.release(huge);
+        assertNotSame(huge, pool.acquireHeap(BufferPool.MAX_POOLED_SIZE + 1));
+        assertEquals(6, pool.getOutstandingCount());
+    }
+
+    @Test
+    public void retentionIsBounded() {
+        // Room for two free buffers of the smallest class.
+        BufferPool pool = new BufferPool(2 * BufferPool.MIN_POOLED_SIZE);
+        ByteBuffer a = pool.acquireHeap(1), b = pool.acquireHeap(1), c = pool.acquireHeap(1);
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+        assertSame(a, pool.acquireHeap(1));
+        assertSame(b, pool.acquireHeap(1));
+        assertNotSame(c, pool.acquireHeap(1));
+    }
+}
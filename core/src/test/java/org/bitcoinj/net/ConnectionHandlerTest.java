@@ -0,0 +1,171 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConnectionHandlerTest {
+    private Selector selector;
+    private SocketChannel local, remote;
+    private SelectionKey key;
+    private BufferPool pool;
+    private Set<ConnectionHandler> connectedHandlers;
+
+    @Before
+    public void setUp() throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        remote = SocketChannel.open(server.socket().getLocalSocketAddress());
+        local = server.accept();
+        server.close();
+        local.configureBlocking(false);
+        selector = Selector.open();
+        key = local.register(selector, SelectionKey.OP_READ);
+        pool = new BufferPool(BufferPool.DEFAULT_MAX_RETAINED_BYTES_PER_CLASS);
+        connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        remote.close();
+        local.close();
+        selector.close();
+    }
+
+    // Consumes everything it's given, optionally stalling in the middle of a read until told to go on.
+    private static class StallingConnection implements StreamConnection {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        volatile MessageWriteTarget writeTarget;
+        volatile boolean closeWhileReading;
+
+        @Override public void connectionClosed() {}
+        @Override public void connectionOpened() {}
+        @Override public void setWriteTarget(MessageWriteTarget writeTarget) { this.writeTarget = writeTarget; }
+        @Override public int getMaxMessageSize() { return 1000; }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) throws Exception {
+            reading.countDown();
+            if (closeWhileReading)
+                writeTarget.closeConnection();
+            assertTrue(proceed.await(10, TimeUnit.SECONDS));
+            int read = buff.remaining();
+            buff.position(buff.limit());
+            return read;
+        }
+    }
+
+    private void readOnce() throws IOException {
+        remote.write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+        assertEquals(1, selector.select(10000));
+        selector.selectedKeys().clear();
+        ConnectionHandler.handleKey(key);
+    }
+
+    @Test
+    public void closeDuringReadReleasesOnce() throws Exception {
+        StallingConnection connection = new StallingConnection();
+        ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers, null, pool);
+        key.attach(handler);
+        assertEquals(1, pool.getOutstandingCount());
+        Thread selectorThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    readOnce();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        selectorThread.start();
+        assertTrue(connection.reading.await(10, TimeUnit.SECONDS));
+        // Closed from another thread while the read buffer is in use: it mustn't go back to the pool yet.
+        handler.closeConnection();
+        assertEquals(1, pool.getOutstandingCount());
+        connection.proceed.countDown();
+        selectorThread.join();
+        assertEquals(0, pool.getOutstandingCount());
+        // Closing again, or the selector noticing the cancelled key, releases nothing more.
+        handler.closeConnection();
+        ConnectionHandler.handleKey(key);
+        assertEquals(0, pool.getOutstandingCount());
+        // The pool got the buffer back once, so it can hand it out only once.
+        long hits = pool.getHitCount();
+        pool.acquireDirect(BufferPool.MIN_POOLED_SIZE);
+        pool.acquireDirect(BufferPool.MIN_POOLED_SIZE);
+        assertEquals(hits + 1, pool.getHitCount());
+    }
+
+    @Test
+    public void closeFromWithinReadReleasesOnce() throws Exception {
+        StallingConnection connection = new StallingConnection();
+        connection.closeWhileReading = true;
+        connection.proceed.countDown();
+        ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers, null, pool);
+        key.attach(handler);
+        readOnce();
+        assertEquals(0, pool.getOutstandingCount());
+        handler.closeConnection();
+        assertEquals(0, pool.getOutstandingCount());
+    }
+
+    @Test
+    public void writeAfterCloseReleasesItsBuffer() throws Exception {
+        StallingConnection connection = new StallingConnection();
+        ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers, null, pool);
+        handler.closeConnection();
+        assertEquals(0, pool.getOutstandingCount());
+        try {
+            handler.writeBytes(new byte[BufferPool.MIN_POOLED_SIZE]);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertEquals(0, pool.getOutstandingCount());
+    }
+
+    @Test
+    public void smallWritesDontTakePooledBuffers() throws Exception {
+        StallingConnection connection = new StallingConnection();
+        ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers, null, pool);
+        assertEquals(1, pool.getOutstandingCount());  // The read buffer.
+        handler.writeBytes(new byte[24]);
+        assertEquals(1, pool.getOutstandingCount());
+        handler.writeBytes(new byte[BufferPool.MIN_POOLED_SIZE + 1]);
+        assertEquals(2, pool.getOutstandingCount());
+        handler.closeConnection();
+        assertEquals(0, pool.getOutstandingCount());
+    }
+}
@@ -43,7 +43,9 @@ import java.util.*;
 
 import static org.bitcoinj.core.Utils.HEX;
 import static org.bitcoinj.script.ScriptOpCodes.OP_0;
+import static org.bitcoinj.script.ScriptOpCodes.OP_CHECKSIG;
 import static org.bitcoinj.script.ScriptOpCodes.OP_INVALIDOPCODE;
+import static org.bitcoinj.script.ScriptOpCodes.OP_NOT;
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.junit.Assert.*;
 import org.junit.Before;
@@ -354,6 +356,12 @@ public class ScriptTest {
                     input.getScriptSig().correctlySpends(transaction, i, scriptPubKeys.get(input.getOutpoint()),
                             verifyFlags);
                 }
+                SigHashContext sigHashContext = new SigHashContext(transaction);
+                for (int i = 0; i < transaction.getInputs().size(); i++) {
+                    TransactionInput input = transaction.getInputs().get(i);
+                    input.getScriptSig().correctlySpends(sigHashContext, i, scriptPubKeys.get(input.getOutpoint()),
+                            verifyFlags, null, null);
+                }
             } catch (Exception e) {
                 System.err.println(test);
                 if (transaction != null)
@@ -406,6 +414,37 @@ public class ScriptTest {
         }
     }
 
+    @Test
+    public void deferredSignatures() throws Exception {
+        ECKey key = new ECKey();
+        Transaction prev = new Transaction(PARAMS);
+        prev.addOutput(Coin.COIN, key.toAddress(PARAMS));
+        Transaction tx = new Transaction(PARAMS);
+        tx.addOutput(Coin.COIN, new ECKey().toAddress(PARAMS));
+        TransactionInput input = tx.addSignedInput(prev.getOutput(0), key);
+        Script scriptSig = input.getScriptSig();
+
+        SignatureBatch batch = new SignatureBatch(null);
+        scriptSig.correctlySpends(tx, 0, prev.getOutput(0).getScriptPubKey(), Script.ALL_VERIFY_FLAGS, null, batch);
+        assertEquals(1, batch.size());
+        assertTrue(batch.verify()[0]);
+        assertEquals(0, batch.size());
+
+        // This only passes if the signature is invalid, so it fails if the signature is assumed to be valid.
+        Script scriptPubKey = new ScriptBuilder().op(OP_CHECKSIG).op(OP_NOT).build();
+        Script badScriptSig = new ScriptBuilder().data(scriptSig.getChunks().get(0).data)
+                .data(new ECKey().getPubKey()).build();
+        badScriptSig.correctlySpends(tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS, null, null);
+        batch = new SignatureBatch(null);
+        try {
+            badScriptSig.correctlySpends(tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS, null, batch);
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+        assertFalse(batch.verify()[0]);
+    }
+
     @Test
     public void testCLTVPaymentChannelOutput() {
         Script script = ScriptBuilder.createCLTVPaymentChannelOutput(BigInteger.valueOf(20), new ECKey(), new ECKey());
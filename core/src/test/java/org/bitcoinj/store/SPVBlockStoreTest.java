@@ -24,8 +24,15 @@ import org.bitcoinj.params.UnitTestParams;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 public class SPVBlockStoreTest {
 
@@ -58,4 +65,102 @@ public class SPVBlockStoreTest {
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    @Test
+    public void wrapAround() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        final int capacity = 10;
+        SPVBlockStore store = new SPVBlockStore(params, f, capacity);
+
+        // Fill the ring two and a half times over, so older headers get overwritten.
+        Address to = new ECKey().toAddress(params);
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < capacity * 5 / 2; i++) {
+            StoredBlock b = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(b);
+            store.setChainHead(b);
+            blocks.add(b);
+            prev = b;
+        }
+        // Re-putting a header that is already stored must not break lookups of it, once it has been overwritten.
+        store.put(blocks.get(blocks.size() - 2));
+        store.close();
+
+        // Open again, so that only the index rebuilt from the ring is used and not the caches.
+        store = new SPVBlockStore(params, f, capacity);
+        assertEquals(blocks.get(blocks.size() - 1), store.getChainHead());
+        for (int i = 0; i < blocks.size(); i++) {
+            StoredBlock b = blocks.get(i);
+            if (i >= blocks.size() - capacity + 1)
+                assertEquals(b, store.get(b.getHeader().getHash()));
+            else
+                assertNull(store.get(b.getHeader().getHash()));
+        }
+        assertNull(store.get(params.getGenesisBlock().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void concurrentReaders() throws Exception {
+        final NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        final SPVBlockStore store = new SPVBlockStore(params, f);
+        final StoredBlock genesis = store.getChainHead();
+        final Address to = new ECKey().toAddress(params);
+
+        // Readers keep looking up headers whilst the writer appends, all of them must be found and intact.
+        final List<StoredBlock> written = new CopyOnWriteArrayList<StoredBlock>();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(1);
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (done.getCount() > 0) {
+                            assertEquals(genesis, store.get(genesis.getHeader().getHash()));
+                            for (StoredBlock b : written)
+                                assertEquals(b, store.get(b.getHeader().getHash()));
+                            assertNotNull(store.getChainHead());
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+        StoredBlock prev = genesis;
+        for (int i = 0; i < 100; i++) {
+            StoredBlock b = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(b);
+            store.setChainHead(b);
+            written.add(b);
+            prev = b;
+        }
+        done.countDown();
+        for (Thread reader : readers)
+            reader.join();
+        assertNull(failure.get());
+        assertEquals(prev, store.getChainHead());
+        store.close();
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void capacityMismatch() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        new SPVBlockStore(params, f, 10).close();
+        new SPVBlockStore(params, f, 20);
+    }
 }
@@ -51,6 +51,8 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.bitcoinj.core.Coin.*;
 import static org.bitcoinj.testing.FakeTxBuilder.createFakeTx;
@@ -308,6 +310,39 @@ public class WalletProtobufSerializerTest {
         return new WalletProtobufSerializer().readWallet(input);
     }
 
+    @Test
+    public void parallelLoad() throws Exception {
+        // Enough transactions to be decoded in several batches.
+        for (int i = 0; i < 600; i++)
+            myWallet.receivePending(createFakeTx(PARAMS, Coin.valueOf(i + 1), myAddress), null);
+        Protos.Wallet proto = new WalletProtobufSerializer().walletToProto(myWallet);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+            serializer.setLoadExecutor(executor);
+            Wallet wallet1 = serializer.readWallet(PARAMS, null, proto);
+            assertEquals(600, wallet1.getTransactions(true).size());
+            assertEquals(myWallet.getBalance(Wallet.BalanceType.ESTIMATED), wallet1.getBalance(Wallet.BalanceType.ESTIMATED));
+            for (Transaction tx : myWallet.getTransactions(true))
+                assertArrayEquals(tx.unsafeBitcoinSerialize(), wallet1.getTransaction(tx.getHash()).unsafeBitcoinSerialize());
+            assertArrayEquals(myKey.getPrivKeyBytes(), wallet1.findKeyFromPubHash(myKey.getPubKeyHash()).getPrivKeyBytes());
+            assertEquals(myWallet.getKeyChainSeed(), wallet1.getKeyChainSeed());
+            assertEquals(myWallet.currentReceiveAddress(), wallet1.currentReceiveAddress());
+            assertTrue(wallet1.isConsistent());
+
+            // A broken transaction in a later batch still fails the load.
+            Protos.Transaction broken = proto.getTransaction(500).toBuilder().setHash(proto.getTransaction(0).getHash()).build();
+            try {
+                serializer.readWallet(PARAMS, null, proto.toBuilder().setTransaction(500, broken).build());
+                fail();
+            } catch (UnreadableWalletException e) {
+                // Expected.
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     @Test
     public void testRoundTripNormalWallet() throws Exception {
         Wallet wallet1 = roundTrip(myWallet);
@@ -0,0 +1,131 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.utils;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class EventCoalescerTest {
+    // Holds on to tasks until told to run them, like a listener thread that has fallen behind.
+    private static class HeldExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            List<Runnable> toRun = new ArrayList<Runnable>(tasks);
+            tasks.clear();
+            for (Runnable task : toRun)
+                task.run();
+        }
+    }
+
+    private static Runnable counter(final AtomicInteger count) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                count.incrementAndGet();
+            }
+        };
+    }
+
+    @Test
+    public void coalescesQueuedEvents() {
+        EventCoalescer coalescer = new EventCoalescer();
+        HeldExecutor executor = new HeldExecutor();
+        AtomicInteger a = new AtomicInteger(), b = new AtomicInteger();
+        for (int i = 0; i < 5; i++) {
+            coalescer.execute(executor, "a", counter(a));
+            coalescer.execute(executor, "b", counter(b));
+        }
+        assertEquals(2, executor.tasks.size());
+        assertEquals(2, coalescer.getQueuedCount());
+        assertEquals(8, coalescer.getCoalescedCount());
+        executor.runAll();
+        assertEquals(1, a.get());
+        assertEquals(1, b.get());
+        assertEquals(0, coalescer.getQueuedCount());
+
+        // Once it has run, the next event goes through.
+        coalescer.execute(executor, "a", counter(a));
+        executor.runAll();
+        assertEquals(2, a.get());
+    }
+
+    @Test
+    public void eventQueuedWhileRunningIsKept() {
+        final EventCoalescer coalescer = new EventCoalescer();
+        final HeldExecutor executor = new HeldExecutor();
+        final AtomicInteger count = new AtomicInteger();
+        coalescer.execute(executor, "a", new Runnable() {
+            @Override
+            public void run() {
+                count.incrementAndGet();
+                coalescer.execute(executor, "a", counter(count));
+            }
+        });
+        executor.runAll();
+        assertEquals(1, executor.tasks.size());
+        executor.runAll();
+        assertEquals(2, count.get());
+    }
+
+    @Test
+    public void boundedUserThread() throws Exception {
+        final Threading.UserThread thread = new Threading.UserThread("test user thread", 2);
+        final CountDownLatch blocked = new CountDownLatch(1), release = new CountDownLatch(1);
+        final AtomicInteger count = new AtomicInteger();
+        final boolean[] ranInline = new boolean[1];
+        thread.execute(new Runnable() {
+            @Override
+            public void run() {
+                blocked.countDown();
+                Uninterruptibles.awaitUninterruptibly(release);
+                // The queue is full, so this runs straight away rather than waiting on ourselves forever.
+                thread.execute(counter(count));
+                ranInline[0] = count.get() == 1;
+            }
+        });
+        blocked.await();
+        thread.execute(counter(count));
+        thread.execute(counter(count));
+        assertEquals(2, thread.getQueueDepth());
+        release.countDown();
+        final CountDownLatch done = new CountDownLatch(1);
+        thread.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        done.await();
+        assertTrue(ranInline[0]);
+        assertEquals(3, count.get());
+        assertEquals(2, thread.getPeakQueueDepth());
+        assertTrue(thread.getTasksRun() >= 4);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.testing.TestWithWallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.bitcoinj.wallet.BranchAndBoundCoinSelectorTest.confirmedOutputs;
+import static org.junit.Assert.*;
+
+public class AddressGroupingCoinSelectorTest extends TestWithWallet {
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    @Test
+    public void spendsWholeAddresses() throws Exception {
+        List<TransactionOutput> a = confirmedOutputs(new ECKey().toAddress(PARAMS), CENT.multiply(30), CENT.multiply(30));
+        List<TransactionOutput> b = confirmedOutputs(new ECKey().toAddress(PARAMS), CENT.multiply(80));
+        List<TransactionOutput> c = confirmedOutputs(new ECKey().toAddress(PARAMS), CENT.multiply(10), CENT.multiply(10));
+        List<TransactionOutput> all = new ArrayList<TransactionOutput>();
+        all.addAll(a);
+        all.addAll(b);
+        all.addAll(c);
+        AddressGroupingCoinSelector selector = new AddressGroupingCoinSelector();
+
+        // The smallest address that covers the target on its own, all of it.
+        CoinSelection selection = selector.select(CENT.multiply(15), all);
+        assertEquals(new HashSet<TransactionOutput>(c), new HashSet<TransactionOutput>(selection.gathered));
+        selection = selector.select(CENT.multiply(50), all);
+        assertEquals(new HashSet<TransactionOutput>(a), new HashSet<TransactionOutput>(selection.gathered));
+
+        // Otherwise the largest addresses until there is enough.
+        selection = selector.select(CENT.multiply(130), all);
+        HashSet<TransactionOutput> expected = new HashSet<TransactionOutput>(a);
+        expected.addAll(b);
+        assertEquals(expected, new HashSet<TransactionOutput>(selection.gathered));
+        assertEquals(CENT.multiply(140), selection.valueGathered);
+    }
+}
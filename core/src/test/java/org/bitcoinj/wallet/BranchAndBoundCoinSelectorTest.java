@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.testing.TestWithWallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.*;
+
+public class BranchAndBoundCoinSelectorTest extends TestWithWallet {
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    static List<TransactionOutput> confirmedOutputs(Address to, Coin... values) {
+        List<TransactionOutput> outputs = new ArrayList<TransactionOutput>();
+        for (Coin value : values) {
+            Transaction tx = createFakeTx(PARAMS, value, to);
+            tx.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+            tx.getConfidence().setDepthInBlocks(1);
+            outputs.add(tx.getOutput(0));
+        }
+        return outputs;
+    }
+
+    @Test
+    public void findsExactMatch() throws Exception {
+        List<TransactionOutput> outputs = confirmedOutputs(myAddress, COIN, CENT.multiply(30), CENT.multiply(20),
+                CENT.multiply(7), CENT.multiply(5));
+        CoinSelection selection = new BranchAndBoundCoinSelector(ZERO).select(CENT.multiply(32), outputs);
+        assertEquals(CENT.multiply(32), selection.valueGathered);
+        assertEquals(new HashSet<TransactionOutput>(Arrays.asList(outputs.get(2), outputs.get(3), outputs.get(4))),
+                new HashSet<TransactionOutput>(selection.gathered));
+    }
+
+    @Test
+    public void prefersSmallestExcess() throws Exception {
+        List<TransactionOutput> outputs = confirmedOutputs(myAddress, CENT.multiply(10), CENT.multiply(6),
+                CENT.multiply(5), CENT.multiply(3));
+        // Nothing adds up to exactly 12 cents, 13 is the best within the allowed excess.
+        CoinSelection selection = new BranchAndBoundCoinSelector(CENT.multiply(2)).select(CENT.multiply(12), outputs);
+        assertEquals(CENT.multiply(13), selection.valueGathered);
+    }
+
+    @Test
+    public void fallsBackWithoutMatch() throws Exception {
+        List<TransactionOutput> outputs = confirmedOutputs(myAddress, COIN, COIN);
+        CoinSelection selection = new BranchAndBoundCoinSelector(SATOSHI).select(CENT, outputs);
+        assertEquals(COIN, selection.valueGathered);
+        assertEquals(1, selection.gathered.size());
+        // Not enough money at all.
+        selection = new BranchAndBoundCoinSelector(SATOSHI).select(COIN.multiply(3), outputs);
+        assertEquals(COIN.multiply(2), selection.valueGathered);
+    }
+
+    @Test
+    public void givesUpAfterMaxTries() throws Exception {
+        Coin[] values = new Coin[40];
+        for (int i = 0; i < values.length; i++)
+            values[i] = CENT.multiply(2 * (i + 1));
+        List<TransactionOutput> outputs = confirmedOutputs(myAddress, values);
+        // Only even totals are possible, so an exhaustive search for an odd target would never end. Instead we give up
+        // and select as DefaultCoinSelector would, which takes the biggest output here.
+        CoinSelection selection = new BranchAndBoundCoinSelector(ZERO, 1000).select(CENT.multiply(41), outputs);
+        assertEquals(CENT.multiply(80), selection.valueGathered);
+    }
+
+    @Test
+    public void ignoresUnselectable() throws Exception {
+        List<TransactionOutput> outputs = confirmedOutputs(myAddress, CENT.multiply(5), CENT.multiply(7));
+        Transaction pending = createFakeTx(PARAMS, CENT.multiply(5), myAddress);
+        outputs.add(pending.getOutput(0));
+        CoinSelection selection = new BranchAndBoundCoinSelector(ZERO).select(CENT.multiply(10), outputs);
+        assertEquals(CENT.multiply(12), selection.valueGathered);
+        assertFalse(selection.gathered.contains(pending.getOutput(0)));
+    }
+}
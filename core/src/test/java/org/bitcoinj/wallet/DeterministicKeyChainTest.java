@@ -33,6 +33,8 @@ import org.spongycastle.crypto.params.KeyParameter;
 import java.io.IOException;
 import java.security.SecureRandom;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.junit.Assert.*;
@@ -83,6 +85,29 @@ public class DeterministicKeyChainTest {
         assertEquals(2, chain.getKeys(false).size());
     }
 
+    @Test
+    public void parallelLookahead() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            DeterministicKeyChain parallel = new DeterministicKeyChain(ENTROPY, "", 1389353062L);
+            parallel.setDerivationExecutor(executor);
+            parallel.setLookaheadSize(200);
+            chain.setLookaheadSize(200);
+            parallel.maybeLookAhead();
+            chain.maybeLookAhead();
+            assertEquals(chain.getLeafKeys(), parallel.getLeafKeys());
+
+            // Pre-deriving for a restore goes well beyond the lookahead and only adds what's missing.
+            assertEquals(2 * (500 - 200 - 66), parallel.deriveKeysAhead(500));
+            assertEquals(0, parallel.deriveKeysAhead(500));
+            assertEquals(2 * 500, parallel.getLeafKeys().size());
+            chain.deriveKeysAhead(500);
+            assertEquals(chain.getLeafKeys(), parallel.getLeafKeys());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     @Test
     public void deriveAccountOne() throws Exception {
         long secs = 1389353062L;
@@ -0,0 +1,84 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.ECKey;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class KeyIndexTest {
+    @Test
+    public void behavesLikeLinkedMaps() {
+        // Enough keys to grow the tables a few times, with removals and re-additions mixed in to exercise the gaps
+        // and the moving back of entries when a slot is freed.
+        Random random = new Random(1);
+        KeyIndex index = new KeyIndex();
+        Map<ECKey, Boolean> expected = new LinkedHashMap<ECKey, Boolean>();
+        List<ECKey> removed = new ArrayList<ECKey>();
+        for (int i = 0; i < 300; i++) {
+            ECKey key = new ECKey();
+            assertTrue(index.add(key));
+            expected.put(key, true);
+            if (random.nextInt(3) == 0) {
+                ECKey victim = Lists.newArrayList(expected.keySet()).get(random.nextInt(expected.size()));
+                assertTrue(index.remove(victim));
+                assertFalse(index.remove(victim));
+                expected.remove(victim);
+                removed.add(victim);
+            }
+            if (!removed.isEmpty() && random.nextInt(5) == 0) {
+                ECKey back = removed.remove(0);
+                assertTrue(index.add(back));
+                expected.put(back, true);
+            }
+        }
+        assertEquals(expected.size(), index.size());
+        assertEquals(Lists.newArrayList(expected.keySet()), Lists.newArrayList(index));
+        assertEquals(expected.keySet().iterator().next(), index.first());
+        for (ECKey key : expected.keySet()) {
+            assertSame(key, index.findByPubKeyHash(key.getPubKeyHash()));
+            assertSame(key, index.findByPubKey(key.getPubKey()));
+            assertFalse(index.add(ECKey.fromPublicOnly(key.getPubKey())));
+        }
+        for (ECKey key : removed) {
+            assertNull(index.findByPubKeyHash(key.getPubKeyHash()));
+            assertNull(index.findByPubKey(key.getPubKey()));
+        }
+    }
+
+    @Test
+    public void compressedAndUncompressedAreDifferentKeys() {
+        // Both encodings start with the same x coordinate, so their public key tags collide.
+        KeyIndex index = new KeyIndex();
+        ECKey key = new ECKey();
+        ECKey uncompressed = ECKey.fromPublicOnly(key.decompress().getPubKey());
+        assertTrue(index.add(key));
+        assertTrue(index.add(uncompressed));
+        assertSame(key, index.findByPubKey(key.getPubKey()));
+        assertSame(uncompressed, index.findByPubKeyHash(uncompressed.getPubKeyHash()));
+        assertNull(index.findByPubKey(new byte[] { 2 }));
+        assertNull(index.findByPubKeyHash(new byte[0]));
+    }
+}
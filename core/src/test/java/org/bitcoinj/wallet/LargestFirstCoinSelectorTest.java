@@ -0,0 +1,54 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.testing.TestWithWallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.bitcoinj.wallet.BranchAndBoundCoinSelectorTest.confirmedOutputs;
+import static org.junit.Assert.*;
+
+public class LargestFirstCoinSelectorTest extends TestWithWallet {
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    @Test
+    public void largestFirst() throws Exception {
+        List<TransactionOutput> outputs = confirmedOutputs(myAddress, CENT, COIN, CENT.multiply(50), CENT.multiply(2));
+        CoinSelection selection = new LargestFirstCoinSelector().select(COIN.add(CENT), outputs);
+        assertEquals(Arrays.asList(outputs.get(1), outputs.get(2)), selection.gathered);
+        assertEquals(CENT.multiply(150), selection.valueGathered);
+
+        selection = new LargestFirstCoinSelector().select(NetworkParameters.MAX_MONEY, outputs);
+        assertEquals(4, selection.gathered.size());
+        assertEquals(CENT.multiply(153), selection.valueGathered);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.testing.TestWithWallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeCoinbaseTx;
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.*;
+
+public class SpendableOutputIndexTest extends TestWithWallet {
+    private SpendableOutputIndex index;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        index = new SpendableOutputIndex();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private TransactionOutput output(Coin value, Address to) {
+        return createFakeTx(PARAMS, value, to).getOutput(0);
+    }
+
+    @Test
+    public void ordering() throws Exception {
+        TransactionOutput a = output(COIN, myAddress);
+        TransactionOutput b = output(CENT, myAddress);
+        TransactionOutput c = output(FIFTY_COINS, myAddress);
+        TransactionOutput d = output(CENT, myAddress);
+        for (TransactionOutput output : Arrays.asList(a, b, c, d))
+            assertTrue(index.add(output, true));
+        assertFalse(index.add(b, true));
+        assertEquals(4, index.size());
+
+        // Oldest first, or smallest first when asking for a value range.
+        assertEquals(Arrays.asList(a, b, c, d), index.getOutputs(true, true));
+        assertEquals(Arrays.asList(b, d, a, c), index.getOutputs(ZERO, FIFTY_COINS, true, true));
+        assertEquals(Arrays.asList(b, d, a), index.getOutputs(CENT, COIN, true, true));
+        assertEquals(Arrays.asList(a), index.getOutputs(CENT.add(SATOSHI), COIN, true, true));
+        assertEquals(Collections.emptyList(), index.getOutputs(COIN, CENT, true, true));
+
+        assertTrue(index.remove(b));
+        assertFalse(index.remove(b));
+        assertEquals(Arrays.asList(d, a), index.getOutputs(CENT, COIN, true, true));
+        index.clear();
+        assertEquals(0, index.size());
+        assertEquals(Collections.emptyList(), index.getOutputs(ZERO, FIFTY_COINS, false, false));
+    }
+
+    @Test
+    public void filters() throws Exception {
+        TransactionOutput mine = output(COIN, myAddress);
+        TransactionOutput watched = output(COIN, new ECKey().toAddress(PARAMS));
+        Transaction coinbase = createFakeCoinbaseTx(PARAMS);
+        TransactionOutput immature = coinbase.getOutput(0);
+        index.add(mine, true);
+        index.add(watched, false);
+        index.add(immature, true);
+        assertEquals(Arrays.asList(mine, watched, immature), index.getOutputs(false, false));
+        assertEquals(Arrays.asList(mine, immature), index.getOutputs(false, true));
+        assertEquals(Arrays.asList(mine, watched), index.getOutputs(true, false));
+        assertEquals(Arrays.asList(mine), index.getOutputs(ZERO, FIFTY_COINS, true, true));
+
+        // Maturity isn't cached, it follows the chain.
+        coinbase.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+        coinbase.getConfidence().setDepthInBlocks(PARAMS.getSpendableCoinbaseDepth());
+        assertEquals(Arrays.asList(mine, immature), index.getOutputs(true, true));
+
+        // Signability is only updated when asked to.
+        index.updateSignability(wallet);
+        assertEquals(Arrays.asList(mine), index.getOutputs(false, true));
+    }
+
+    @Test
+    public void walletKeepsIndexUpToDate() throws Exception {
+        ECKey key = new ECKey();
+        Address watchedAddress = key.toAddress(PARAMS);
+        wallet.addWatchedAddress(watchedAddress);
+        Transaction t1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        Transaction t2 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT, watchedAddress);
+        TransactionOutput o1 = t1.getOutput(0), o2 = t2.getOutput(0);
+        assertEquals(Arrays.asList(o1), wallet.calculateAllSpendCandidates(true, true));
+        assertEquals(Arrays.asList(o2, o1), wallet.calculateSpendCandidates(ZERO, COIN, true, false));
+        assertEquals(Arrays.asList(o2), wallet.calculateSpendCandidates(ZERO, CENT, true, false));
+
+        // Importing and removing the key moves the watched output in and out of the spendable candidates.
+        wallet.importKey(key);
+        assertEquals(Arrays.asList(o2, o1), wallet.calculateSpendCandidates(ZERO, COIN, true, true));
+        wallet.removeKey(key);
+        assertEquals(Arrays.asList(o1), wallet.calculateSpendCandidates(ZERO, COIN, true, true));
+
+        // Spending drops the output from the index.
+        Transaction spend = wallet.createSend(new ECKey().toAddress(PARAMS), COIN.subtract(CENT));
+        wallet.commitTx(spend);
+        assertFalse(wallet.calculateAllSpendCandidates(true, false).contains(o1));
+    }
+}
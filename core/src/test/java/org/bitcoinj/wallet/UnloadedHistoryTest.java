@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.testing.TestWithWallet;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.bitcoinj.core.AbstractBlockChain.NewBlockType.BEST_CHAIN;
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class UnloadedHistoryTest extends TestWithWallet {
+    private static final Address OTHER_ADDRESS = new ECKey().toAddress(PARAMS);
+
+    private Transaction received, partialSpend, other, fullSpend;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        // Spent, but connected to the change of a live transaction so it must be read at load.
+        received = sendMoneyToWallet(BEST_CHAIN, COIN);
+        partialSpend = wallet.createSend(OTHER_ADDRESS, CENT);
+        sendMoneyToWallet(BEST_CHAIN, partialSpend);
+        // Spent entirely to somebody else, so nothing live refers to either of them.
+        other = sendMoneyToWallet(BEST_CHAIN, CENT);
+        fullSpend = new Transaction(PARAMS);
+        fullSpend.addInput(other.getOutput(0));
+        fullSpend.addOutput(CENT, OTHER_ADDRESS);
+        SendRequest req = SendRequest.forTx(fullSpend);
+        wallet.signTransaction(req);
+        sendMoneyToWallet(BEST_CHAIN, fullSpend);
+        assertEquals(3, wallet.getTransactionPool(WalletTransaction.Pool.SPENT).size());
+    }
+
+    private Wallet lazyRoundTrip(Wallet wallet) throws Exception {
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setLoadHistoryLazily(true);
+        return serializer.readWallet(PARAMS, null, new WalletProtobufSerializer().walletToProto(wallet));
+    }
+
+    @Test
+    public void historyIsLeftUnread() throws Exception {
+        Wallet loaded = lazyRoundTrip(wallet);
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+        assertEquals(1, loaded.getTransactionPool(WalletTransaction.Pool.SPENT).size());
+        assertTrue(loaded.getTransactionPool(WalletTransaction.Pool.SPENT).containsKey(received.getHash()));
+        assertEquals(partialSpend.getValueSentFromMe(wallet),
+                loaded.getTransactionPool(WalletTransaction.Pool.UNSPENT).get(partialSpend.getHash()).getValueSentFromMe(loaded));
+    }
+
+    @Test
+    public void unreadHistoryIsSaved() throws Exception {
+        Wallet loaded = lazyRoundTrip(wallet);
+        Wallet reloaded = new WalletProtobufSerializer().readWallet(PARAMS, null,
+                new WalletProtobufSerializer().walletToProto(loaded));
+        assertEquals(3, reloaded.getTransactionPool(WalletTransaction.Pool.SPENT).size());
+        assertEquals(wallet.getTransactions(true).size(), reloaded.getTransactions(true).size());
+        assertEquals(wallet.getTransaction(fullSpend.getHash()).getConfidence().getDepthInBlocks(),
+                reloaded.getTransaction(fullSpend.getHash()).getConfidence().getDepthInBlocks());
+        assertTrue(reloaded.isConsistent());
+    }
+
+    @Test
+    public void changesToReadAheadHistoryAreSaved() throws Exception {
+        Wallet loaded = lazyRoundTrip(wallet);
+        Transaction readAhead = loaded.getTransactionPool(WalletTransaction.Pool.SPENT).get(received.getHash());
+        readAhead.setMemo("read ahead");
+        Protos.Wallet proto = new WalletProtobufSerializer().walletToProto(loaded);
+        // Saving doesn't read the rest of the history in.
+        assertEquals(1, loaded.getTransactionPool(WalletTransaction.Pool.SPENT).size());
+        Wallet reloaded = new WalletProtobufSerializer().readWallet(PARAMS, null, proto);
+        assertEquals("read ahead", reloaded.getTransaction(received.getHash()).getMemo());
+        assertEquals(wallet.getTransactions(true).size(), reloaded.getTransactions(true).size());
+        assertTrue(reloaded.isConsistent());
+        // And again lazily, connecting the rest of the history afterwards.
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setLoadHistoryLazily(true);
+        Wallet lazilyReloaded = serializer.readWallet(PARAMS, null, proto);
+        assertEquals("read ahead", lazilyReloaded.getTransactionPool(WalletTransaction.Pool.SPENT).get(received.getHash()).getMemo());
+        assertEquals(wallet.getTransactions(true).size(), lazilyReloaded.getTransactions(true).size());
+        assertEquals("read ahead", lazilyReloaded.getTransaction(received.getHash()).getMemo());
+        assertTrue(lazilyReloaded.isConsistent());
+    }
+
+    @Test
+    public void fullHistoryLoadsOnDemand() throws Exception {
+        Wallet loaded = lazyRoundTrip(wallet);
+        assertEquals(wallet.getTransactions(true).size(), loaded.getTransactions(true).size());
+        assertEquals(3, loaded.getTransactionPool(WalletTransaction.Pool.SPENT).size());
+        assertTrue(loaded.getTransaction(fullSpend.getHash()).getInput(0).getConnectedOutput() != null);
+        assertTrue(loaded.isConsistent());
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+    }
+
+    @Test
+    public void lookupByHashLoadsHistory() throws Exception {
+        Wallet loaded = lazyRoundTrip(wallet);
+        assertNotNull(loaded.getTransaction(other.getHash()));
+        assertEquals(3, loaded.getTransactionPool(WalletTransaction.Pool.SPENT).size());
+    }
+
+    @Test
+    public void doubleSpendOfHistoryLoadsIt() throws Exception {
+        Wallet loaded = lazyRoundTrip(wallet);
+        Transaction doubleSpend = new Transaction(PARAMS);
+        doubleSpend.addInput(other.getOutput(0));
+        doubleSpend.addOutput(CENT, new ECKey().toAddress(PARAMS));
+        assertTrue(loaded.isPendingTransactionRelevant(doubleSpend));
+        assertEquals(3, loaded.getTransactionPool(WalletTransaction.Pool.SPENT).size());
+    }
+}
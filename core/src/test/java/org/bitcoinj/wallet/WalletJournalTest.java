@@ -0,0 +1,149 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.testing.TestWithWallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class WalletJournalTest extends TestWithWallet {
+    private File file, journal;
+    private WalletFiles files;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("bitcoinj-unit-test", null);
+        journal = WalletJournal.journalFileFor(file);
+        // Long enough that only our explicit saves happen during the test.
+        files = wallet.autosaveToFile(file, 1, TimeUnit.HOURS, null);
+        files.setJournalMode(true);
+        files.saveNow();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        wallet.shutdownAutosaveAndWait();
+        file.delete();
+        journal.delete();
+        super.tearDown();
+    }
+
+    @Test
+    public void changesAreReplayed() throws Exception {
+        Sha256Hash snapshot = Sha256Hash.of(file);
+        long journalLength = journal.length();
+        ECKey key = wallet.freshReceiveKey();
+        Transaction tx = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        files.saveNow();
+        assertEquals(snapshot, Sha256Hash.of(file));
+        assertTrue(journal.length() > journalLength);
+
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertEquals(COIN, loaded.getBalance());
+        assertEquals(wallet.getLastBlockSeenHash(), loaded.getLastBlockSeenHash());
+        assertEquals(wallet.getLastBlockSeenHeight(), loaded.getLastBlockSeenHeight());
+        assertEquals(2, loaded.getTransaction(tx.getHash()).getConfidence().getDepthInBlocks());
+        assertEquals(wallet.getIssuedReceiveKeys().size(), loaded.getIssuedReceiveKeys().size());
+        assertTrue(loaded.isPubKeyMine(key.getPubKey()));
+        assertTrue(loaded.isConsistent());
+    }
+
+    @Test
+    public void unchangedWalletAppendsNothing() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        files.saveNow();
+        long journalLength = journal.length();
+        files.saveNow();
+        assertEquals(journalLength, journal.length());
+    }
+
+    @Test
+    public void interruptedSaveIsDropped() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        files.saveNow();
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        files.saveNow();
+        assertEquals(COIN.add(COIN), Wallet.loadFromFile(file).getBalance());
+
+        // Cut the last save short, as a crash half way through writing it would.
+        RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertEquals(COIN, loaded.getBalance());
+        assertTrue(loaded.isConsistent());
+
+        // The next save doesn't append to the damaged journal, but starts over.
+        files.saveNow();
+        assertEquals(COIN.add(COIN), Wallet.loadFromFile(file).getBalance());
+    }
+
+    @Test
+    public void staleJournalIsIgnored() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        files.saveNow();
+
+        // Someone else writes the wallet file, so the journal no longer applies to it.
+        new Wallet(PARAMS).saveToFile(file);
+        assertTrue(journal.exists());
+        assertTrue(Wallet.loadFromFile(file).getTransactions(true).isEmpty());
+
+        // And our next save notices, writing out the whole wallet again.
+        files.saveNow();
+        assertEquals(COIN, Wallet.loadFromFile(file).getBalance());
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        files.setJournalMode(true, 0);
+        files.saveNow();
+        long emptyJournal = journal.length();
+        Sha256Hash snapshot = Sha256Hash.of(file);
+
+        // The first change fits in the journal, the second pushes it past the compaction ratio.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        files.saveNow();
+        assertEquals(snapshot, Sha256Hash.of(file));
+        assertTrue(journal.length() > emptyJournal);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        files.saveNow();
+        assertNotEquals(snapshot, Sha256Hash.of(file));
+        assertEquals(emptyJournal, journal.length());
+        assertEquals(COIN.add(COIN), Wallet.loadFromFile(file).getBalance());
+    }
+
+    @Test
+    public void leavingJournalModeRemovesJournal() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        files.saveNow();
+        files.setJournalMode(false);
+        files.saveNow();
+        assertFalse(journal.exists());
+        assertEquals(COIN, Wallet.loadFromFile(file).getBalance());
+    }
+}
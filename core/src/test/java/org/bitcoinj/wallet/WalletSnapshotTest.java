@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.testing.TestWithWallet;
+import org.bitcoinj.wallet.Wallet.BalanceType;
+import org.bitcoinj.wallet.WalletTransaction.Pool;
+import org.junit.Test;
+
+import static org.bitcoinj.core.AbstractBlockChain.NewBlockType.BEST_CHAIN;
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class WalletSnapshotTest extends TestWithWallet {
+    private static final Address OTHER_ADDRESS = new ECKey().toAddress(PARAMS);
+
+    @Test
+    public void reusedUntilChanged() throws Exception {
+        WalletSnapshot empty = wallet.getSnapshot();
+        assertSame(empty, wallet.getSnapshot());
+        assertEquals(0, empty.getTransactions(true).size());
+        assertEquals(ZERO, empty.getBalance());
+
+        Transaction tx = sendMoneyToWallet(BEST_CHAIN, COIN);
+        WalletSnapshot snapshot = wallet.getSnapshot();
+        assertNotSame(empty, snapshot);
+        assertSame(snapshot, wallet.getSnapshot());
+        // The old one stays as it was.
+        assertEquals(0, empty.getTransactions(true).size());
+        assertEquals(ZERO, empty.getBalance());
+
+        assertEquals(COIN, snapshot.getBalance());
+        assertEquals(COIN, snapshot.getBalance(BalanceType.ESTIMATED));
+        assertEquals(tx, snapshot.getTransaction(tx.getHash()));
+        assertTrue(snapshot.getTransactionPool(Pool.UNSPENT).containsKey(tx.getHash()));
+        assertEquals(wallet.getLastBlockSeenHash(), snapshot.getLastBlockSeenHash());
+        assertEquals(wallet.getLastBlockSeenHeight(), snapshot.getLastBlockSeenHeight());
+    }
+
+    @Test
+    public void spendsAndBlocksShowUp() throws Exception {
+        sendMoneyToWallet(BEST_CHAIN, COIN);
+        WalletSnapshot before = wallet.getSnapshot();
+        Transaction send = wallet.createSend(OTHER_ADDRESS, CENT);
+        wallet.commitTx(send);
+        WalletSnapshot pending = wallet.getSnapshot();
+        assertNotSame(before, pending);
+        assertTrue(pending.getTransactionPool(Pool.PENDING).containsKey(send.getHash()));
+        assertEquals(wallet.getBalance(BalanceType.ESTIMATED), pending.getBalance(BalanceType.ESTIMATED));
+        assertEquals(wallet.getBalance(), pending.getBalance());
+
+        sendMoneyToWallet(BEST_CHAIN);
+        WalletSnapshot confirmed = wallet.getSnapshot();
+        assertNotSame(pending, confirmed);
+        assertEquals(pending.getLastBlockSeenHeight() + 1, confirmed.getLastBlockSeenHeight());
+        assertTrue(confirmed.getTransactionPool(Pool.PENDING).isEmpty());
+        assertEquals(wallet.getBalance(), confirmed.getBalance());
+    }
+
+    @Test
+    public void keys() throws Exception {
+        WalletSnapshot before = wallet.getSnapshot();
+        Address address = wallet.freshReceiveAddress();
+        WalletSnapshot after = wallet.getSnapshot();
+        assertFalse(before.getIssuedReceiveAddresses().contains(address));
+        assertTrue(after.getIssuedReceiveAddresses().contains(address));
+
+        wallet.addWatchedAddress(OTHER_ADDRESS);
+        assertEquals(1, wallet.getSnapshot().getWatchedScripts().size());
+        assertTrue(after.getWatchedScripts().isEmpty());
+    }
+}
@@ -26,9 +26,11 @@ import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.InsufficientMoneyException;
 import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.ScriptException;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionBag;
 import org.bitcoinj.core.TransactionConfidence;
 import org.bitcoinj.core.TransactionInput;
 import org.bitcoinj.core.TransactionOutPoint;
@@ -58,6 +60,7 @@ import org.easymock.EasyMock;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.protobuf.ByteString;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.junit.After;
@@ -621,6 +624,42 @@ public class WalletTest extends TestWithWallet {
         assertEquals(3, confTxns.size());
     }
 
+    @Test
+    public void balancesFollowChanges() throws Exception {
+        // Balances are cached between queries, check they move whenever they should.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        assertEquals(COIN, wallet.getBalance());
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.AVAILABLE_SPENDABLE));
+        Transaction spend = wallet.createSend(OTHER_ADDRESS, valueOf(0, 40));
+        wallet.commitTx(spend);
+        Coin change = spend.getValueSentToMe(wallet);
+        assertEquals(change, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(ZERO, wallet.getBalance());
+
+        // Peers announcing our own transaction make the change available, without the wallet being told about it.
+        spend.getConfidence().markBroadcastBy(new PeerAddress(PARAMS, InetAddress.getByAddress(new byte[]{1,2,3,4})));
+        spend.getConfidence().markBroadcastBy(new PeerAddress(PARAMS, InetAddress.getByAddress(new byte[]{10,2,3,4})));
+        assertEquals(change, wallet.getBalance());
+
+        // Importing the key for a watched output makes it spendable.
+        ECKey key = new ECKey();
+        wallet.addWatchedAddress(key.toAddress(PARAMS));
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN, key.toAddress(PARAMS));
+        assertEquals(change.add(COIN), wallet.getBalance());
+        assertEquals(change, wallet.getBalance(Wallet.BalanceType.AVAILABLE_SPENDABLE));
+        wallet.importKey(key);
+        assertEquals(change.add(COIN), wallet.getBalance(Wallet.BalanceType.AVAILABLE_SPENDABLE));
+        assertEquals(change.add(COIN), wallet.getBalance(Wallet.BalanceType.ESTIMATED_SPENDABLE));
+
+        // Switching the coin selector changes what counts as available.
+        Transaction pending = sendMoneyToWallet(null, COIN);
+        assertNotNull(pending);
+        assertEquals(change.add(COIN), wallet.getBalance());
+        wallet.allowSpendingUnconfirmedTransactions();
+        assertEquals(change.add(COIN).add(COIN), wallet.getBalance());
+        assertEquals(change.add(COIN).add(COIN), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
     @Test
     public void balances() throws Exception {
         Coin nanos = COIN;
@@ -1357,6 +1396,131 @@ public class WalletTest extends TestWithWallet {
         assertEquals(3, walletChanged[0]);
     }
 
+    @Test
+    public void pendingBatch() throws Exception {
+        // A burst of pending transactions is applied in one go, with one wallet changed and one confidence event each.
+        final Transaction t1 = createFakeTx(PARAMS, COIN, myAddress);
+        final Transaction t2 = createFakeTx(PARAMS, CENT, myAddress);
+        final Transaction irrelevant = createFakeTx(PARAMS, COIN, OTHER_ADDRESS);
+        final List<Transaction> received = new ArrayList<Transaction>();
+        final List<Transaction> confidenceChanged = new ArrayList<Transaction>();
+        final int[] walletChanged = new int[1];
+        wallet.addCoinsReceivedEventListener(new WalletCoinsReceivedEventListener() {
+            @Override
+            public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+                received.add(tx);
+            }
+        });
+        wallet.addTransactionConfidenceEventListener(new TransactionConfidenceEventListener() {
+            @Override
+            public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+                confidenceChanged.add(tx);
+            }
+        });
+        wallet.addChangeEventListener(new WalletChangeEventListener() {
+            @Override
+            public void onWalletChanged(Wallet wallet) {
+                walletChanged[0]++;
+            }
+        });
+
+        wallet.receivePending(ImmutableList.of(t1, irrelevant, t2, t1));
+        Threading.waitForUserCode();
+        assertEquals(ImmutableList.of(t1, t2), received);
+        assertEquals(2, confidenceChanged.size());
+        assertTrue(confidenceChanged.containsAll(ImmutableList.of(t1, t2)));
+        assertEquals(1, walletChanged[0]);
+        assertEquals(COIN.add(CENT), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(2, wallet.getPoolSize(Pool.PENDING));
+
+        // Nothing new in the batch, so nothing to tell anyone.
+        wallet.receivePending(ImmutableList.of(t1, irrelevant));
+        Threading.waitForUserCode();
+        assertEquals(2, received.size());
+        assertEquals(1, walletChanged[0]);
+    }
+
+    @Test
+    public void blockBatch() throws Exception {
+        Transaction t1 = createFakeTx(PARAMS, COIN, myAddress);
+        Transaction t2 = createFakeTx(PARAMS, CENT, myAddress);
+        Transaction irrelevant = createFakeTx(PARAMS, COIN, OTHER_ADDRESS);
+        final int[] walletChanged = new int[1];
+        wallet.addChangeEventListener(new WalletChangeEventListener() {
+            @Override
+            public void onWalletChanged(Wallet wallet) {
+                walletChanged[0]++;
+            }
+        });
+        FakeTxBuilder.BlockPair bp = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS, t1, irrelevant, t2);
+        wallet.receiveFromBlock(ImmutableList.of(t1, irrelevant, t2), bp.storedBlock,
+                AbstractBlockChain.NewBlockType.BEST_CHAIN, 1);
+        wallet.notifyNewBestBlock(bp.storedBlock);
+        Threading.waitForUserCode();
+        assertEquals(1, walletChanged[0]);
+        assertEquals(COIN.add(CENT), wallet.getBalance());
+        assertEquals(2, wallet.getPoolSize(Pool.UNSPENT));
+        assertNull(wallet.getTransaction(irrelevant.getHash()));
+        // Offsets carry on past the irrelevant transaction.
+        Sha256Hash blockHash = bp.storedBlock.getHeader().getHash();
+        assertEquals(Integer.valueOf(1), t1.getAppearsInHashes().get(blockHash));
+        assertEquals(Integer.valueOf(3), t2.getAppearsInHashes().get(blockHash));
+        assertEquals(TransactionConfidence.ConfidenceType.BUILDING, t2.getConfidence().getConfidenceType());
+    }
+
+    @Test
+    public void blockBatchSkipsUnparseableTransactions() throws Exception {
+        final Transaction bad = createFakeTx(PARAMS, COIN, OTHER_ADDRESS);
+        Wallet wallet = new Wallet(PARAMS) {
+            @Override
+            public boolean isTransactionRelevant(Transaction tx) throws ScriptException {
+                if (tx == bad)
+                    throw new ScriptException("Unparseable");
+                return super.isTransactionRelevant(tx);
+            }
+        };
+        Address address = wallet.freshReceiveAddress();
+        Transaction t1 = createFakeTx(PARAMS, COIN, address);
+        Transaction t2 = createFakeTx(PARAMS, CENT, address);
+        FakeTxBuilder.BlockPair bp = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS, t1, bad, t2);
+        wallet.receiveFromBlock(ImmutableList.of(t1, bad, t2), bp.storedBlock,
+                AbstractBlockChain.NewBlockType.BEST_CHAIN, 1);
+        wallet.notifyNewBestBlock(bp.storedBlock);
+        assertEquals(COIN.add(CENT), wallet.getBalance());
+        assertEquals(Integer.valueOf(3), t2.getAppearsInHashes().get(bp.storedBlock.getHeader().getHash()));
+    }
+
+    @Test
+    public void relevanceFollowsKeyChanges() throws Exception {
+        ECKey key = new ECKey();
+        assertFalse(wallet.isPubKeyHashMine(key.getPubKeyHash()));
+        wallet.importKey(key);
+        assertTrue(wallet.isPubKeyHashMine(key.getPubKeyHash()));
+        assertTrue(wallet.isPubKeyMine(key.getPubKey()));
+        wallet.removeKey(key);
+        assertFalse(wallet.isPubKeyHashMine(key.getPubKeyHash()));
+        assertFalse(wallet.isPubKeyMine(key.getPubKey()));
+
+        Address watched = new ECKey().toAddress(PARAMS);
+        Script script = ScriptBuilder.createOutputScript(watched);
+        assertFalse(wallet.isWatchedScript(script));
+        wallet.addWatchedAddress(watched);
+        assertTrue(wallet.isWatchedScript(script));
+        wallet.removeWatchedAddress(watched);
+        assertFalse(wallet.isWatchedScript(script));
+        assertFalse(wallet.isPayToScriptHashMine(script.getPubKeyHash()));
+
+        // Keys that arrive through lookahead and after encryption replaced the key chains are seen too.
+        for (int i = 0; i < 20; i++)
+            assertTrue(wallet.isPubKeyHashMine(wallet.freshReceiveKey().getPubKeyHash()));
+        wallet.encrypt(PASSWORD1);
+        ECKey imported = new ECKey();
+        wallet.importKeysAndEncrypt(ImmutableList.of(imported), PASSWORD1);
+        assertTrue(wallet.isPubKeyHashMine(imported.getPubKeyHash()));
+        for (int i = 0; i < 20; i++)
+            assertTrue(wallet.isPubKeyHashMine(wallet.freshReceiveKey().getPubKeyHash()));
+    }
+
     @Test
     public void pending2() throws Exception {
         // Check that if we receive a pending tx we did not send, it updates our spent flags correctly.
@@ -3480,4 +3644,39 @@ public class WalletTest extends TestWithWallet {
 
         // TODO: test shared wallet calculation here
     }
+
+    @Test
+    public void queriesDontWaitForOtherQueries() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        final CountDownLatch inQuery = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // Stalls inside isTransactionRelevant, i.e. with the wallet locked for reading.
+        final Transaction slow = new Transaction(PARAMS) {
+            @Override
+            public Coin getValueSentFromMe(TransactionBag wallet) {
+                inQuery.countDown();
+                Uninterruptibles.awaitUninterruptibly(release);
+                return super.getValueSentFromMe(wallet);
+            }
+        };
+        slow.addOutput(CENT, OTHER_ADDRESS);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                wallet.isTransactionRelevant(slow);
+            }
+        };
+        thread.start();
+        try {
+            assertTrue(inQuery.await(10, TimeUnit.SECONDS));
+            assertEquals(1, wallet.getTransactions(true).size());
+            assertEquals(1, wallet.getUnspents().size());
+            assertEquals(1, wallet.getPoolSize(Pool.UNSPENT));
+            assertNotNull(wallet.getLastBlockSeenHash());
+            assertTrue(wallet.isPubKeyHashMine(myAddress.getHash160()));
+        } finally {
+            release.countDown();
+            thread.join();
+        }
+    }
 }